@@ -24,7 +24,8 @@ ${BLUE}Contextual Retrieval CLI Client${NC}
 Usage: ./contextual-retrieval.sh [command] [options]
 
 Commands:
-  upload    Upload a document
+  upload    Upload a document, returns the id of its ingestion job
+  status    Show progress of an ingestion job
   query     Query the document database
   help      Show this help message
 
@@ -32,9 +33,15 @@ Examples:
   # Upload a document
   ./contextual-retrieval.sh upload --file /path/to/document.pdf --name "My Document"
 
+  # Check ingestion progress
+  ./contextual-retrieval.sh status --job 6f1c2a4e-0000-0000-0000-000000000000
+
   # Query the database
   ./contextual-retrieval.sh query --text "What is the main topic?"
 
+  # Stream the answer as it is generated
+  ./contextual-retrieval.sh query --text "What is the main topic?" --stream
+
   # Set custom API URL
   API_BASE_URL=http://localhost:9000/api/documents ./contextual-retrieval.sh query --text "Your query"
 
@@ -104,8 +111,8 @@ upload_document() {
   http_code=$(echo "$response" | tail -n 1)
   body=$(echo "$response" | sed '$d')
 
-  if [[ "$http_code" == "201" ]] || [[ "$http_code" == "200" ]]; then
-    print_success "Document uploaded successfully"
+  if [[ "$http_code" == "202" ]] || [[ "$http_code" == "201" ]] || [[ "$http_code" == "200" ]]; then
+    print_success "Document accepted for ingestion"
     echo "$body"
   else
     print_error "Failed to upload document (HTTP $http_code)"
@@ -114,9 +121,48 @@ upload_document() {
   fi
 }
 
+# Ingestion job status
+job_status() {
+  local job_id=""
+
+  # Parse arguments
+  while [[ $# -gt 0 ]]; do
+    case $1 in
+      --job)
+        job_id="$2"
+        shift 2
+        ;;
+      *)
+        print_error "Unknown option: $1"
+        exit 1
+        ;;
+    esac
+  done
+
+  # Validate arguments
+  if [[ -z "$job_id" ]]; then
+    print_error "Missing required option: --job"
+    exit 1
+  fi
+
+  response=$(curl -s -w "\n%{http_code}" -X GET "$API_BASE_URL/jobs/$job_id")
+
+  http_code=$(echo "$response" | tail -n 1)
+  body=$(echo "$response" | sed '$d')
+
+  if [[ "$http_code" == "200" ]]; then
+    echo "$body"
+  else
+    print_error "Failed to get job status (HTTP $http_code)"
+    echo "$body"
+    exit 1
+  fi
+}
+
 # Query documents
 query_documents() {
   local query_text=""
+  local stream=false
 
   # Parse arguments
   while [[ $# -gt 0 ]]; do
@@ -125,6 +171,10 @@ query_documents() {
         query_text="$2"
         shift 2
         ;;
+      --stream)
+        stream=true
+        shift
+        ;;
       *)
         print_error "Unknown option: $1"
         exit 1
@@ -139,6 +189,17 @@ query_documents() {
   fi
 
   print_info "Processing query: $query_text"
+
+  if [[ "$stream" == true ]]; then
+    # server-sent events: sources first, then the answer token by token
+    print_info "API URL: $API_BASE_URL/query/stream"
+    curl -sN -G "$API_BASE_URL/query/stream" \
+      -H "Accept: text/event-stream" \
+      --data-urlencode "query=$query_text"
+    echo ""
+    return
+  fi
+
   print_info "API URL: $API_BASE_URL/query"
 
   response=$(curl -s -w "\n%{http_code}" -X GET \
@@ -174,6 +235,9 @@ main() {
     upload)
       upload_document "$@"
       ;;
+    status)
+      job_status "$@"
+      ;;
     query)
       query_documents "$@"
       ;;
@@ -0,0 +1,50 @@
+package edu.xkollar3.contextual_retrieval_repository.api;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import edu.xkollar3.contextual_retrieval_repository.service.EmbeddingStoreSnapshotService;
+import edu.xkollar3.contextual_retrieval_repository.service.VectorIndexService;
+
+@RestController
+@RequestMapping("/api/admin")
+public class AdminApi {
+
+  private final VectorIndexService vectorIndexService;
+  private final EmbeddingStoreSnapshotService snapshotService;
+
+  @Autowired
+  public AdminApi(VectorIndexService vectorIndexService, EmbeddingStoreSnapshotService snapshotService) {
+    this.vectorIndexService = vectorIndexService;
+    this.snapshotService = snapshotService;
+  }
+
+  @PostMapping("/vector-index/rebuild")
+  public ResponseEntity<Map<String, Object>> rebuildVectorIndex() {
+    if (vectorIndexService.rebuild()) {
+      return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("rebuilding", true));
+    }
+    String reason = vectorIndexService.isRebuilding() ? "a rebuild is already running"
+        : "the embeddings are not stored in pgvector";
+    return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("rebuilding", false, "reason", reason));
+  }
+
+  @GetMapping("/vector-index")
+  public ResponseEntity<Map<String, Boolean>> vectorIndexStatus() {
+    return ResponseEntity.ok(Map.of("rebuilding", vectorIndexService.isRebuilding()));
+  }
+
+  @PostMapping("/embedding-store/snapshot")
+  public ResponseEntity<Map<String, Boolean>> snapshotEmbeddingStore() throws IOException {
+    boolean saved = snapshotService.save();
+    return ResponseEntity.status(saved ? HttpStatus.OK : HttpStatus.CONFLICT).body(Map.of("saved", saved));
+  }
+}
@@ -1,18 +1,27 @@
 package edu.xkollar3.contextual_retrieval_repository.api;
 
 import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.UUID;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import edu.xkollar3.contextual_retrieval_repository.service.DocumentService;
+import edu.xkollar3.contextual_retrieval_repository.service.IngestionJobProgress;
+import edu.xkollar3.contextual_retrieval_repository.service.IngestionJobService;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 @RestController
@@ -20,19 +29,62 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DocumentApi {
 
+  private static final Duration STREAM_TIMEOUT = Duration.ofMinutes(5);
+
   private final DocumentService documentService;
+  private final IngestionJobService ingestionJobService;
+  private final MeterRegistry meterRegistry;
 
   @Autowired
-  public DocumentApi(DocumentService documentService) {
+  public DocumentApi(DocumentService documentService, IngestionJobService ingestionJobService,
+      MeterRegistry meterRegistry) {
     this.documentService = documentService;
+    this.ingestionJobService = ingestionJobService;
+    this.meterRegistry = meterRegistry;
   }
 
   @PostMapping
-  public ResponseEntity<String> uploadDocument(
+  public ResponseEntity<IngestionJobProgress> uploadDocument(
       @RequestParam("file") MultipartFile file,
       @RequestParam("documentName") String documentName) throws IOException {
-    documentService.uploadDocument(file, documentName);
-    return ResponseEntity.status(HttpStatus.CREATED).body("Document uploaded successfully");
+    IngestionJobProgress job = ingestionJobService.submit(file, documentName);
+    return ResponseEntity.status(HttpStatus.ACCEPTED)
+        .location(URI.create("/api/documents/jobs/" + job.jobId()))
+        .body(job);
+  }
+
+  /**
+   * Replaces the content of a document, chunks that did not change keep their
+   * context and vector.
+   */
+  @PostMapping("/{documentId}/reindex")
+  public ResponseEntity<IngestionJobProgress> reindexDocument(
+      @PathVariable("documentId") UUID documentId,
+      @RequestParam("file") MultipartFile file) throws IOException {
+    try {
+      return ingestionJobService.reindex(documentId, file)
+          .map(job -> ResponseEntity.status(HttpStatus.ACCEPTED)
+              .location(URI.create("/api/documents/jobs/" + job.jobId()))
+              .body(job))
+          .orElse(ResponseEntity.notFound().build());
+    } catch (IllegalStateException e) {
+      log.warn("Rejecting reindex of document {}: {}", documentId, e.getMessage());
+      return ResponseEntity.status(HttpStatus.CONFLICT).build();
+    }
+  }
+
+  @GetMapping("/jobs/{jobId}")
+  public ResponseEntity<IngestionJobProgress> getJob(@PathVariable("jobId") UUID jobId) {
+    return ingestionJobService.getProgress(jobId)
+        .map(ResponseEntity::ok)
+        .orElse(ResponseEntity.notFound().build());
+  }
+
+  @PostMapping("/jobs/{jobId}/retry")
+  public ResponseEntity<IngestionJobProgress> retryJob(@PathVariable("jobId") UUID jobId) {
+    return ingestionJobService.retry(jobId)
+        .map(job -> ResponseEntity.status(HttpStatus.ACCEPTED).body(job))
+        .orElse(ResponseEntity.notFound().build());
   }
 
   @GetMapping("/query")
@@ -40,4 +92,12 @@ public class DocumentApi {
     String answer = documentService.query(query);
     return ResponseEntity.ok(answer);
   }
+
+  @GetMapping(value = "/query/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter queryStream(@RequestParam("query") String query) {
+    SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT.toMillis());
+    SseAnswerStream stream = new SseAnswerStream(emitter, meterRegistry);
+    Thread.ofVirtual().name("query-stream").start(() -> documentService.queryStreaming(query, stream));
+    return emitter;
+  }
 }
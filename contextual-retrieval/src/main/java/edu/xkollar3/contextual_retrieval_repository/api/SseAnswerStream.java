@@ -0,0 +1,120 @@
+package edu.xkollar3.contextual_retrieval_repository.api;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import edu.xkollar3.contextual_retrieval_repository.service.AnswerStream;
+import edu.xkollar3.contextual_retrieval_repository.service.RetrievedChunk;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends a streamed answer as server-sent events: one sources event, a token
+ * event per generated piece, then done or error. Time to the first token and
+ * to the end of the answer are measured from the arrival of the request.
+ * Generation is cancelled when the client disconnects or the emitter times
+ * out before the answer is done.
+ */
+@Slf4j
+class SseAnswerStream implements AnswerStream {
+
+  private final SseEmitter emitter;
+  private final long start = System.nanoTime();
+  private final Timer timeToFirstToken;
+  private final Timer duration;
+  private final AtomicBoolean firstToken = new AtomicBoolean(true);
+  private final AtomicBoolean open = new AtomicBoolean(true);
+  private final AtomicReference<Runnable> cancel = new AtomicReference<>();
+
+  SseAnswerStream(SseEmitter emitter, MeterRegistry meterRegistry) {
+    this.emitter = emitter;
+    this.timeToFirstToken = Timer.builder("answer.time.to.first.token")
+        .description("Time from the request to the first streamed token of the answer")
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(meterRegistry);
+    this.duration = Timer.builder("answer.stream.duration")
+        .description("Time from the request to the end of the streamed answer")
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(meterRegistry);
+    emitter.onCompletion(this::close);
+    emitter.onTimeout(this::close);
+    emitter.onError(error -> close());
+  }
+
+  @Override
+  public void sources(List<RetrievedChunk> sources) {
+    send("sources", sources);
+  }
+
+  @Override
+  public void token(String token) {
+    if (firstToken.compareAndSet(true, false)) {
+      timeToFirstToken.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+    send("token", token);
+  }
+
+  @Override
+  public void complete() {
+    duration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    send("done", "");
+    finish();
+    emitter.complete();
+  }
+
+  @Override
+  public void error(Throwable error) {
+    send("error", "Error processing query: " + error.getMessage());
+    finish();
+    emitter.complete();
+  }
+
+  @Override
+  public void onCancel(Runnable cancel) {
+    this.cancel.set(cancel);
+    if (!open.get()) {
+      cancelGeneration();
+    }
+  }
+
+  private void send(String event, Object data) {
+    if (!open.get()) {
+      return;
+    }
+    try {
+      emitter.send(SseEmitter.event().name(event).data(data));
+    } catch (IOException | IllegalStateException e) {
+      // client went away, the rest of the answer is dropped
+      log.debug("Answer stream closed by the client", e);
+      close();
+    }
+  }
+
+  /**
+   * The answer is done, there is nothing left to cancel.
+   */
+  private void finish() {
+    cancel.set(null);
+    open.set(false);
+  }
+
+  private void close() {
+    if (open.compareAndSet(true, false)) {
+      cancelGeneration();
+    }
+  }
+
+  private void cancelGeneration() {
+    Runnable action = cancel.getAndSet(null);
+    if (action != null) {
+      log.debug("Cancelling the generation of an answer nobody receives");
+      action.run();
+    }
+  }
+}
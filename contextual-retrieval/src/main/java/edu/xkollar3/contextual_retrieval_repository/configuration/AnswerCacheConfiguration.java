@@ -0,0 +1,21 @@
+package edu.xkollar3.contextual_retrieval_repository.configuration;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Data;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "answer-cache")
+public class AnswerCacheConfiguration {
+
+  private Boolean enabled = true;
+  // minimal cosine similarity of two query embeddings to serve the cached answer
+  private Double similarityThreshold = 0.95;
+  // answers kept in memory, the least recently used ones are evicted first
+  private Integer maxSize = 1_000;
+  private Duration ttl = Duration.ofHours(1);
+}
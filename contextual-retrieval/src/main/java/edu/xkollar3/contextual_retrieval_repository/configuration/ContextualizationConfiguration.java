@@ -0,0 +1,25 @@
+package edu.xkollar3.contextual_retrieval_repository.configuration;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Data;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "contextualization")
+public class ContextualizationConfiguration {
+
+  // upper bound of chat calls in flight at the same time for the whole application
+  private Integer maxConcurrency = 8;
+  // provider token per minute limit the scheduler keeps under
+  private Long tokensPerMinute = 200_000L;
+  // rough number of tokens generated per chunk context, counted into the budget
+  private Integer expectedOutputTokens = 100;
+  // how many times a throttled or otherwise retriable call is repeated
+  private Integer maxRetries = 5;
+  private Duration initialBackoff = Duration.ofSeconds(2);
+  private Duration maxBackoff = Duration.ofSeconds(60);
+}
@@ -45,6 +45,7 @@ public class DatabaseInitialization {
               + "search_vector tsvector, "
               + "chunk_index INTEGER NOT NULL, "
               + "embedding_id UUID, "
+              + "content_hash CHAR(64), "
               + "FOREIGN KEY (document_id) REFERENCES documents(id) ON DELETE CASCADE"
               + ")");
       log.info("DocumentChunks table created successfully");
@@ -57,6 +58,10 @@ public class DatabaseInitialization {
       statement.execute(
           "CREATE OR REPLACE FUNCTION update_document_chunk_search_vector() RETURNS trigger AS $$ "
               + "BEGIN "
+              // bulk inserts compute the vector for all rows of a document at once
+              + "  IF TG_OP = 'INSERT' AND new.search_vector IS NOT NULL THEN "
+              + "    return new; "
+              + "  END IF; "
               + "  new.search_vector := setweight(to_tsvector(coalesce((SELECT name FROM documents WHERE id = new.document_id), '')), 'A') || "
               + "      setweight(to_tsvector(coalesce(new.contextualized_text, '')), 'B'); "
               + "  return new; "
@@ -68,12 +73,83 @@ public class DatabaseInitialization {
           "DROP TRIGGER IF EXISTS trg_update_document_chunk_search_vector ON document_chunks");
       log.info("Dropped existing trigger if it exists");
 
+      // only changes of the indexed text recompute the vector, not renumbering of chunks on reindex
       statement.execute(
           "CREATE TRIGGER trg_update_document_chunk_search_vector "
-              + "BEFORE INSERT OR UPDATE ON document_chunks "
+              + "BEFORE INSERT OR UPDATE OF document_id, contextualized_text ON document_chunks "
               + "FOR EACH ROW EXECUTE FUNCTION update_document_chunk_search_vector()");
       log.info("Trigger trg_update_document_chunk_search_vector created successfully");
 
+      // fingerprint of the chunk content that reindexing diffs on, chunks stored before it existed get it here
+      statement.execute("ALTER TABLE document_chunks ADD COLUMN IF NOT EXISTS content_hash CHAR(64)");
+      int fingerprinted = statement.executeUpdate(
+          "UPDATE document_chunks SET content_hash = encode(sha256(convert_to(content, 'UTF8')), 'hex') "
+              + "WHERE content_hash IS NULL");
+      log.info("Content hash column ready, {} existing chunks fingerprinted", fingerprinted);
+
+      statement.execute(
+          "CREATE TABLE IF NOT EXISTS ingestion_jobs ("
+              + "id UUID PRIMARY KEY, "
+              + "document_id UUID NOT NULL, "
+              + "state VARCHAR(32) NOT NULL, "
+              + "total_chunks INTEGER NOT NULL DEFAULT 0, "
+              + "processed_chunks INTEGER NOT NULL DEFAULT 0, "
+              + "processed_chunks_at_start INTEGER NOT NULL DEFAULT 0, "
+              + "failed_chunks INTEGER NOT NULL DEFAULT 0, "
+              + "error TEXT, "
+              + "created_at TIMESTAMP WITH TIME ZONE NOT NULL, "
+              + "started_at TIMESTAMP WITH TIME ZONE, "
+              + "finished_at TIMESTAMP WITH TIME ZONE, "
+              + "FOREIGN KEY (document_id) REFERENCES documents(id) ON DELETE CASCADE"
+              + ")");
+      log.info("IngestionJobs table created successfully");
+
+      // at most one unfinished job per document, concurrent reindexes would
+      // park, renumber and delete the chunks of the document at the same time
+      statement.execute(
+          "CREATE UNIQUE INDEX IF NOT EXISTS uq_ingestion_jobs_unfinished_document_id ON ingestion_jobs (document_id) "
+              + "WHERE state IN ('QUEUED', 'RUNNING')");
+      log.info("Unique index created successfully on ingestion_jobs document_id of unfinished jobs");
+
+      statement.execute(
+          "CREATE INDEX IF NOT EXISTS idx_document_chunks_document_id ON document_chunks (document_id)");
+      log.info("Index created successfully on document_chunks document_id");
+
+      // reindexes before the unique index could leave superseded chunks next to
+      // new ones under the same index, which of them is stale cannot be told
+      // from the rows, so all of them are parked until the document's next run
+      int parked = statement.executeUpdate(
+          "UPDATE document_chunks dc SET chunk_index = parked.chunk_index FROM ("
+              + "SELECT d.id, least(m.min_index, 0) "
+              + "  - row_number() OVER (PARTITION BY d.document_id ORDER BY d.chunk_index, d.id) AS chunk_index "
+              + "FROM document_chunks d "
+              + "JOIN (SELECT document_id, min(chunk_index) AS min_index FROM document_chunks GROUP BY document_id) m "
+              + "  ON m.document_id = d.document_id "
+              + "WHERE (d.document_id, d.chunk_index) IN (SELECT document_id, chunk_index FROM document_chunks "
+              + "  GROUP BY document_id, chunk_index HAVING count(*) > 1)"
+              + ") parked WHERE dc.id = parked.id");
+      statement.execute(
+          "CREATE UNIQUE INDEX IF NOT EXISTS uq_document_chunks_document_id_chunk_index "
+              + "ON document_chunks (document_id, chunk_index)");
+      log.info("Unique index created successfully on document_chunks document_id and chunk_index, "
+          + "{} chunks sharing an index parked", parked);
+
+      statement.execute(
+          "CREATE TABLE IF NOT EXISTS contextualization_cache ("
+              + "cache_key CHAR(64) PRIMARY KEY, "
+              + "context TEXT NOT NULL, "
+              + "created_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now()"
+              + ")");
+      log.info("ContextualizationCache table created successfully");
+
+      statement.execute(
+          "CREATE TABLE IF NOT EXISTS embedding_cache ("
+              + "cache_key CHAR(64) PRIMARY KEY, "
+              + "embedding REAL[] NOT NULL, "
+              + "created_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now()"
+              + ")");
+      log.info("EmbeddingCache table created successfully");
+
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
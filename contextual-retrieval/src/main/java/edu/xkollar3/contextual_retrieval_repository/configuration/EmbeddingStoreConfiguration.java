@@ -0,0 +1,28 @@
+package edu.xkollar3.contextual_retrieval_repository.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Data;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "embedding-store")
+public class EmbeddingStoreConfiguration {
+
+  public enum Type {
+    PGVECTOR, HNSW
+  }
+
+  // pgvector table configured under langchain-store, or an in-process HNSW graph
+  private Type type = Type.PGVECTOR;
+  // neighbours per node, twice as many on the bottom level
+  private Integer hnswM = 16;
+  // candidates considered while linking a new embedding
+  private Integer hnswEfConstruction = 100;
+  // candidates considered by a search, recall/latency trade off
+  private Integer hnswEfSearch = 64;
+  // loaded on startup when present and written on shutdown, empty to keep the
+  // graph in memory only
+  private String hnswSnapshotPath = System.getProperty("java.io.tmpdir") + "/contextual-retrieval-hnsw.bin";
+}
@@ -0,0 +1,29 @@
+package edu.xkollar3.contextual_retrieval_repository.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import lombok.Data;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "ingestion")
+public class IngestionConfiguration {
+
+  // how many contextualized segments are sent to the embedding model and the
+  // embedding store in a single call
+  private Integer embeddingBatchSize = 64;
+  // background workers, each runs one ingestion job at a time
+  private Integer workerThreads = 2;
+  // uploads are kept here until their job completes so unfinished jobs can be resumed
+  private String spoolDirectory = System.getProperty("java.io.tmpdir") + "/contextual-retrieval-spool";
+  // uploads bigger than this are parsed and split as a stream instead of in memory
+  private DataSize streamingThreshold = DataSize.ofMegabytes(20);
+  // characters preceding a window that are added to its contextualization prompt
+  private Integer streamingContextChars = 20_000;
+  // windows the parser may run ahead of the contextualize/embed stages
+  private Integer streamingQueueWindows = 2;
+  // reuse generated contexts and vectors of identical content across uploads
+  private Boolean cacheEnabled = true;
+}
@@ -1,47 +1,122 @@
 package edu.xkollar3.contextual_retrieval_repository.configuration;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import com.zaxxer.hikari.HikariDataSource;
+
 import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.TokenCountEstimator;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.model.openai.OpenAiChatModelName;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModelName;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration.HybridMode;
+import edu.xkollar3.contextual_retrieval_repository.repository.HnswEmbeddingStore;
+import edu.xkollar3.contextual_retrieval_repository.repository.VectorIndexRepository;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
 // TODO: move
 @Configuration
 @Slf4j
 public class LangchainConfiguration {
+
+  // not a bean, a second DataSource bean would turn off the auto-configured one
+  private HikariDataSource storeDataSource;
+
   @Bean
-  public EmbeddingStore<TextSegment> embeddingStore(PgVectorStoreConfiguration configuration,
+  public EmbeddingStore<TextSegment> embeddingStore(EmbeddingStoreConfiguration storeConfiguration,
+      PgVectorStoreConfiguration configuration, RetrievalConfiguration retrievalConfiguration,
       EmbeddingModel openAiEmbeddingModel) {
-    return PgVectorEmbeddingStore.builder()
-        .host(configuration.getHostname())
-        .port(configuration.getPort())
-        .user(configuration.getUsername())
-        .password(configuration.getPassword())
+    if (storeConfiguration.getType() == EmbeddingStoreConfiguration.Type.HNSW) {
+      if (retrievalConfiguration.getHybridMode() == HybridMode.DATABASE) {
+        throw new IllegalStateException("retrieval.hybrid-mode=database needs the pgvector embedding store");
+      }
+      if (configuration.getQuantization() != PgVectorStoreConfiguration.Quantization.NONE) {
+        throw new IllegalStateException("langchain-store.quantization needs the pgvector embedding store");
+      }
+      return hnswEmbeddingStore(storeConfiguration, openAiEmbeddingModel.dimension());
+    }
+
+    // pooled instead of the store's default data source, so the search tuning
+    // is applied once per connection and not per query
+    HikariDataSource dataSource = new HikariDataSource();
+    dataSource.setPoolName("langchain-store");
+    dataSource.setJdbcUrl("jdbc:postgresql://%s:%d/%s".formatted(configuration.getHostname(), configuration.getPort(),
+        configuration.getDatabase()));
+    dataSource.setUsername(configuration.getUsername());
+    dataSource.setPassword(configuration.getPassword());
+    dataSource.setConnectionInitSql(VectorIndexRepository.searchSettings(configuration));
+    storeDataSource = dataSource;
+
+    return PgVectorEmbeddingStore.datasourceBuilder()
+        .datasource(dataSource)
         .dimension(openAiEmbeddingModel.dimension())
         .table(configuration.getEmbeddingTableName())
-        .database(configuration.getDatabase())
         .createTable(true)
         .build();
   }
 
+  // the embedding store bean is destroyed before its configuration
+  @PreDestroy
+  public void closeStoreDataSource() {
+    if (storeDataSource != null) {
+      storeDataSource.close();
+    }
+  }
+
+  private HnswEmbeddingStore hnswEmbeddingStore(EmbeddingStoreConfiguration configuration, int dimension) {
+    String snapshotPath = configuration.getHnswSnapshotPath();
+    if (snapshotPath != null && !snapshotPath.isBlank() && Files.exists(Path.of(snapshotPath))) {
+      try {
+        HnswEmbeddingStore store = HnswEmbeddingStore.loadSnapshot(Path.of(snapshotPath),
+            configuration.getHnswEfSearch());
+        if (store.dimension() == dimension) {
+          return store;
+        }
+        log.warn("Ignoring HNSW snapshot {} with dimension {}, the embedding model has {}", snapshotPath,
+            store.dimension(), dimension);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Loading HNSW snapshot " + snapshotPath + " failed", e);
+      }
+    }
+    return new HnswEmbeddingStore(dimension, configuration.getHnswM(), configuration.getHnswEfConstruction(),
+        configuration.getHnswEfSearch());
+  }
+
   @Bean
   public EmbeddingModel embeddingModel(@Value("${openai-api-key}") String apiKey) {
     return OpenAiEmbeddingModel.builder().apiKey(apiKey).modelName(OpenAiEmbeddingModelName.TEXT_EMBEDDING_3_SMALL)
         .build();
   }
 
+  // counts prompt tokens the way the chat model does
+  @Bean
+  public TokenCountEstimator tokenCountEstimator() {
+    return new OpenAiTokenCountEstimator(OpenAiChatModelName.GPT_4_O_MINI);
+  }
+
   @Bean
   public ChatModel chatModel(@Value("${openai-api-key}") String apiKey) {
     return OpenAiChatModel.builder().apiKey(apiKey).modelName(OpenAiChatModelName.GPT_4_O_MINI).build();
   }
+
+  @Bean
+  public StreamingChatModel streamingChatModel(@Value("${openai-api-key}") String apiKey) {
+    return OpenAiStreamingChatModel.builder().apiKey(apiKey).modelName(OpenAiChatModelName.GPT_4_O_MINI).build();
+  }
 }
@@ -10,6 +10,14 @@ import lombok.Data;
 @ConfigurationProperties(prefix = "langchain-store")
 public class PgVectorStoreConfiguration {
 
+  public enum IndexType {
+    NONE, HNSW, IVFFLAT
+  }
+
+  public enum Quantization {
+    NONE, HALFVEC, BINARY
+  }
+
   private String hostname;
   private Integer port;
   private String username;
@@ -17,4 +25,21 @@ public class PgVectorStoreConfiguration {
   private String database;
   private String embeddingTableName;
   private Integer embeddingDimensions;
+
+  // approximate nearest neighbour index on the embedding column, created on
+  // startup when missing and rebuilt through the admin endpoint after changes
+  private IndexType indexType = IndexType.HNSW;
+  private Integer hnswM = 16;
+  private Integer hnswEfConstruction = 64;
+  private Integer ivfflatLists = 100;
+  // recall/latency trade off of every search, set on each store connection
+  private Integer hnswEfSearch = 40;
+  private Integer ivfflatProbes = 1;
+  // the index is built on a quantized copy of the embeddings, half precision
+  // floats or one bit per dimension, searches read oversampling times more
+  // candidates from it and re-rank them by the full precision embeddings.
+  // Needs embedding-dimensions, hnsw-ef-search must not be below the number
+  // of candidates
+  private Quantization quantization = Quantization.NONE;
+  private Integer quantizationOversampling = 4;
 }
@@ -0,0 +1,63 @@
+package edu.xkollar3.contextual_retrieval_repository.configuration;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Data;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "retrieval")
+public class RetrievalConfiguration {
+
+  public enum RankFunction {
+    TS_RANK, TS_RANK_CD
+  }
+
+  public enum LexicalBackend {
+    // tsvector match and ts_rank in the database
+    POSTGRES,
+    // in-memory BM25 index of the same text, kept up to date by ingestion
+    BM25
+  }
+
+  public enum HybridMode {
+    // both legs run concurrently and are fused in the application
+    APPLICATION,
+    // one statement selects both legs and fuses them in the database
+    DATABASE
+  }
+
+  private HybridMode hybridMode = HybridMode.APPLICATION;
+  // results taken from each leg before fusion
+  private Integer candidatesPerLeg = 5;
+
+  // how long a query waits for each leg of the hybrid search, a leg that is
+  // late or fails is left out and the query is answered from the other one
+  private Duration fullTextTimeout = Duration.ofSeconds(2);
+  private Duration vectorTimeout = Duration.ofSeconds(5);
+  // query embeddings kept in memory, least recently used ones are evicted first
+  private Integer queryEmbeddingCacheSize = 10_000;
+  private Duration queryEmbeddingCacheTtl = Duration.ofHours(1);
+  // reciprocal rank fusion constant k and weights of the legs in the fused score
+  private Double rrfK = 60.0;
+  private Double fullTextWeight = 1.0;
+  private Double vectorWeight = 1.0;
+  // ranking of full-text matches, normalization is the bit mask of ts_rank and
+  // ts_rank_cd, e.g. 1 divides the rank by 1 + log of the chunk length
+  private RankFunction fullTextRankFunction = RankFunction.TS_RANK;
+  private Integer fullTextRankNormalization = 0;
+  // full-text leg of the application hybrid mode, the database mode always
+  // uses POSTGRES
+  private LexicalBackend lexicalBackend = LexicalBackend.POSTGRES;
+  private Double bm25K1 = 1.2;
+  private Double bm25B = 0.75;
+  // loaded on startup instead of indexing all chunks again, written on shutdown
+  private String bm25IndexPath = System.getProperty("java.io.tmpdir") + "/contextual-retrieval-bm25.bin";
+  // tokens of retrieved text put into the answer prompt, passages are taken best first while they fit
+  private Integer contextTokenBudget = 3000;
+  // cosine similarity above which a passage repeats one already in the prompt and is left out
+  private Double contextDuplicateSimilarity = 0.95;
+}
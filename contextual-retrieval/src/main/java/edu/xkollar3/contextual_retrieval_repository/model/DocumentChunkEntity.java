@@ -39,4 +39,7 @@ public class DocumentChunkEntity {
 
   @Column(name = "contextualized_text", columnDefinition = "TEXT", nullable = true)
   private String contextualizedText;
+
+  @Column(name = "content_hash", columnDefinition = "CHAR(64)", nullable = true)
+  private String contentHash;
 }
@@ -0,0 +1,60 @@
+package edu.xkollar3.contextual_retrieval_repository.model;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+@Entity
+@Table(name = "ingestion_jobs")
+@Getter
+@Setter
+public class IngestionJobEntity {
+
+  // assigned up front, the spool file of the upload is named after it
+  @Id
+  private UUID id;
+
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn(name = "document_id", nullable = false)
+  private DocumentEntity document;
+
+  @Enumerated(EnumType.STRING)
+  @Column(name = "state", length = 32, nullable = false)
+  private IngestionJobState state;
+
+  @Column(name = "total_chunks", nullable = false)
+  private Integer totalChunks = 0;
+
+  @Column(name = "processed_chunks", nullable = false)
+  private Integer processedChunks = 0;
+
+  // chunks already done when the current run started, used for the throughput of a resumed job
+  @Column(name = "processed_chunks_at_start", nullable = false)
+  private Integer processedChunksAtStart = 0;
+
+  @Column(name = "failed_chunks", nullable = false)
+  private Integer failedChunks = 0;
+
+  @Column(name = "error", columnDefinition = "TEXT", nullable = true)
+  private String error;
+
+  @Column(name = "created_at", nullable = false)
+  private Instant createdAt;
+
+  @Column(name = "started_at", nullable = true)
+  private Instant startedAt;
+
+  @Column(name = "finished_at", nullable = true)
+  private Instant finishedAt;
+}
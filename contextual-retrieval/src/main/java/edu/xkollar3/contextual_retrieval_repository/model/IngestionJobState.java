@@ -0,0 +1,8 @@
+package edu.xkollar3.contextual_retrieval_repository.model;
+
+public enum IngestionJobState {
+  QUEUED,
+  RUNNING,
+  COMPLETED,
+  FAILED
+}
@@ -0,0 +1,419 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory inverted index ranking chunks with Okapi BM25.
+ *
+ * Every term has a postings list of chunk numbers and term frequencies in
+ * growing int arrays, chunk numbers are assigned in insertion order so the
+ * lists stay sorted without any work. Replaced or removed chunks are marked
+ * deleted and skipped while scoring, once they are a quarter of the index, and
+ * when it is saved, they are dropped from the postings and the remaining
+ * chunks are numbered anew.
+ *
+ * Terms are lower cased runs of letters and digits without English stop
+ * words and with a minimal plural stemming, close enough to the english text
+ * search configuration of the database for the two to be compared.
+ */
+@Slf4j
+public class Bm25Index {
+
+  private static final int MAGIC = 0x424D3235;
+  private static final int VERSION = 1;
+  private static final int MAX_TERM_LENGTH = 64;
+  // deleted chunks tolerated before compacting, small indexes are not compacted on every delete
+  private static final int MIN_DELETED_TO_COMPACT = 1024;
+  private static final Set<String> STOP_WORDS = Set.of("a", "an", "and", "are", "as", "at", "be", "but", "by",
+      "for", "from", "has", "have", "he", "her", "his", "i", "if", "in", "into", "is", "it", "its", "no", "not",
+      "of", "on", "or", "our", "she", "so", "such", "that", "the", "their", "then", "there", "these", "they",
+      "this", "to", "was", "we", "were", "what", "when", "which", "who", "will", "with", "you", "your");
+
+  private final float k1;
+  private final float b;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // score accumulators of finished searches, retrieval runs on virtual threads
+  // so a thread local would allocate one per search
+  private final Queue<float[]> scorePool = new ConcurrentLinkedQueue<>();
+
+  private final Map<String, Postings> postings = new HashMap<>();
+  private final Map<UUID, Integer> chunksById = new HashMap<>();
+  private long[] idBits = new long[1024];
+  private int[] lengths = new int[512];
+  private final BitSet deleted = new BitSet();
+  private int chunkCount;
+  private int deletedCount;
+  private long liveLength;
+
+  /**
+   * @param k1 term frequency saturation, usually 1.2
+   * @param b  length normalization, 0 turns it off, usually 0.75
+   */
+  public Bm25Index(float k1, float b) {
+    this.k1 = k1;
+    this.b = b;
+  }
+
+  /**
+   * @return number of searchable chunks
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return chunksById.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return embedding ids of the searchable chunks
+   */
+  public Set<UUID> ids() {
+    lock.readLock().lock();
+    try {
+      return new HashSet<>(chunksById.keySet());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes the text of a chunk, replacing the previous text of the same
+   * embedding id.
+   */
+  public void add(UUID embeddingId, String text) {
+    Map<String, Integer> frequencies = new HashMap<>();
+    int length = tokenize(text, term -> frequencies.merge(term, 1, Integer::sum));
+
+    lock.writeLock().lock();
+    try {
+      removeLocked(embeddingId);
+      int chunk = chunkCount++;
+      if (chunk == lengths.length) {
+        lengths = Arrays.copyOf(lengths, chunk * 2);
+        idBits = Arrays.copyOf(idBits, chunk * 4);
+      }
+      idBits[2 * chunk] = embeddingId.getMostSignificantBits();
+      idBits[2 * chunk + 1] = embeddingId.getLeastSignificantBits();
+      lengths[chunk] = length;
+      liveLength += length;
+      chunksById.put(embeddingId, chunk);
+      frequencies.forEach((term, frequency) -> postings.computeIfAbsent(term, key -> new Postings())
+          .add(chunk, frequency));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void remove(UUID embeddingId) {
+    lock.writeLock().lock();
+    try {
+      removeLocked(embeddingId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return up to k chunks containing any of the query terms, best first
+   */
+  public List<Bm25Hit> search(String query, int k) {
+    Map<String, Integer> queryTerms = new HashMap<>();
+    tokenize(query, term -> queryTerms.merge(term, 1, Integer::sum));
+
+    float[] chunkScores = scorePool.poll();
+    lock.readLock().lock();
+    try {
+      int live = chunksById.size();
+      if (live == 0 || queryTerms.isEmpty() || k <= 0) {
+        return List.of();
+      }
+      float averageLength = Math.max((float) liveLength / live, 1);
+      if (chunkScores == null || chunkScores.length < chunkCount) {
+        chunkScores = new float[Math.max(chunkCount, chunkScores == null ? 0 : chunkScores.length * 2)];
+      }
+
+      // term at a time, only the touched chunks are ranked and reset
+      int[] touched = new int[64];
+      int touchedCount = 0;
+      for (Map.Entry<String, Integer> queryTerm : queryTerms.entrySet()) {
+        Postings termPostings = postings.get(queryTerm.getKey());
+        if (termPostings == null) {
+          continue;
+        }
+        // document frequency includes deleted chunks until the next compaction,
+        // kept positive so a touched chunk never has a zero score
+        float idf = Math.max((float) Math.log(1 + (live - termPostings.size + 0.5) / (termPostings.size + 0.5)),
+            1e-6f);
+        float weight = idf * queryTerm.getValue();
+        for (int i = 0; i < termPostings.size; i++) {
+          int chunk = termPostings.chunks[i];
+          if (deleted.get(chunk)) {
+            continue;
+          }
+          int frequency = termPostings.frequencies[i];
+          float norm = k1 * (1 - b + b * lengths[chunk] / averageLength);
+          if (chunkScores[chunk] == 0) {
+            if (touchedCount == touched.length) {
+              touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = chunk;
+          }
+          chunkScores[chunk] += weight * frequency * (k1 + 1) / (frequency + norm);
+        }
+      }
+
+      DistanceHeap best = DistanceHeap.farthestFirst(k + 1);
+      for (int i = 0; i < touchedCount; i++) {
+        int chunk = touched[i];
+        // negated so the heap keeps the highest scores
+        best.push(chunk, -chunkScores[chunk]);
+        if (best.size() > k) {
+          best.pop();
+        }
+        chunkScores[chunk] = 0;
+      }
+
+      Bm25Hit[] hits = new Bm25Hit[best.size()];
+      for (int i = hits.length - 1; i >= 0; i--) {
+        float score = -best.peekDistance();
+        int chunk = best.pop();
+        hits[i] = new Bm25Hit(new UUID(idBits[2 * chunk], idBits[2 * chunk + 1]), score);
+      }
+      return List.of(hits);
+    } finally {
+      lock.readLock().unlock();
+      // every touched score was reset, the array is all zeros again
+      if (chunkScores != null) {
+        scorePool.offer(chunkScores);
+      }
+    }
+  }
+
+  /**
+   * Compacts the index and writes the chunks and their postings to a temporary
+   * file next to the target and moves it in place.
+   */
+  public void save(Path path) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+    int saved;
+    lock.writeLock().lock();
+    try {
+      compactLocked();
+      // downgraded, searches go on while the file is written
+      lock.readLock().lock();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary),
+        1 << 16))) {
+      saved = chunkCount;
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(saved);
+      for (int chunk = 0; chunk < chunkCount; chunk++) {
+        out.writeLong(idBits[2 * chunk]);
+        out.writeLong(idBits[2 * chunk + 1]);
+        out.writeInt(lengths[chunk]);
+      }
+
+      out.writeInt(postings.size());
+      for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+        Postings termPostings = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeInt(termPostings.size);
+        for (int i = 0; i < termPostings.size; i++) {
+          out.writeInt(termPostings.chunks[i]);
+          out.writeInt(termPostings.frequencies[i]);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.info("Saved BM25 index with {} chunks to {}", saved, path);
+  }
+
+  public static Bm25Index load(Path path, float k1, float b) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a BM25 index: " + path);
+      }
+      Bm25Index index = new Bm25Index(k1, b);
+      int chunks = in.readInt();
+      index.idBits = new long[Math.max(2 * chunks, 2)];
+      index.lengths = new int[Math.max(chunks, 1)];
+      for (int chunk = 0; chunk < chunks; chunk++) {
+        long mostSignificantBits = in.readLong();
+        long leastSignificantBits = in.readLong();
+        index.idBits[2 * chunk] = mostSignificantBits;
+        index.idBits[2 * chunk + 1] = leastSignificantBits;
+        index.lengths[chunk] = in.readInt();
+        index.liveLength += index.lengths[chunk];
+        index.chunksById.put(new UUID(mostSignificantBits, leastSignificantBits), chunk);
+      }
+      index.chunkCount = chunks;
+
+      int terms = in.readInt();
+      for (int term = 0; term < terms; term++) {
+        String key = in.readUTF();
+        int size = in.readInt();
+        Postings termPostings = new Postings(size);
+        for (int i = 0; i < size; i++) {
+          termPostings.add(in.readInt(), in.readInt());
+        }
+        index.postings.put(key, termPostings);
+      }
+      log.info("Loaded BM25 index with {} chunks from {}", chunks, path);
+      return index;
+    }
+  }
+
+  /**
+   * Calls the consumer for every term of the text.
+   *
+   * @return number of terms
+   */
+  static int tokenize(String text, Consumer<String> consumer) {
+    int count = 0;
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (wordCharacter && start < 0) {
+        start = i;
+      } else if (!wordCharacter && start >= 0) {
+        String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+        start = -1;
+        if (term.length() <= MAX_TERM_LENGTH && !STOP_WORDS.contains(term)) {
+          consumer.accept(stem(term));
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  // plural forms only, e.g. queries -> query, boxes -> box, chunks -> chunk
+  private static String stem(String term) {
+    int length = term.length();
+    if (length > 4 && term.endsWith("ies") && !term.endsWith("eies") && !term.endsWith("aies")) {
+      return term.substring(0, length - 3) + "y";
+    }
+    if (length > 4 && (term.endsWith("xes") || term.endsWith("ches") || term.endsWith("shes")
+        || term.endsWith("sses"))) {
+      return term.substring(0, length - 2);
+    }
+    if (length > 3 && term.endsWith("s") && !term.endsWith("ss") && !term.endsWith("us") && !term.endsWith("is")) {
+      return term.substring(0, length - 1);
+    }
+    return term;
+  }
+
+  private void removeLocked(UUID embeddingId) {
+    Integer previous = chunksById.remove(embeddingId);
+    if (previous != null) {
+      deleted.set(previous);
+      deletedCount++;
+      liveLength -= lengths[previous];
+      if (deletedCount >= MIN_DELETED_TO_COMPACT && deletedCount * 4 >= chunkCount) {
+        compactLocked();
+      }
+    }
+  }
+
+  /**
+   * Drops deleted chunks from the postings and numbers the others anew in the
+   * same order, so the postings stay sorted.
+   */
+  private void compactLocked() {
+    if (deletedCount == 0) {
+      return;
+    }
+    int[] renumbered = new int[chunkCount];
+    int live = 0;
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      if (deleted.get(chunk)) {
+        renumbered[chunk] = -1;
+        continue;
+      }
+      renumbered[chunk] = live;
+      idBits[2 * live] = idBits[2 * chunk];
+      idBits[2 * live + 1] = idBits[2 * chunk + 1];
+      lengths[live] = lengths[chunk];
+      live++;
+    }
+    chunksById.replaceAll((embeddingId, chunk) -> renumbered[chunk]);
+
+    postings.values().removeIf(termPostings -> {
+      int size = 0;
+      for (int i = 0; i < termPostings.size; i++) {
+        int chunk = renumbered[termPostings.chunks[i]];
+        if (chunk >= 0) {
+          termPostings.chunks[size] = chunk;
+          termPostings.frequencies[size] = termPostings.frequencies[i];
+          size++;
+        }
+      }
+      termPostings.size = size;
+      return size == 0;
+    });
+
+    log.debug("Compacted BM25 index from {} to {} chunks", chunkCount, live);
+    deleted.clear();
+    deletedCount = 0;
+    chunkCount = live;
+  }
+
+  private static final class Postings {
+
+    private int[] chunks;
+    private int[] frequencies;
+    private int size;
+
+    Postings() {
+      this(4);
+    }
+
+    Postings(int capacity) {
+      chunks = new int[Math.max(capacity, 1)];
+      frequencies = new int[chunks.length];
+    }
+
+    void add(int chunk, int frequency) {
+      if (size == chunks.length) {
+        chunks = Arrays.copyOf(chunks, size * 2);
+        frequencies = Arrays.copyOf(frequencies, size * 2);
+      }
+      chunks[size] = chunk;
+      frequencies[size] = frequency;
+      size++;
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.util.UUID;
+
+/**
+ * Original text of a chunk and its position in the document, what the answer
+ * prompt is assembled from.
+ */
+public record ChunkContent(UUID embeddingId, UUID documentId, int chunkIndex, String content) {
+}
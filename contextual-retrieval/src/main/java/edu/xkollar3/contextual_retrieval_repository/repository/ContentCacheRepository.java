@@ -0,0 +1,89 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.sql.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Plain JDBC on purpose, entries are written with ON CONFLICT DO NOTHING in
+ * batches and looked up by a set of keys, neither of which JPA does well for
+ * assigned ids.
+ */
+@Repository
+public class ContentCacheRepository {
+
+  private final JdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+  @Autowired
+  public ContentCacheRepository(JdbcTemplate jdbcTemplate, NamedParameterJdbcTemplate namedJdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.namedJdbcTemplate = namedJdbcTemplate;
+  }
+
+  public Map<String, String> findContexts(Collection<String> keys) {
+    Map<String, String> contexts = new HashMap<>();
+    if (keys.isEmpty()) {
+      return contexts;
+    }
+    namedJdbcTemplate.query(
+        "SELECT cache_key, context FROM contextualization_cache WHERE cache_key IN (:keys)",
+        new MapSqlParameterSource("keys", keys),
+        rs -> {
+          contexts.put(rs.getString("cache_key"), rs.getString("context"));
+        });
+    return contexts;
+  }
+
+  public void saveContexts(Map<String, String> contexts) {
+    List<Object[]> rows = new ArrayList<>(contexts.size());
+    contexts.forEach((key, context) -> rows.add(new Object[] { key, context }));
+    jdbcTemplate.batchUpdate(
+        "INSERT INTO contextualization_cache (cache_key, context) VALUES (?, ?) ON CONFLICT (cache_key) DO NOTHING",
+        rows);
+  }
+
+  public Map<String, float[]> findEmbeddings(Collection<String> keys) {
+    Map<String, float[]> embeddings = new HashMap<>();
+    if (keys.isEmpty()) {
+      return embeddings;
+    }
+    namedJdbcTemplate.query(
+        "SELECT cache_key, embedding FROM embedding_cache WHERE cache_key IN (:keys)",
+        new MapSqlParameterSource("keys", keys),
+        rs -> {
+          Float[] boxed = (Float[]) rs.getArray("embedding").getArray();
+          float[] vector = new float[boxed.length];
+          for (int i = 0; i < boxed.length; i++) {
+            vector[i] = boxed[i];
+          }
+          embeddings.put(rs.getString("cache_key"), vector);
+        });
+    return embeddings;
+  }
+
+  public void saveEmbeddings(Map<String, float[]> embeddings) {
+    List<Map.Entry<String, float[]>> entries = new ArrayList<>(embeddings.entrySet());
+    jdbcTemplate.batchUpdate(
+        "INSERT INTO embedding_cache (cache_key, embedding) VALUES (?, ?) ON CONFLICT (cache_key) DO NOTHING",
+        entries, entries.size(), (ps, entry) -> {
+          float[] vector = entry.getValue();
+          Float[] boxed = new Float[vector.length];
+          for (int i = 0; i < vector.length; i++) {
+            boxed[i] = vector[i];
+          }
+          Array array = ps.getConnection().createArrayOf("real", boxed);
+          ps.setString(1, entry.getKey());
+          ps.setArray(2, array);
+        });
+  }
+}
@@ -0,0 +1,99 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of (node, distance) pairs over primitive arrays, ordered
+ * nearest first or farthest first.
+ */
+final class DistanceHeap {
+
+  private final boolean farthestFirst;
+  private int[] nodes;
+  private float[] distances;
+  private int size;
+
+  DistanceHeap(int capacity, boolean farthestFirst) {
+    this.farthestFirst = farthestFirst;
+    this.nodes = new int[Math.max(capacity, 4)];
+    this.distances = new float[nodes.length];
+  }
+
+  static DistanceHeap nearestFirst(int capacity) {
+    return new DistanceHeap(capacity, false);
+  }
+
+  static DistanceHeap farthestFirst(int capacity) {
+    return new DistanceHeap(capacity, true);
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int peekNode() {
+    return nodes[0];
+  }
+
+  float peekDistance() {
+    return distances[0];
+  }
+
+  void push(int node, float distance) {
+    if (size == nodes.length) {
+      nodes = Arrays.copyOf(nodes, size * 2);
+      distances = Arrays.copyOf(distances, size * 2);
+    }
+    int index = size++;
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (!before(distance, distances[parent])) {
+        break;
+      }
+      nodes[index] = nodes[parent];
+      distances[index] = distances[parent];
+      index = parent;
+    }
+    nodes[index] = node;
+    distances[index] = distance;
+  }
+
+  /**
+   * Removes the top pair and returns its node.
+   */
+  int pop() {
+    int top = nodes[0];
+    size--;
+    if (size > 0) {
+      int node = nodes[size];
+      float distance = distances[size];
+      int index = 0;
+      while (true) {
+        int child = 2 * index + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && before(distances[child + 1], distances[child])) {
+          child++;
+        }
+        if (!before(distances[child], distance)) {
+          break;
+        }
+        nodes[index] = nodes[child];
+        distances[index] = distances[child];
+        index = child;
+      }
+      nodes[index] = node;
+      distances[index] = distance;
+    }
+    return top;
+  }
+
+  private boolean before(float distance, float other) {
+    return farthestFirst ? distance > other : distance < other;
+  }
+}
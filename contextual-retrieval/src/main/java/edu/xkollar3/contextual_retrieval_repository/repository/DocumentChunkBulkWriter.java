@@ -0,0 +1,191 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentChunkEntity;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bulk insert of document chunks with PostgreSQL COPY.
+ *
+ * Rows are copied into a session temp table and moved into document_chunks
+ * with a single INSERT ... SELECT that computes search_vector itself, the
+ * weighted tsvector of the document name is computed once per call instead of
+ * once per row by the trigger (which skips inserts that already carry a
+ * search_vector).
+ */
+@Repository
+@Slf4j
+public class DocumentChunkBulkWriter {
+
+  private static final String CREATE_STAGING_TABLE = "CREATE TEMP TABLE IF NOT EXISTS document_chunks_staging ("
+      + "id UUID, content TEXT, contextualized_text TEXT, chunk_index INTEGER, embedding_id UUID, content_hash CHAR(64)"
+      + ") ON COMMIT DELETE ROWS";
+
+  private static final String COPY_TO_STAGING = "COPY document_chunks_staging "
+      + "(id, content, contextualized_text, chunk_index, embedding_id, content_hash) FROM STDIN (FORMAT csv)";
+
+  private static final String MOVE_TO_CHUNKS = "INSERT INTO document_chunks "
+      + "(id, document_id, content, contextualized_text, chunk_index, embedding_id, content_hash, search_vector) "
+      + "SELECT s.id, d.id, s.content, s.contextualized_text, s.chunk_index, s.embedding_id, s.content_hash, "
+      + "d.name_vector || setweight(to_tsvector(coalesce(s.contextualized_text, '')), 'B') "
+      + "FROM document_chunks_staging s "
+      + "CROSS JOIN (SELECT id, setweight(to_tsvector(coalesce(name, '')), 'A') AS name_vector "
+      + "FROM documents WHERE id = ?) d";
+
+  private static final String UPDATE_CHUNK_INDEXES = "UPDATE document_chunks dc SET chunk_index = u.chunk_index "
+      + "FROM unnest(?::uuid[], ?::integer[]) AS u(id, chunk_index) WHERE dc.id = u.id";
+
+  // below every index the document has, chunks parked by an earlier run included
+  private static final String PARK_CHUNK_INDEXES = "UPDATE document_chunks SET chunk_index = chunk_index - p.shift "
+      + "FROM (SELECT max(chunk_index) + 1 - least(min(chunk_index), 0) AS shift "
+      + "FROM document_chunks WHERE document_id = ?) p "
+      + "WHERE document_id = ? AND chunk_index >= 0";
+
+  private final DataSource dataSource;
+
+  @Autowired
+  public DocumentChunkBulkWriter(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * Runs on the connection of the surrounding transaction, the staging table
+   * is emptied on its commit.
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void insertAll(UUID documentId, List<DocumentChunkEntity> chunks) {
+    if (chunks.isEmpty()) {
+      return;
+    }
+    Connection connection = DataSourceUtils.getConnection(dataSource);
+    try {
+      try (Statement statement = connection.createStatement()) {
+        statement.execute(CREATE_STAGING_TABLE);
+      }
+
+      long copied = connection.unwrap(PGConnection.class).getCopyAPI()
+          .copyIn(COPY_TO_STAGING, new StringReader(toCsv(chunks)));
+
+      int inserted;
+      try (PreparedStatement statement = connection.prepareStatement(MOVE_TO_CHUNKS)) {
+        statement.setObject(1, documentId);
+        inserted = statement.executeUpdate();
+      }
+      if (inserted != copied) {
+        throw new IllegalStateException("Copied " + copied + " chunks but inserted " + inserted
+            + ", does document " + documentId + " exist?");
+      }
+      log.debug("Bulk inserted {} chunks of document {}", inserted, documentId);
+    } catch (SQLException | IOException e) {
+      throw new IllegalStateException("Bulk insert of document chunks failed", e);
+    } finally {
+      DataSourceUtils.releaseConnection(connection, dataSource);
+    }
+  }
+
+  /**
+   * Moves the chunks of a document to negative chunk indexes, so the chunks of
+   * a new split can take their indexes without a conflict. Kept chunks are
+   * renumbered back, the ones still parked at the end of a run are superseded.
+   *
+   * @return number of parked chunks
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public int parkChunkIndexes(UUID documentId) {
+    Connection connection = DataSourceUtils.getConnection(dataSource);
+    try (PreparedStatement statement = connection.prepareStatement(PARK_CHUNK_INDEXES)) {
+      statement.setObject(1, documentId);
+      statement.setObject(2, documentId);
+      int parked = statement.executeUpdate();
+      log.debug("Parked {} chunks of document {}", parked, documentId);
+      return parked;
+    } catch (SQLException e) {
+      throw new IllegalStateException("Parking document chunks failed", e);
+    } finally {
+      DataSourceUtils.releaseConnection(connection, dataSource);
+    }
+  }
+
+  /**
+   * Renumbers chunks kept by a reindex in a single statement.
+   *
+   * @param chunkIndexes new chunk index by chunk id
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void updateChunkIndexes(Map<UUID, Integer> chunkIndexes) {
+    if (chunkIndexes.isEmpty()) {
+      return;
+    }
+    UUID[] ids = new UUID[chunkIndexes.size()];
+    Integer[] indexes = new Integer[chunkIndexes.size()];
+    int i = 0;
+    for (Map.Entry<UUID, Integer> entry : chunkIndexes.entrySet()) {
+      ids[i] = entry.getKey();
+      indexes[i++] = entry.getValue();
+    }
+
+    Connection connection = DataSourceUtils.getConnection(dataSource);
+    try (PreparedStatement statement = connection.prepareStatement(UPDATE_CHUNK_INDEXES)) {
+      statement.setArray(1, connection.createArrayOf("uuid", ids));
+      statement.setArray(2, connection.createArrayOf("integer", indexes));
+      int updated = statement.executeUpdate();
+      log.debug("Renumbered {} chunks", updated);
+    } catch (SQLException e) {
+      throw new IllegalStateException("Renumbering document chunks failed", e);
+    } finally {
+      DataSourceUtils.releaseConnection(connection, dataSource);
+    }
+  }
+
+  private static String toCsv(List<DocumentChunkEntity> chunks) {
+    StringBuilder csv = new StringBuilder();
+    for (DocumentChunkEntity chunk : chunks) {
+      if (chunk.getId() == null) {
+        chunk.setId(UUID.randomUUID());
+      }
+      csv.append(chunk.getId()).append(',');
+      appendQuoted(csv, chunk.getContent());
+      csv.append(',');
+      appendQuoted(csv, chunk.getContextualizedText());
+      csv.append(',').append(chunk.getChunkIndex());
+      csv.append(',').append(chunk.getEmbeddingId());
+      csv.append(',');
+      // an unquoted empty field is NULL
+      if (chunk.getContentHash() != null) {
+        csv.append(chunk.getContentHash());
+      }
+      csv.append('\n');
+    }
+    return csv.toString();
+  }
+
+  private static void appendQuoted(StringBuilder csv, String value) {
+    csv.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"') {
+        csv.append('"');
+      }
+      csv.append(c);
+    }
+    csv.append('"');
+  }
+}
@@ -6,18 +6,36 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 @Repository
 public interface DocumentChunkRepository extends JpaRepository<DocumentChunkEntity, UUID> {
   List<DocumentChunkEntity> findByDocumentId(UUID documentId);
 
-  @Query(value = """
-      SELECT dc.*
-      FROM document_chunks dc
-      ORDER BY ts_rank(dc.search_vector, websearch_to_tsquery(:query)) DESC
-      LIMIT :k
-      """, nativeQuery = true)
-  List<DocumentChunkEntity> searchByQuery(@Param("query") String query, @Param("k") int k);
+  List<DocumentChunkEntity> findByEmbeddingIdIn(Collection<UUID> embeddingIds);
+
+  long countByEmbeddingIdIn(Collection<UUID> embeddingIds);
+
+  @Query("SELECT dc.embeddingId FROM DocumentChunkEntity dc")
+  List<UUID> findAllEmbeddingIds();
+
+  @Query("""
+      SELECT new edu.xkollar3.contextual_retrieval_repository.repository.StoredChunk(
+        dc.id, dc.chunkIndex, dc.embeddingId, dc.contentHash)
+      FROM DocumentChunkEntity dc WHERE dc.document.id = :documentId ORDER BY dc.chunkIndex
+      """)
+  List<StoredChunk> findStoredChunksByDocumentId(@Param("documentId") UUID documentId);
+
+  @Query("""
+      SELECT new edu.xkollar3.contextual_retrieval_repository.repository.ChunkContent(
+        dc.embeddingId, dc.document.id, dc.chunkIndex, dc.content)
+      FROM DocumentChunkEntity dc WHERE dc.embeddingId IN :embeddingIds
+      """)
+  List<ChunkContent> findChunkContentsByEmbeddingIds(@Param("embeddingIds") Collection<UUID> embeddingIds);
+
+  @Query("SELECT DISTINCT dc.document.id FROM DocumentChunkEntity dc WHERE dc.embeddingId IN :embeddingIds")
+  Set<UUID> findDocumentIdsByEmbeddingIds(@Param("embeddingIds") Collection<UUID> embeddingIds);
 }
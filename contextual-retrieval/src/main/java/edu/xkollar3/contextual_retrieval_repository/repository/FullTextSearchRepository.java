@@ -0,0 +1,105 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Read-only full-text search returning only what retrieval needs, no managed
+ * entities and no contextualized_text on the wire.
+ */
+@Repository
+public class FullTextSearchRepository {
+
+  /**
+   * Only rows matching the query are ranked, the match goes through the GIN
+   * index on search_vector. rankFunction is the name of a RankFunction.
+   */
+  static final String SEARCH = """
+      SELECT dc.id, dc.embedding_id, dc.content, CASE WHEN :rankFunction = 'TS_RANK_CD'
+        THEN ts_rank_cd(dc.search_vector, q, :normalization)
+        ELSE ts_rank(dc.search_vector, q, :normalization) END AS rank
+      FROM document_chunks dc, websearch_to_tsquery(:query) q
+      WHERE dc.search_vector @@ q
+      ORDER BY rank DESC
+      LIMIT :k
+      """;
+
+  private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+  @Autowired
+  public FullTextSearchRepository(NamedParameterJdbcTemplate namedJdbcTemplate) {
+    this.namedJdbcTemplate = namedJdbcTemplate;
+  }
+
+  public List<FullTextHit> search(String query, String rankFunction, int normalization, int k) {
+    MapSqlParameterSource parameters = new MapSqlParameterSource()
+        .addValue("query", query)
+        .addValue("rankFunction", rankFunction)
+        .addValue("normalization", normalization)
+        .addValue("k", k);
+    return namedJdbcTemplate.query(SEARCH, parameters, (rs, rowNum) -> new FullTextHit(
+        rs.getObject("id", UUID.class),
+        rs.getObject("embedding_id", UUID.class),
+        rs.getString("content"),
+        rs.getDouble("rank")));
+  }
+
+  /**
+   * @return chunks of the given embedding ids in no particular order, rank is 0
+   */
+  public List<FullTextHit> findByEmbeddingIds(Collection<UUID> embeddingIds) {
+    if (embeddingIds.isEmpty()) {
+      return List.of();
+    }
+    return namedJdbcTemplate.query("""
+        SELECT dc.id, dc.embedding_id, dc.content FROM document_chunks dc WHERE dc.embedding_id IN (:embeddingIds)
+        """, new MapSqlParameterSource("embeddingIds", embeddingIds), (rs, rowNum) -> new FullTextHit(
+        rs.getObject("id", UUID.class),
+        rs.getObject("embedding_id", UUID.class),
+        rs.getString("content"),
+        0));
+  }
+
+  /**
+   * Passes the embedding id, document name and contextualized text of every
+   * chunk to the consumer, the texts search_vector is computed from.
+   */
+  public void forEachIndexedText(IndexedTextConsumer consumer) {
+    namedJdbcTemplate.getJdbcTemplate().query("""
+        SELECT dc.embedding_id, d.name, dc.contextualized_text
+        FROM document_chunks dc JOIN documents d ON d.id = dc.document_id
+        """, rs -> {
+      consumer.accept(rs.getObject("embedding_id", UUID.class), rs.getString("name"),
+          rs.getString("contextualized_text"));
+    });
+  }
+
+  /**
+   * Like {@link #forEachIndexedText(IndexedTextConsumer)} for the chunks of the
+   * given embedding ids only.
+   */
+  public void forEachIndexedText(Collection<UUID> embeddingIds, IndexedTextConsumer consumer) {
+    if (embeddingIds.isEmpty()) {
+      return;
+    }
+    namedJdbcTemplate.query("""
+        SELECT dc.embedding_id, d.name, dc.contextualized_text
+        FROM document_chunks dc JOIN documents d ON d.id = dc.document_id
+        WHERE dc.embedding_id IN (:embeddingIds)
+        """, new MapSqlParameterSource("embeddingIds", embeddingIds), rs -> {
+      consumer.accept(rs.getObject("embedding_id", UUID.class), rs.getString("name"),
+          rs.getString("contextualized_text"));
+    });
+  }
+
+  @FunctionalInterface
+  public interface IndexedTextConsumer {
+    void accept(UUID embeddingId, String documentName, String contextualizedText);
+  }
+}
@@ -0,0 +1,894 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-process embedding store searching a HNSW graph with cosine similarity.
+ *
+ * Vectors are normalized and kept in OffHeapVectors, the graph, ids and
+ * segments live on the heap. A snapshot file holds the vectors in the same
+ * layout as in memory, loading it maps them instead of reading them, so a
+ * replica is ready as soon as the graph is read.
+ *
+ * Removed or replaced embeddings are only marked deleted, they keep routing
+ * searches through the graph but never show up in results. Once they are a
+ * quarter of the nodes, and when a snapshot is saved, the graph is built again
+ * from the remaining embeddings and the vectors of the old one are freed.
+ * Searches run in parallel, writes are exclusive.
+ */
+@Slf4j
+public class HnswEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+  private static final int MAGIC = 0x484E5357;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 64;
+  // a filtered search looks at this many times more candidates before falling back to an exact scan
+  private static final int FILTER_OVERSAMPLING = 10;
+  // deleted nodes tolerated before rebuilding, small stores are not rebuilt on every delete
+  private static final int MIN_DELETED_TO_COMPACT = 1024;
+
+  private final int dimension;
+  private final int m;
+  private final int efConstruction;
+  private final double levelMultiplier;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // buffers of finished searches, retrieval runs on virtual threads so a
+  // thread local would allocate them again for every search
+  private final Queue<Scratch> scratchPool = new ConcurrentLinkedQueue<>();
+  private final SplittableRandom random = new SplittableRandom(42);
+  private volatile int efSearch;
+
+  private OffHeapVectors vectors;
+  // per node and level the neighbour count followed by the neighbours
+  private List<int[][]> links = new ArrayList<>();
+  private List<String> ids = new ArrayList<>();
+  private List<TextSegment> segments = new ArrayList<>();
+  private Map<String, Integer> nodesById = new HashMap<>();
+  private BitSet deleted = new BitSet();
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+
+  /**
+   * @param m              neighbours per node on upper levels, twice as many on
+   *                       the bottom level
+   * @param efConstruction candidates considered while linking a new node
+   * @param efSearch       candidates considered by a search, at least the
+   *                       number of requested results
+   */
+  public HnswEmbeddingStore(int dimension, int m, int efConstruction, int efSearch) {
+    if (dimension <= 0 || m < 2 || efConstruction < 1 || efSearch < 1) {
+      throw new IllegalArgumentException("Invalid HNSW parameters: dimension=%d, m=%d, efConstruction=%d, efSearch=%d"
+          .formatted(dimension, m, efConstruction, efSearch));
+    }
+    this.dimension = dimension;
+    this.m = m;
+    this.efConstruction = efConstruction;
+    this.efSearch = efSearch;
+    this.levelMultiplier = 1 / Math.log(m);
+    this.vectors = new OffHeapVectors(dimension);
+  }
+
+  public int dimension() {
+    return dimension;
+  }
+
+  public void setEfSearch(int efSearch) {
+    this.efSearch = efSearch;
+  }
+
+  /**
+   * @return number of embeddings that can be found, deleted ones excluded
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return nodesById.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return number of nodes in the graph, deleted ones included
+   */
+  int nodeCount() {
+    lock.readLock().lock();
+    try {
+      return vectors.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return ids of all embeddings that can be found
+   */
+  public Set<String> ids() {
+    lock.readLock().lock();
+    try {
+      return new HashSet<>(nodesById.keySet());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return embeddings of the given ids by id, deleted and unknown ids are left out
+   */
+  public Map<String, float[]> findEmbeddings(Collection<String> ids) {
+    lock.readLock().lock();
+    try {
+      Map<String, float[]> found = new HashMap<>();
+      for (String id : ids) {
+        Integer node = nodesById.get(id);
+        if (node != null) {
+          found.put(id, vectors.get(node));
+        }
+      }
+      return found;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String add(Embedding embedding) {
+    String id = UUID.randomUUID().toString();
+    add(id, embedding);
+    return id;
+  }
+
+  @Override
+  public void add(String id, Embedding embedding) {
+    addAll(List.of(id), List.of(embedding), null);
+  }
+
+  @Override
+  public String add(Embedding embedding, TextSegment textSegment) {
+    String id = UUID.randomUUID().toString();
+    addAll(List.of(id), List.of(embedding), List.of(textSegment));
+    return id;
+  }
+
+  @Override
+  public List<String> addAll(List<Embedding> embeddings) {
+    List<String> newIds = generateIds(embeddings.size());
+    addAll(newIds, embeddings, null);
+    return newIds;
+  }
+
+  @Override
+  public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+    List<String> newIds = generateIds(embeddings.size());
+    addAll(newIds, embeddings, embedded);
+    return newIds;
+  }
+
+  /**
+   * Adds or replaces the embeddings under the given ids.
+   */
+  @Override
+  public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded) {
+    if (ids.size() != embeddings.size() || (embedded != null && embedded.size() != embeddings.size())) {
+      throw new IllegalArgumentException("ids, embeddings and embedded must have the same size");
+    }
+    List<float[]> normalized = new ArrayList<>(embeddings.size());
+    for (Embedding embedding : embeddings) {
+      normalized.add(normalize(embedding.vector()));
+    }
+
+    Scratch scratch = acquireScratch();
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < ids.size(); i++) {
+        insert(ids.get(i), normalized.get(i), embedded == null ? null : embedded.get(i), scratch);
+      }
+      // replaced embeddings are deleted nodes as well
+      compactIfMostlyDeleted(MIN_DELETED_TO_COMPACT, scratch);
+    } finally {
+      lock.writeLock().unlock();
+      scratchPool.offer(scratch);
+    }
+  }
+
+  @Override
+  public void remove(String id) {
+    removeAll(List.of(id));
+  }
+
+  @Override
+  public void removeAll(Collection<String> ids) {
+    Scratch scratch = acquireScratch();
+    lock.writeLock().lock();
+    try {
+      for (String id : ids) {
+        Integer node = nodesById.remove(id);
+        if (node != null) {
+          deleted.set(node);
+        }
+      }
+      compactIfMostlyDeleted(MIN_DELETED_TO_COMPACT, scratch);
+    } finally {
+      lock.writeLock().unlock();
+      scratchPool.offer(scratch);
+    }
+  }
+
+  @Override
+  public void removeAll(Filter filter) {
+    Scratch scratch = acquireScratch();
+    lock.writeLock().lock();
+    try {
+      nodesById.values().removeIf(node -> {
+        TextSegment segment = segments.get(node);
+        if (segment != null && filter.test(segment.metadata())) {
+          deleted.set(node);
+          return true;
+        }
+        return false;
+      });
+      compactIfMostlyDeleted(MIN_DELETED_TO_COMPACT, scratch);
+    } finally {
+      lock.writeLock().unlock();
+      scratchPool.offer(scratch);
+    }
+  }
+
+  @Override
+  public void removeAll() {
+    lock.writeLock().lock();
+    try {
+      vectors.free();
+      vectors = new OffHeapVectors(dimension);
+      links = new ArrayList<>();
+      ids = new ArrayList<>();
+      segments = new ArrayList<>();
+      nodesById = new HashMap<>();
+      deleted = new BitSet();
+      entryPoint = -1;
+      maxLevel = -1;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+    float[] query = normalize(request.queryEmbedding().vector());
+    Filter filter = request.filter();
+    int maxResults = request.maxResults();
+
+    Scratch scratch = acquireScratch();
+    lock.readLock().lock();
+    try {
+      if (entryPoint < 0 || maxResults <= 0) {
+        return new EmbeddingSearchResult<>(List.of());
+      }
+      int ef = Math.max(efSearch, maxResults);
+      if (filter != null) {
+        ef = Math.max(ef, maxResults * FILTER_OVERSAMPLING);
+      }
+
+      int current = entryPoint;
+      for (int level = maxLevel; level > 0; level--) {
+        current = greedyClosest(query, current, level, scratch);
+      }
+      DistanceHeap found = searchLevel(query, current, ef, 0, scratch);
+
+      // farthest first, reversed into nearest first
+      int[] ordered = new int[found.size()];
+      float[] orderedDistances = new float[found.size()];
+      for (int i = ordered.length - 1; i >= 0; i--) {
+        orderedDistances[i] = found.peekDistance();
+        ordered[i] = found.pop();
+      }
+
+      List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(maxResults);
+      int skipped = 0;
+      for (int i = 0; i < ordered.length && matches.size() < maxResults; i++) {
+        if (deleted.get(ordered[i]) || !matchesFilter(ordered[i], filter)) {
+          skipped++;
+          continue;
+        }
+        addMatch(matches, ordered[i], orderedDistances[i], request);
+      }
+      if (skipped > 0 && matches.size() < maxResults && matches.size() < nodesById.size()) {
+        // selective filter or many deleted nodes near the query, the graph
+        // neighbourhood had too few results
+        return new EmbeddingSearchResult<>(exactSearch(query, request, scratch));
+      }
+      return new EmbeddingSearchResult<>(matches);
+    } finally {
+      lock.readLock().unlock();
+      scratchPool.offer(scratch);
+    }
+  }
+
+  /**
+   * Exact search over all stored embeddings, used for filtered searches the
+   * graph could not answer and as the reference in benchmarks.
+   */
+  public EmbeddingSearchResult<TextSegment> exactSearch(EmbeddingSearchRequest request) {
+    Scratch scratch = acquireScratch();
+    lock.readLock().lock();
+    try {
+      return new EmbeddingSearchResult<>(exactSearch(normalize(request.queryEmbedding().vector()), request,
+          scratch));
+    } finally {
+      lock.readLock().unlock();
+      scratchPool.offer(scratch);
+    }
+  }
+
+  /**
+   * Writes the store to a temporary file next to the target and moves it in
+   * place, a reader never sees a partially written snapshot. Deleted nodes are
+   * dropped first when they are a quarter of the nodes, whatever their number.
+   */
+  public void saveSnapshot(Path path) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+    Scratch scratch = acquireScratch();
+    lock.writeLock().lock();
+    try {
+      compactIfMostlyDeleted(1, scratch);
+    } finally {
+      lock.writeLock().unlock();
+      scratchPool.offer(scratch);
+    }
+
+    lock.readLock().lock();
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      int count = vectors.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+          .putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(m).putInt(efConstruction)
+          .putInt(count).putInt(entryPoint).putInt(maxLevel);
+      header.clear();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      vectors.writeTo(channel);
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+          1 << 16));
+      for (int node = 0; node < count; node++) {
+        out.writeBoolean(deleted.get(node));
+        int[][] nodeLinks = links.get(node);
+        out.writeInt(nodeLinks.length);
+        for (int[] levelLinks : nodeLinks) {
+          out.writeInt(levelLinks[0]);
+          for (int i = 1; i <= levelLinks[0]; i++) {
+            out.writeInt(levelLinks[i]);
+          }
+        }
+        writeString(out, ids.get(node));
+        writeSegment(out, segments.get(node));
+      }
+      out.flush();
+    } finally {
+      lock.readLock().unlock();
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.info("Saved HNSW snapshot with {} embeddings to {}", size(), path);
+  }
+
+  /**
+   * Loads a snapshot written by saveSnapshot, the vectors stay memory-mapped
+   * from the file, which must not be changed while the store is in use.
+   */
+  public static HnswEmbeddingStore loadSnapshot(Path path, int efSearch) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+      }
+      header.flip();
+      if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+        throw new IOException("Not a HNSW snapshot: " + path);
+      }
+      int dimension = header.getInt();
+      int m = header.getInt();
+      int efConstruction = header.getInt();
+      int count = header.getInt();
+
+      HnswEmbeddingStore store = new HnswEmbeddingStore(dimension, m, efConstruction, efSearch);
+      store.entryPoint = header.getInt();
+      store.maxLevel = header.getInt();
+      store.vectors.free();
+      store.vectors = OffHeapVectors.map(channel, HEADER_BYTES, dimension, count);
+
+      channel.position(HEADER_BYTES + (long) count * dimension * Float.BYTES);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+      for (int node = 0; node < count; node++) {
+        boolean isDeleted = in.readBoolean();
+        int[][] nodeLinks = new int[in.readInt()][];
+        for (int level = 0; level < nodeLinks.length; level++) {
+          int[] levelLinks = new int[maxConnections(level, m) + 1];
+          levelLinks[0] = in.readInt();
+          for (int i = 1; i <= levelLinks[0]; i++) {
+            levelLinks[i] = in.readInt();
+          }
+          nodeLinks[level] = levelLinks;
+        }
+        store.links.add(nodeLinks);
+        String id = readString(in);
+        store.ids.add(id);
+        store.segments.add(readSegment(in));
+        if (isDeleted) {
+          store.deleted.set(node);
+        } else {
+          store.nodesById.put(id, node);
+        }
+      }
+      log.info("Loaded HNSW snapshot with {} embeddings from {}", store.nodesById.size(), path);
+      return store;
+    }
+  }
+
+  /**
+   * Builds the graph again from the nodes that are not deleted once they are
+   * at least minDeleted and a quarter of all nodes, ids and segments are kept.
+   */
+  private void compactIfMostlyDeleted(int minDeleted, Scratch scratch) {
+    int deletedCount = deleted.cardinality();
+    if (deletedCount == 0 || deletedCount < minDeleted || deletedCount * 4 < vectors.size()) {
+      return;
+    }
+    long start = System.nanoTime();
+    OffHeapVectors oldVectors = vectors;
+    List<String> oldIds = ids;
+    List<TextSegment> oldSegments = segments;
+    BitSet oldDeleted = deleted;
+
+    vectors = new OffHeapVectors(dimension);
+    links = new ArrayList<>();
+    ids = new ArrayList<>();
+    segments = new ArrayList<>();
+    nodesById = new HashMap<>();
+    deleted = new BitSet();
+    entryPoint = -1;
+    maxLevel = -1;
+    for (int node = oldDeleted.nextClearBit(0); node < oldVectors.size(); node = oldDeleted.nextClearBit(node + 1)) {
+      // stored vectors are normalized already
+      insert(oldIds.get(node), oldVectors.get(node), oldSegments.get(node), scratch);
+    }
+    oldVectors.free();
+    log.info("Rebuilt HNSW graph without {} deleted nodes in {} ms, {} embeddings", deletedCount,
+        (System.nanoTime() - start) / 1_000_000, nodesById.size());
+  }
+
+  private void insert(String id, float[] vector, TextSegment segment, Scratch scratch) {
+    Integer previous = nodesById.get(id);
+    if (previous != null) {
+      deleted.set(previous);
+    }
+
+    int node = vectors.add(vector);
+    int level = randomLevel();
+    int[][] nodeLinks = new int[level + 1][];
+    for (int l = 0; l <= level; l++) {
+      nodeLinks[l] = new int[maxConnections(l, m) + 1];
+    }
+    links.add(nodeLinks);
+    ids.add(id);
+    segments.add(segment);
+    nodesById.put(id, node);
+
+    if (entryPoint < 0) {
+      entryPoint = node;
+      maxLevel = level;
+      return;
+    }
+
+    int current = entryPoint;
+    for (int l = maxLevel; l > level; l--) {
+      current = greedyClosest(vector, current, l, scratch);
+    }
+    for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+      DistanceHeap candidates = searchLevel(vector, current, efConstruction, l, scratch);
+      int[] nearestFirst = new int[candidates.size()];
+      float[] distances = new float[candidates.size()];
+      for (int i = nearestFirst.length - 1; i >= 0; i--) {
+        distances[i] = candidates.peekDistance();
+        nearestFirst[i] = candidates.pop();
+      }
+      current = nearestFirst[0];
+
+      int[] selected = selectNeighbours(nearestFirst, distances, nearestFirst.length, maxConnections(l, m),
+          scratch);
+      int[] levelLinks = nodeLinks[l];
+      for (int neighbour : selected) {
+        levelLinks[++levelLinks[0]] = neighbour;
+        connect(neighbour, node, l, scratch);
+      }
+    }
+
+    if (level > maxLevel) {
+      entryPoint = node;
+      maxLevel = level;
+    }
+  }
+
+  /**
+   * Adds the link from node to neighbour, when the neighbour list is full the
+   * neighbours are selected again from the old ones and the new one.
+   */
+  private void connect(int node, int neighbour, int level, Scratch scratch) {
+    int[] levelLinks = links.get(node)[level];
+    int maxConnections = levelLinks.length - 1;
+    if (levelLinks[0] < maxConnections) {
+      levelLinks[++levelLinks[0]] = neighbour;
+      return;
+    }
+
+    int count = levelLinks[0] + 1;
+    int[] candidates = new int[count];
+    float[] distances = new float[count];
+    for (int i = 0; i < count - 1; i++) {
+      candidates[i] = levelLinks[i + 1];
+    }
+    candidates[count - 1] = neighbour;
+    for (int i = 0; i < count; i++) {
+      distances[i] = 1 - vectors.dot(node, candidates[i], scratch.left, scratch.right);
+    }
+    sortByDistance(candidates, distances);
+
+    int[] selected = selectNeighbours(candidates, distances, count, maxConnections, scratch);
+    levelLinks[0] = selected.length;
+    System.arraycopy(selected, 0, levelLinks, 1, selected.length);
+  }
+
+  /**
+   * Neighbour selection heuristic of the HNSW paper, a candidate is kept when
+   * it is closer to the new node than to every kept neighbour, so links spread
+   * in different directions. Remaining slots are filled with the closest
+   * skipped candidates.
+   */
+  private int[] selectNeighbours(int[] nearestFirst, float[] distances, int count, int maxConnections,
+      Scratch scratch) {
+    int[] selected = new int[Math.min(count, maxConnections)];
+    boolean[] taken = new boolean[count];
+    int size = 0;
+    for (int i = 0; i < count && size < selected.length; i++) {
+      boolean diverse = true;
+      for (int j = 0; j < size; j++) {
+        if (1 - vectors.dot(nearestFirst[i], selected[j], scratch.left, scratch.right) < distances[i]) {
+          diverse = false;
+          break;
+        }
+      }
+      if (diverse) {
+        selected[size++] = nearestFirst[i];
+        taken[i] = true;
+      }
+    }
+    for (int i = 0; i < count && size < selected.length; i++) {
+      if (!taken[i]) {
+        selected[size++] = nearestFirst[i];
+      }
+    }
+    return selected;
+  }
+
+  private int greedyClosest(float[] query, int start, int level, Scratch scratch) {
+    int current = start;
+    float currentDistance = 1 - vectors.dot(current, query, scratch.left);
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      int[][] nodeLinks = links.get(current);
+      if (level >= nodeLinks.length) {
+        break;
+      }
+      int[] levelLinks = nodeLinks[level];
+      for (int i = 1; i <= levelLinks[0]; i++) {
+        float distance = 1 - vectors.dot(levelLinks[i], query, scratch.left);
+        if (distance < currentDistance) {
+          currentDistance = distance;
+          current = levelLinks[i];
+          improved = true;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * @return up to ef nearest nodes found on the level, farthest first
+   */
+  private DistanceHeap searchLevel(float[] query, int start, int ef, int level, Scratch scratch) {
+    VisitedNodes visited = scratch.visited;
+    visited.reset(vectors.size());
+    DistanceHeap candidates = DistanceHeap.nearestFirst(ef * 2);
+    DistanceHeap found = DistanceHeap.farthestFirst(ef + 1);
+
+    float startDistance = 1 - vectors.dot(start, query, scratch.left);
+    visited.visit(start);
+    candidates.push(start, startDistance);
+    found.push(start, startDistance);
+
+    while (!candidates.isEmpty()) {
+      float candidateDistance = candidates.peekDistance();
+      if (found.size() >= ef && candidateDistance > found.peekDistance()) {
+        break;
+      }
+      int candidate = candidates.pop();
+      int[][] nodeLinks = links.get(candidate);
+      if (level >= nodeLinks.length) {
+        continue;
+      }
+      int[] levelLinks = nodeLinks[level];
+      for (int i = 1; i <= levelLinks[0]; i++) {
+        int neighbour = levelLinks[i];
+        if (!visited.visit(neighbour)) {
+          continue;
+        }
+        float distance = 1 - vectors.dot(neighbour, query, scratch.left);
+        if (found.size() < ef || distance < found.peekDistance()) {
+          candidates.push(neighbour, distance);
+          found.push(neighbour, distance);
+          if (found.size() > ef) {
+            found.pop();
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  private List<EmbeddingMatch<TextSegment>> exactSearch(float[] query, EmbeddingSearchRequest request,
+      Scratch scratch) {
+    DistanceHeap best = DistanceHeap.farthestFirst(request.maxResults() + 1);
+    for (int node : nodesById.values()) {
+      if (!matchesFilter(node, request.filter())) {
+        continue;
+      }
+      best.push(node, 1 - vectors.dot(node, query, scratch.left));
+      if (best.size() > request.maxResults()) {
+        best.pop();
+      }
+    }
+
+    int[] ordered = new int[best.size()];
+    float[] distances = new float[best.size()];
+    for (int i = ordered.length - 1; i >= 0; i--) {
+      distances[i] = best.peekDistance();
+      ordered[i] = best.pop();
+    }
+    List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(ordered.length);
+    for (int i = 0; i < ordered.length; i++) {
+      addMatch(matches, ordered[i], distances[i], request);
+    }
+    return matches;
+  }
+
+  private void addMatch(List<EmbeddingMatch<TextSegment>> matches, int node, float distance,
+      EmbeddingSearchRequest request) {
+    double score = RelevanceScore.fromCosineSimilarity(1 - distance);
+    if (score < request.minScore()) {
+      return;
+    }
+    matches.add(new EmbeddingMatch<>(score, ids.get(node), Embedding.from(vectors.get(node)), segments.get(node)));
+  }
+
+  private boolean matchesFilter(int node, Filter filter) {
+    if (filter == null) {
+      return true;
+    }
+    TextSegment segment = segments.get(node);
+    return segment != null && filter.test(segment.metadata());
+  }
+
+  private Scratch acquireScratch() {
+    Scratch scratch = scratchPool.poll();
+    return scratch != null ? scratch : new Scratch(dimension);
+  }
+
+  private int randomLevel() {
+    return (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+  }
+
+  private float[] normalize(float[] vector) {
+    if (vector.length != dimension) {
+      throw new IllegalArgumentException("Expected dimension %d but got %d".formatted(dimension, vector.length));
+    }
+    double norm = 0;
+    for (float value : vector) {
+      norm += value * value;
+    }
+    norm = Math.sqrt(norm);
+    float[] normalized = new float[vector.length];
+    for (int i = 0; i < vector.length; i++) {
+      normalized[i] = norm == 0 ? 0 : (float) (vector[i] / norm);
+    }
+    return normalized;
+  }
+
+  private static int maxConnections(int level, int m) {
+    return level == 0 ? 2 * m : m;
+  }
+
+  private static void sortByDistance(int[] nodes, float[] distances) {
+    // few dozen elements, insertion sort
+    for (int i = 1; i < nodes.length; i++) {
+      int node = nodes[i];
+      float distance = distances[i];
+      int j = i - 1;
+      while (j >= 0 && distances[j] > distance) {
+        nodes[j + 1] = nodes[j];
+        distances[j + 1] = distances[j];
+        j--;
+      }
+      nodes[j + 1] = node;
+      distances[j + 1] = distance;
+    }
+  }
+
+  private static void writeSegment(DataOutputStream out, TextSegment segment) throws IOException {
+    out.writeBoolean(segment != null);
+    if (segment == null) {
+      return;
+    }
+    writeString(out, segment.text());
+    Map<String, Object> metadata = segment.metadata().toMap();
+    out.writeInt(metadata.size());
+    for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+      writeString(out, entry.getKey());
+      Object value = entry.getValue();
+      switch (value) {
+        case String string -> {
+          out.writeByte('S');
+          writeString(out, string);
+        }
+        case UUID uuid -> {
+          out.writeByte('U');
+          out.writeLong(uuid.getMostSignificantBits());
+          out.writeLong(uuid.getLeastSignificantBits());
+        }
+        case Integer integer -> {
+          out.writeByte('I');
+          out.writeInt(integer);
+        }
+        case Long number -> {
+          out.writeByte('L');
+          out.writeLong(number);
+        }
+        case Float number -> {
+          out.writeByte('F');
+          out.writeFloat(number);
+        }
+        case Double number -> {
+          out.writeByte('D');
+          out.writeDouble(number);
+        }
+        default -> throw new IOException("Unsupported metadata value type: " + value.getClass());
+      }
+    }
+  }
+
+  private static TextSegment readSegment(DataInputStream in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    String text = readString(in);
+    int entries = in.readInt();
+    Metadata metadata = new Metadata();
+    for (int i = 0; i < entries; i++) {
+      String key = readString(in);
+      byte type = in.readByte();
+      switch (type) {
+        case 'S' -> metadata.put(key, readString(in));
+        case 'U' -> metadata.put(key, new UUID(in.readLong(), in.readLong()));
+        case 'I' -> metadata.put(key, in.readInt());
+        case 'L' -> metadata.put(key, in.readLong());
+        case 'F' -> metadata.put(key, in.readFloat());
+        case 'D' -> metadata.put(key, in.readDouble());
+        default -> throw new IOException("Unknown metadata value type: " + (char) type);
+      }
+    }
+    return TextSegment.from(text, metadata);
+  }
+
+  // writeUTF is limited to 64 KB
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Buffers of one search or insert, taken from the pool for its duration.
+   */
+  private static final class Scratch {
+
+    private final VisitedNodes visited = new VisitedNodes();
+    // stored vectors are copied into these before they are compared
+    private final float[] left;
+    private final float[] right;
+
+    Scratch(int dimension) {
+      this.left = new float[dimension];
+      this.right = new float[dimension];
+    }
+  }
+
+  /**
+   * Nodes seen by the current search, marked with a per search stamp so the
+   * array does not need clearing.
+   */
+  private static final class VisitedNodes {
+
+    private int[] marks = new int[1024];
+    private int stamp;
+
+    void reset(int size) {
+      if (marks.length < size) {
+        marks = new int[Math.max(size, marks.length * 2)];
+        stamp = 0;
+      }
+      stamp++;
+      if (stamp == 0) {
+        Arrays.fill(marks, 0);
+        stamp = 1;
+      }
+    }
+
+    /**
+     * @return false when the node was visited already
+     */
+    boolean visit(int node) {
+      if (marks[node] == stamp) {
+        return false;
+      }
+      marks[node] = stamp;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,6 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.util.UUID;
+
+public record HybridSearchHit(UUID embeddingId, String content, double score) {
+}
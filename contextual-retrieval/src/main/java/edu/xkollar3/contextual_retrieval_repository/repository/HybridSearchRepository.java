@@ -0,0 +1,91 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration;
+
+/**
+ * Hybrid search as a single statement, the vector and full-text top N are
+ * selected in CTEs, joined on embedding_id and fused with reciprocal rank
+ * fusion in the database. Relies on the embedding table of the langchain
+ * store living in the same database as document_chunks. With a quantized
+ * index the vector candidates are re-ranked like in VectorSearchRepository.
+ */
+@Repository
+public class HybridSearchRepository {
+
+  private static final String HYBRID_SEARCH = """
+      WITH vector_candidates AS (
+        SELECT v.embedding_id, v.text, v.embedding <=> CAST(:embedding AS vector) AS distance
+        FROM %s v
+        ORDER BY distance
+        LIMIT :candidates
+      ),
+      vector_hits AS (
+        SELECT embedding_id, text, row_number() OVER (ORDER BY distance) AS rank
+        FROM vector_candidates
+      ),
+      text_candidates AS (
+        SELECT dc.embedding_id, dc.content, CASE WHEN :rankFunction = 'TS_RANK_CD'
+          THEN ts_rank_cd(dc.search_vector, q, :normalization)
+          ELSE ts_rank(dc.search_vector, q, :normalization) END AS text_rank
+        FROM document_chunks dc, websearch_to_tsquery(:query) q
+        WHERE dc.search_vector @@ q
+        ORDER BY text_rank DESC
+        LIMIT :candidates
+      ),
+      text_hits AS (
+        SELECT embedding_id, content, row_number() OVER (ORDER BY text_rank DESC) AS rank
+        FROM text_candidates
+      )
+      SELECT coalesce(v.embedding_id, t.embedding_id) AS embedding_id,
+        coalesce(v.text, t.content) AS content,
+        coalesce(:vectorWeight / (:rrfK + v.rank), 0) + coalesce(:fullTextWeight / (:rrfK + t.rank), 0) AS score
+      FROM vector_hits v
+      FULL OUTER JOIN text_hits t ON t.embedding_id = v.embedding_id
+      ORDER BY score DESC, least(v.rank, t.rank), t.rank NULLS LAST
+      LIMIT :k
+      """;
+
+  private final NamedParameterJdbcTemplate namedJdbcTemplate;
+  private final PgVectorStoreConfiguration storeConfiguration;
+  private final RetrievalConfiguration configuration;
+  private final String sql;
+
+  @Autowired
+  public HybridSearchRepository(NamedParameterJdbcTemplate namedJdbcTemplate,
+      PgVectorStoreConfiguration storeConfiguration, RetrievalConfiguration configuration) {
+    this.namedJdbcTemplate = namedJdbcTemplate;
+    this.configuration = configuration;
+    this.storeConfiguration = storeConfiguration;
+    this.sql = HYBRID_SEARCH.formatted(VectorSearchRepository.candidates(storeConfiguration));
+  }
+
+  /**
+   * @return top k chunks by fused score, content is the embedded text for
+   *         vector hits and the chunk content for full-text only hits
+   */
+  public List<HybridSearchHit> search(String query, float[] embedding, int k) {
+    MapSqlParameterSource parameters = VectorSearchRepository
+        .parameters(storeConfiguration, embedding, configuration.getCandidatesPerLeg())
+        .addValue("query", query)
+        .addValue("candidates", configuration.getCandidatesPerLeg())
+        .addValue("rankFunction", configuration.getFullTextRankFunction().name())
+        .addValue("normalization", configuration.getFullTextRankNormalization())
+        .addValue("rrfK", configuration.getRrfK())
+        .addValue("vectorWeight", configuration.getVectorWeight())
+        .addValue("fullTextWeight", configuration.getFullTextWeight())
+        .addValue("k", k);
+    return namedJdbcTemplate.query(sql, parameters, (rs, rowNum) -> new HybridSearchHit(
+        rs.getObject("embedding_id", UUID.class),
+        rs.getString("content"),
+        rs.getDouble("score")));
+  }
+}
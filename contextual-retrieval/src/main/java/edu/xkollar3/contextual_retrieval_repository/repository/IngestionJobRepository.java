@@ -0,0 +1,66 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobEntity;
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobState;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface IngestionJobRepository extends JpaRepository<IngestionJobEntity, UUID> {
+  List<IngestionJobEntity> findByStateInOrderByCreatedAt(Collection<IngestionJobState> states);
+
+  boolean existsByDocumentIdAndStateIn(UUID documentId, Collection<IngestionJobState> states);
+
+  @Modifying
+  @Query("""
+      UPDATE IngestionJobEntity j
+      SET j.state = :state, j.totalChunks = :totalChunks, j.processedChunks = :processedChunks,
+          j.processedChunksAtStart = :processedChunks, j.failedChunks = 0, j.error = NULL,
+          j.startedAt = :startedAt, j.finishedAt = NULL
+      WHERE j.id = :id
+      """)
+  void startRun(@Param("id") UUID id, @Param("state") IngestionJobState state,
+      @Param("totalChunks") int totalChunks, @Param("processedChunks") int processedChunks,
+      @Param("startedAt") Instant startedAt);
+
+  // incremented in the same transaction that stores the chunks, so the counters survive a restart
+  @Modifying
+  @Query("""
+      UPDATE IngestionJobEntity j
+      SET j.processedChunks = j.processedChunks + :processed, j.failedChunks = j.failedChunks + :failed
+      WHERE j.id = :id
+      """)
+  void recordProgress(@Param("id") UUID id, @Param("processed") int processed, @Param("failed") int failed);
+
+  // streamed documents only learn their chunk count while being processed
+  @Modifying
+  @Query("UPDATE IngestionJobEntity j SET j.totalChunks = :totalChunks WHERE j.id = :id")
+  void updateTotalChunks(@Param("id") UUID id, @Param("totalChunks") int totalChunks);
+
+  // conditional, of concurrent retries of the same job only one changes the row
+  @Modifying
+  @Query("""
+      UPDATE IngestionJobEntity j
+      SET j.state = :state, j.error = NULL, j.finishedAt = NULL
+      WHERE j.id = :id AND j.state = :expected
+      """)
+  int updateStateIf(@Param("id") UUID id, @Param("expected") IngestionJobState expected,
+      @Param("state") IngestionJobState state);
+
+  @Modifying
+  @Query("""
+      UPDATE IngestionJobEntity j
+      SET j.state = :state, j.error = :error, j.finishedAt = :finishedAt
+      WHERE j.id = :id
+      """)
+  void updateState(@Param("id") UUID id, @Param("state") IngestionJobState state, @Param("error") String error,
+      @Param("finishedAt") Instant finishedAt);
+}
@@ -0,0 +1,157 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed dimension float vectors stored contiguously outside of the heap, in
+ * pages of allocated or memory-mapped segments. Vectors are addressed by the
+ * index they were added under. Not thread safe, HnswEmbeddingStore guards it.
+ *
+ * All pages belong to one arena, free releases them at once instead of when
+ * the garbage collector gets to their buffers.
+ */
+final class OffHeapVectors {
+
+  private static final int PAGE_BYTES = 64 * 1024 * 1024;
+
+  private final int dimension;
+  private final int vectorsPerPage;
+  private final Arena arena = Arena.ofShared();
+  private final List<ByteBuffer> pages = new ArrayList<>();
+  private final List<FloatBuffer> floatPages = new ArrayList<>();
+  private int size;
+
+  OffHeapVectors(int dimension) {
+    this(dimension, Math.max(1, PAGE_BYTES / (dimension * Float.BYTES)));
+  }
+
+  private OffHeapVectors(int dimension, int vectorsPerPage) {
+    this.dimension = dimension;
+    this.vectorsPerPage = vectorsPerPage;
+  }
+
+  int dimension() {
+    return dimension;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int add(float[] vector) {
+    int page = size / vectorsPerPage;
+    if (page == pages.size()) {
+      addPage(arena.allocate(pageBytes(), Float.BYTES).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN));
+    }
+    floatPages.get(page).put((size % vectorsPerPage) * dimension, vector);
+    return size++;
+  }
+
+  float[] get(int index) {
+    float[] vector = new float[dimension];
+    floatPages.get(index / vectorsPerPage).get((index % vectorsPerPage) * dimension, vector);
+    return vector;
+  }
+
+  /**
+   * @param scratch array of the dimension the stored vector is copied into,
+   *                owned by the caller so concurrent searches do not share it
+   */
+  float dot(int index, float[] query, float[] scratch) {
+    floatPages.get(index / vectorsPerPage).get((index % vectorsPerPage) * dimension, scratch);
+    return dot(scratch, query);
+  }
+
+  float dot(int left, int right, float[] leftScratch, float[] rightScratch) {
+    floatPages.get(left / vectorsPerPage).get((left % vectorsPerPage) * dimension, leftScratch);
+    floatPages.get(right / vectorsPerPage).get((right % vectorsPerPage) * dimension, rightScratch);
+    return dot(leftScratch, rightScratch);
+  }
+
+  // element wise access through the buffer is bounds and liveness checked on
+  // every call, a bulk copy into a heap array and a plain loop is several
+  // times faster
+  private static float dot(float[] left, float[] right) {
+    float sum0 = 0;
+    float sum1 = 0;
+    float sum2 = 0;
+    float sum3 = 0;
+    int i = 0;
+    for (; i + 3 < left.length; i += 4) {
+      sum0 += left[i] * right[i];
+      sum1 += left[i + 1] * right[i + 1];
+      sum2 += left[i + 2] * right[i + 2];
+      sum3 += left[i + 3] * right[i + 3];
+    }
+    for (; i < left.length; i++) {
+      sum0 += left[i] * right[i];
+    }
+    return sum0 + sum1 + sum2 + sum3;
+  }
+
+  /**
+   * Writes all vectors as little endian floats, the layout map expects.
+   */
+  void writeTo(FileChannel channel) throws IOException {
+    for (int page = 0; page < pages.size(); page++) {
+      int vectors = Math.min(vectorsPerPage, size - page * vectorsPerPage);
+      ByteBuffer bytes = pages.get(page).duplicate();
+      bytes.position(0).limit(vectors * dimension * Float.BYTES);
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+    }
+  }
+
+  /**
+   * Maps vectors written by writeTo at the given file offset. Full pages stay
+   * mapped read-only, the last partial page is copied so new vectors can be
+   * appended to it.
+   */
+  static OffHeapVectors map(FileChannel channel, long offset, int dimension, int count) throws IOException {
+    OffHeapVectors vectors = new OffHeapVectors(dimension);
+    long pageBytes = vectors.pageBytes();
+    int fullPages = count / vectors.vectorsPerPage;
+    for (int page = 0; page < fullPages; page++) {
+      vectors.addPage(channel.map(FileChannel.MapMode.READ_ONLY, offset + page * pageBytes, pageBytes,
+          vectors.arena).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    int remaining = count - fullPages * vectors.vectorsPerPage;
+    if (remaining > 0) {
+      MemorySegment last = vectors.arena.allocate(vectors.pageBytes(), Float.BYTES);
+      // unmapped as soon as it is copied
+      try (Arena copy = Arena.ofConfined()) {
+        last.copyFrom(channel.map(FileChannel.MapMode.READ_ONLY, offset + fullPages * pageBytes,
+            (long) remaining * dimension * Float.BYTES, copy));
+      }
+      vectors.addPage(last.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN));
+    }
+    vectors.size = count;
+    return vectors;
+  }
+
+  /**
+   * Releases all pages, the vectors must not be used afterwards.
+   */
+  void free() {
+    arena.close();
+  }
+
+  private void addPage(ByteBuffer page) {
+    pages.add(page);
+    floatPages.add(page.asFloatBuffer());
+  }
+
+  private int pageBytes() {
+    return vectorsPerPage * dimension * Float.BYTES;
+  }
+}
@@ -0,0 +1,10 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.util.UUID;
+
+/**
+ * A stored chunk of a document without its texts, what reindexing needs to
+ * diff a new split against it.
+ */
+public record StoredChunk(UUID id, int chunkIndex, UUID embeddingId, String contentHash) {
+}
@@ -0,0 +1,107 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration.IndexType;
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration.Quantization;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * DDL of the approximate nearest neighbour index on the langchain embedding
+ * table. The store searches with the cosine distance operator, so the index
+ * is built with vector_cosine_ops, or on a quantized copy of the embeddings
+ * searched by VectorSearchRepository. All statements run outside of a
+ * transaction because of CONCURRENTLY.
+ */
+@Repository
+@Slf4j
+public class VectorIndexRepository {
+
+  private final JdbcTemplate jdbcTemplate;
+  private final PgVectorStoreConfiguration configuration;
+
+  @Autowired
+  public VectorIndexRepository(JdbcTemplate jdbcTemplate, PgVectorStoreConfiguration configuration) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.configuration = configuration;
+  }
+
+  /**
+   * Session settings applied to connections that run similarity searches.
+   */
+  public static String searchSettings(PgVectorStoreConfiguration configuration) {
+    return "SET hnsw.ef_search = %d; SET ivfflat.probes = %d".formatted(configuration.getHnswEfSearch(),
+        configuration.getIvfflatProbes());
+  }
+
+  /**
+   * Creates the configured index unless an index of that name exists already.
+   */
+  public void createIndexIfMissing() {
+    if (configuration.getIndexType() == IndexType.NONE) {
+      return;
+    }
+    String name = indexName(configuration.getIndexType());
+    jdbcTemplate.execute(createIndex("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name));
+    log.info("Vector index {} is present", name);
+  }
+
+  /**
+   * Builds the configured index next to the current one and swaps them, so
+   * searches keep using the old index and writes are not blocked meanwhile.
+   * Indexes of other types or quantizations are dropped.
+   */
+  public void rebuildIndex() {
+    String current = configuration.getIndexType() == IndexType.NONE ? null : indexName(configuration.getIndexType());
+    for (IndexType type : IndexType.values()) {
+      for (Quantization quantization : Quantization.values()) {
+        String name = indexName(type, quantization);
+        if (type != IndexType.NONE && !name.equals(current)) {
+          jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + name);
+        }
+      }
+    }
+    if (current == null) {
+      return;
+    }
+
+    String name = current;
+    String rebuiltName = name + "_rebuild";
+    // leftover of an interrupted rebuild, possibly invalid
+    jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + rebuiltName);
+    jdbcTemplate.execute(createIndex("CREATE INDEX CONCURRENTLY " + rebuiltName));
+    log.info("Vector index {} built", rebuiltName);
+    jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + name);
+    jdbcTemplate.execute("ALTER INDEX " + rebuiltName + " RENAME TO " + name);
+    log.info("Vector index {} replaced", name);
+  }
+
+  private String createIndex(String prefix) {
+    String table = configuration.getEmbeddingTableName();
+    String column = VectorSearchRepository.quantizedColumn(configuration);
+    String operators = switch (configuration.getQuantization()) {
+      case NONE -> "vector_cosine_ops";
+      case HALFVEC -> "halfvec_cosine_ops";
+      case BINARY -> "bit_hamming_ops";
+    };
+    return switch (configuration.getIndexType()) {
+      case HNSW -> "%s ON %s USING hnsw (%s %s) WITH (m = %d, ef_construction = %d)"
+          .formatted(prefix, table, column, operators, configuration.getHnswM(), configuration.getHnswEfConstruction());
+      case IVFFLAT -> "%s ON %s USING ivfflat (%s %s) WITH (lists = %d)"
+          .formatted(prefix, table, column, operators, configuration.getIvfflatLists());
+      case NONE -> throw new IllegalStateException("No vector index configured");
+    };
+  }
+
+  private String indexName(IndexType type) {
+    return indexName(type, configuration.getQuantization());
+  }
+
+  private String indexName(IndexType type, Quantization quantization) {
+    String suffix = quantization == Quantization.NONE ? "" : "_" + quantization.name().toLowerCase();
+    return configuration.getEmbeddingTableName() + "_embedding_" + type.name().toLowerCase() + suffix + "_idx";
+  }
+}
@@ -0,0 +1,146 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration.Quantization;
+
+/**
+ * Cosine similarity search on the langchain embedding table for quantized
+ * indexes, which the langchain store cannot query. Candidates are read
+ * through the quantized index and re-ranked by their full precision
+ * embeddings.
+ */
+@Repository
+public class VectorSearchRepository {
+
+  private static final String SEARCH = """
+      SELECT v.embedding_id, v.text, 1 - (v.embedding <=> CAST(:embedding AS vector)) AS similarity
+      FROM %s v
+      ORDER BY v.embedding <=> CAST(:embedding AS vector)
+      LIMIT :k
+      """;
+
+  private final NamedParameterJdbcTemplate namedJdbcTemplate;
+  private final PgVectorStoreConfiguration configuration;
+  private final String sql;
+
+  @Autowired
+  public VectorSearchRepository(NamedParameterJdbcTemplate namedJdbcTemplate,
+      PgVectorStoreConfiguration configuration) {
+    this.namedJdbcTemplate = namedJdbcTemplate;
+    this.configuration = configuration;
+    this.sql = SEARCH.formatted(candidates(configuration));
+  }
+
+  public boolean isQuantized() {
+    return configuration.getQuantization() != Quantization.NONE;
+  }
+
+  /**
+   * @return top k embeddings by full precision cosine similarity
+   */
+  public List<VectorSearchHit> search(float[] embedding, int k) {
+    return namedJdbcTemplate.query(sql, parameters(configuration, embedding, k).addValue("k", k),
+        (rs, rowNum) -> new VectorSearchHit(
+            rs.getObject("embedding_id", UUID.class),
+            rs.getString("text"),
+            rs.getDouble("similarity")));
+  }
+
+  /**
+   * @return full precision embeddings of the stored ids by id
+   */
+  public Map<UUID, float[]> findEmbeddings(Collection<UUID> embeddingIds) {
+    Map<UUID, float[]> embeddings = new HashMap<>();
+    if (embeddingIds.isEmpty()) {
+      return embeddings;
+    }
+    namedJdbcTemplate.query("SELECT embedding_id, CAST(embedding AS text) AS embedding FROM %s "
+        .formatted(configuration.getEmbeddingTableName()) + "WHERE embedding_id IN (:embeddingIds)",
+        new MapSqlParameterSource("embeddingIds", embeddingIds), rs -> {
+          embeddings.put(rs.getObject("embedding_id", UUID.class), parseVector(rs.getString("embedding")));
+        });
+    return embeddings;
+  }
+
+  /**
+   * Row source with embedding_id, text and embedding columns to rank by full
+   * precision distance, the embedding table itself or its nearest candidates
+   * by quantized distance. Takes the embedding and quantizedCandidates
+   * parameters.
+   */
+  static String candidates(PgVectorStoreConfiguration configuration) {
+    String table = configuration.getEmbeddingTableName();
+    if (configuration.getQuantization() == Quantization.NONE) {
+      return table;
+    }
+    return "(SELECT embedding_id, text, embedding FROM %s ORDER BY %s LIMIT :quantizedCandidates)"
+        .formatted(table, quantizedDistance(configuration));
+  }
+
+  static MapSqlParameterSource parameters(PgVectorStoreConfiguration configuration, float[] embedding, int k) {
+    return new MapSqlParameterSource()
+        .addValue("embedding", vectorLiteral(embedding))
+        .addValue("quantizedCandidates", k * configuration.getQuantizationOversampling());
+  }
+
+  /**
+   * Indexed expression of the quantized embeddings, the index has to be built
+   * on exactly this expression to be used.
+   */
+  static String quantizedColumn(PgVectorStoreConfiguration configuration) {
+    int dimensions = dimensions(configuration);
+    return switch (configuration.getQuantization()) {
+      case HALFVEC -> "(embedding::halfvec(%d))".formatted(dimensions);
+      case BINARY -> "(binary_quantize(embedding)::bit(%d))".formatted(dimensions);
+      case NONE -> "embedding";
+    };
+  }
+
+  private static String quantizedDistance(PgVectorStoreConfiguration configuration) {
+    return switch (configuration.getQuantization()) {
+      case HALFVEC -> "%s <=> CAST(:embedding AS halfvec(%d))".formatted(quantizedColumn(configuration),
+          dimensions(configuration));
+      case BINARY -> "%s <~> binary_quantize(CAST(:embedding AS vector))".formatted(quantizedColumn(configuration));
+      case NONE -> "embedding <=> CAST(:embedding AS vector)";
+    };
+  }
+
+  private static int dimensions(PgVectorStoreConfiguration configuration) {
+    if (configuration.getEmbeddingDimensions() == null) {
+      throw new IllegalStateException("langchain-store.embedding-dimensions is required for quantized indexes");
+    }
+    return configuration.getEmbeddingDimensions();
+  }
+
+  // the text form of a vector, [1,2,3]
+  static float[] parseVector(String literal) {
+    String[] components = literal.substring(1, literal.length() - 1).split(",");
+    float[] vector = new float[components.length];
+    for (int i = 0; i < components.length; i++) {
+      vector[i] = Float.parseFloat(components[i]);
+    }
+    return vector;
+  }
+
+  static String vectorLiteral(float[] embedding) {
+    StringBuilder literal = new StringBuilder(embedding.length * 12).append('[');
+    for (int i = 0; i < embedding.length; i++) {
+      if (i > 0) {
+        literal.append(',');
+      }
+      literal.append(embedding[i]);
+    }
+    return literal.append(']').toString();
+  }
+}
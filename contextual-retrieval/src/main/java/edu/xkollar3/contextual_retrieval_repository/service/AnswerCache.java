@@ -0,0 +1,195 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.AnswerCacheConfiguration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Answers of recent queries, served again for a query whose embedding is
+ * close enough to the one of the cached query.
+ *
+ * Lookups compare the query with every entry, which is fine for the few
+ * thousand entries the cache is meant to hold. An entry remembers the
+ * documents its chunks came from and is dropped when any of them changes.
+ *
+ * A document that changes while an answer is generated is invalidated before
+ * the answer is put, so every invalidation takes a new generation number and
+ * an answer is only put when none of its documents was invalidated after the
+ * generation its retrieval started in.
+ */
+@Component
+@Slf4j
+public class AnswerCache {
+
+  private record Entry(float[] embedding, String answer, Set<UUID> chunkIds, Set<UUID> documentIds,
+      long generationNanos, long expiresAt) {
+  }
+
+  private final AnswerCacheConfiguration configuration;
+  // access ordered, the eldest entry is the least recently used one
+  private final LinkedHashMap<UUID, Entry> entries;
+  // generation each document was last invalidated in
+  private final Map<UUID, Long> invalidatedIn = new HashMap<>();
+  private long generation;
+  private final Counter hits;
+  private final Counter misses;
+  private final Timer savedLatency;
+
+  @Autowired
+  public AnswerCache(AnswerCacheConfiguration configuration, MeterRegistry meterRegistry) {
+    this.configuration = configuration;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+        return size() > configuration.getMaxSize();
+      }
+    };
+    this.hits = requests(meterRegistry, "hit");
+    this.misses = requests(meterRegistry, "miss");
+    this.savedLatency = Timer.builder("answer.cache.saved.latency")
+        .description("Retrieval and generation time of the original query, saved by every cache hit")
+        .register(meterRegistry);
+    Gauge.builder("answer.cache.size", this, AnswerCache::size).register(meterRegistry);
+    Gauge.builder("answer.cache.hit.ratio", this, AnswerCache::hitRatio)
+        .description("Share of queries answered from the cache since start")
+        .register(meterRegistry);
+  }
+
+  public boolean isEnabled() {
+    return configuration.getEnabled();
+  }
+
+  /**
+   * @return answer of the most similar cached query above the threshold
+   */
+  public Optional<String> find(float[] queryEmbedding) {
+    float[] normalized = normalize(queryEmbedding);
+    Entry best = null;
+    UUID bestKey = null;
+    double bestSimilarity = configuration.getSimilarityThreshold();
+
+    synchronized (this) {
+      long now = System.nanoTime();
+      Iterator<Map.Entry<UUID, Entry>> iterator = entries.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<UUID, Entry> candidate = iterator.next();
+        if (now - candidate.getValue().expiresAt() > 0) {
+          iterator.remove();
+          continue;
+        }
+        double similarity = dot(normalized, candidate.getValue().embedding());
+        if (similarity >= bestSimilarity) {
+          bestSimilarity = similarity;
+          best = candidate.getValue();
+          bestKey = candidate.getKey();
+        }
+      }
+      if (best != null) {
+        // touch for the LRU order
+        entries.get(bestKey);
+      }
+    }
+
+    if (best == null) {
+      misses.increment();
+      return Optional.empty();
+    }
+    hits.increment();
+    savedLatency.record(best.generationNanos(), TimeUnit.NANOSECONDS);
+    log.info("Serving cached answer, similarity {}", String.format("%.4f", bestSimilarity));
+    return Optional.of(best.answer());
+  }
+
+  /**
+   * @return generation to pass to put, taken before the retrieval of an answer
+   */
+  public synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * @param retrievedIn generation taken before the chunks of the answer were
+   *                    retrieved, the answer is dropped when one of its
+   *                    documents was invalidated since
+   * @return whether the answer was cached
+   */
+  public boolean put(float[] queryEmbedding, String answer, Set<UUID> chunkIds, Set<UUID> documentIds,
+      long generationNanos, long retrievedIn) {
+    Entry entry = new Entry(normalize(queryEmbedding), answer, Set.copyOf(chunkIds), Set.copyOf(documentIds),
+        generationNanos, System.nanoTime() + configuration.getTtl().toNanos());
+    synchronized (this) {
+      for (UUID documentId : documentIds) {
+        if (invalidatedIn.getOrDefault(documentId, -1L) >= retrievedIn) {
+          log.info("Not caching answer, document {} changed while it was generated", documentId);
+          return false;
+        }
+      }
+      entries.put(UUID.randomUUID(), entry);
+    }
+    return true;
+  }
+
+  /**
+   * Drops every answer built from chunks of the document.
+   */
+  public void invalidateDocument(UUID documentId) {
+    int removed;
+    synchronized (this) {
+      invalidatedIn.put(documentId, generation++);
+      int before = entries.size();
+      entries.values().removeIf(entry -> entry.documentIds().contains(documentId));
+      removed = before - entries.size();
+    }
+    if (removed > 0) {
+      log.info("Invalidated {} cached answers using document {}", removed, documentId);
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  double hitRatio() {
+    double total = hits.count() + misses.count();
+    return total == 0 ? 0 : hits.count() / total;
+  }
+
+  private static float[] normalize(float[] vector) {
+    double norm = Math.sqrt(dot(vector, vector));
+    float[] normalized = new float[vector.length];
+    for (int i = 0; i < vector.length; i++) {
+      normalized[i] = norm == 0 ? 0 : (float) (vector[i] / norm);
+    }
+    return normalized;
+  }
+
+  private static double dot(float[] left, float[] right) {
+    double sum = 0;
+    for (int i = 0; i < left.length; i++) {
+      sum += left[i] * right[i];
+    }
+    return sum;
+  }
+
+  private static Counter requests(MeterRegistry meterRegistry, String result) {
+    return Counter.builder("answer.cache.requests")
+        .description("Lookups of query answers in the semantic answer cache")
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+}
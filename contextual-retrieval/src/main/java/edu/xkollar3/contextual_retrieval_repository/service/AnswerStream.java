@@ -0,0 +1,24 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.List;
+
+/**
+ * Receiver of a streamed answer, sources come first, then the tokens as the
+ * model produces them and finally either complete or error.
+ */
+public interface AnswerStream {
+
+  void sources(List<RetrievedChunk> sources);
+
+  void token(String token);
+
+  void complete();
+
+  void error(Throwable error);
+
+  /**
+   * Registers how to stop generating the answer, run once the receiver goes
+   * away before the answer is complete.
+   */
+  void onCancel(Runnable cancel);
+}
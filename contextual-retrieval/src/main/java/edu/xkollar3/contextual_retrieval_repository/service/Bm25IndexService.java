@@ -0,0 +1,226 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration.LexicalBackend;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentChunkEntity;
+import edu.xkollar3.contextual_retrieval_repository.repository.Bm25Hit;
+import edu.xkollar3.contextual_retrieval_repository.repository.Bm25Index;
+import edu.xkollar3.contextual_retrieval_repository.repository.DocumentChunkRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.FullTextHit;
+import edu.xkollar3.contextual_retrieval_repository.repository.FullTextSearchRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the in-memory BM25 index of the chunks when it is the configured
+ * lexical backend.
+ *
+ * On startup the saved index is loaded and compared with the embedding ids of
+ * document_chunks, chunks that are gone are removed from it and missing ones
+ * are indexed, every chunk is indexed when there is no saved index. Until then
+ * the full-text leg keeps using the database. Ingestion adds chunks as their windows are
+ * committed and the index is saved on shutdown.
+ */
+@Service
+@Slf4j
+public class Bm25IndexService {
+
+  private static final int RESTORE_BATCH_SIZE = 1000;
+
+  private final FullTextSearchRepository fullTextSearchRepository;
+  private final DocumentChunkRepository documentChunkRepository;
+  private final boolean enabled;
+  private final float k1;
+  private final float b;
+  private final Path indexPath;
+  // chunks committed while the index is being loaded, replayed into it afterwards
+  private final List<Map.Entry<UUID, String>> pending = new ArrayList<>();
+  // chunks deleted while the index is being loaded, removed from it afterwards
+  private final Set<UUID> pendingRemovals = new HashSet<>();
+  private volatile Bm25Index index;
+
+  @Autowired
+  public Bm25IndexService(FullTextSearchRepository fullTextSearchRepository,
+      DocumentChunkRepository documentChunkRepository, RetrievalConfiguration configuration) {
+    this.fullTextSearchRepository = fullTextSearchRepository;
+    this.documentChunkRepository = documentChunkRepository;
+    this.enabled = configuration.getLexicalBackend() == LexicalBackend.BM25;
+    this.k1 = configuration.getBm25K1().floatValue();
+    this.b = configuration.getBm25B().floatValue();
+    String path = configuration.getBm25IndexPath();
+    this.indexPath = path == null || path.isBlank() ? null : Path.of(path);
+  }
+
+  public boolean isReady() {
+    return index != null;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void load() {
+    if (!enabled) {
+      return;
+    }
+    Thread.ofVirtual().name("bm25-index-load").start(() -> {
+      try {
+        Bm25Index loaded = loadOrBuild();
+        synchronized (pending) {
+          pending.forEach(chunk -> loaded.add(chunk.getKey(), chunk.getValue()));
+          pending.clear();
+          pendingRemovals.forEach(loaded::remove);
+          pendingRemovals.clear();
+          index = loaded;
+        }
+        log.info("BM25 index ready with {} chunks", loaded.size());
+      } catch (RuntimeException e) {
+        log.error("Loading the BM25 index failed, full-text search stays in the database", e);
+      }
+    });
+  }
+
+  /**
+   * Adds committed chunks of a document, replacing chunks with the same
+   * embedding ids.
+   */
+  public void index(String documentName, List<DocumentChunkEntity> chunks) {
+    if (!enabled) {
+      return;
+    }
+    synchronized (pending) {
+      for (DocumentChunkEntity chunk : chunks) {
+        String text = indexedText(documentName, chunk.getContextualizedText());
+        if (index == null) {
+          pending.add(Map.entry(chunk.getEmbeddingId(), text));
+        } else {
+          index.add(chunk.getEmbeddingId(), text);
+        }
+      }
+    }
+  }
+
+  public void remove(Collection<UUID> embeddingIds) {
+    if (!enabled) {
+      return;
+    }
+    synchronized (pending) {
+      if (index == null) {
+        pendingRemovals.addAll(embeddingIds);
+      } else {
+        embeddingIds.forEach(index::remove);
+      }
+    }
+  }
+
+  /**
+   * @return up to k chunks best first, rank is the BM25 score
+   */
+  public List<FullTextHit> search(String query, int k) {
+    Bm25Index current = index;
+    int requested = k;
+    while (true) {
+      List<Bm25Hit> hits = current.search(query, requested);
+      Map<UUID, FullTextHit> chunks = new HashMap<>();
+      fullTextSearchRepository.findByEmbeddingIds(hits.stream().map(Bm25Hit::embeddingId).toList())
+          .forEach(chunk -> chunks.put(chunk.embeddingId(), chunk));
+
+      List<FullTextHit> results = new ArrayList<>(Math.min(hits.size(), k));
+      List<UUID> stale = new ArrayList<>();
+      for (Bm25Hit hit : hits) {
+        FullTextHit chunk = chunks.get(hit.embeddingId());
+        if (chunk == null) {
+          stale.add(hit.embeddingId());
+        } else if (results.size() < k) {
+          results.add(new FullTextHit(chunk.id(), chunk.embeddingId(), chunk.content(), hit.score()));
+        }
+      }
+      if (stale.isEmpty() || results.size() == k || hits.size() < requested) {
+        return results;
+      }
+      // deleted from the database but still in the index, dropped from it so
+      // they do not take the places of live chunks again, and the search is
+      // repeated with more hits to fill k
+      stale.forEach(current::remove);
+      log.debug("Dropped {} BM25 hits of deleted chunks, searching again", stale.size());
+      requested = requested + stale.size() * 2;
+    }
+  }
+
+  @EventListener(ContextClosedEvent.class)
+  public void save() {
+    Bm25Index current = index;
+    if (current == null || indexPath == null) {
+      return;
+    }
+    try {
+      current.save(indexPath);
+    } catch (IOException e) {
+      log.error("Saving the BM25 index failed", e);
+    }
+  }
+
+  private Bm25Index loadOrBuild() {
+    if (indexPath != null && Files.exists(indexPath)) {
+      try {
+        Bm25Index loaded = Bm25Index.load(indexPath, k1, b);
+        synchronize(loaded);
+        return loaded;
+      } catch (IOException e) {
+        log.warn("Reading the saved BM25 index failed, indexing again", e);
+      }
+    }
+
+    long start = System.nanoTime();
+    Bm25Index built = new Bm25Index(k1, b);
+    fullTextSearchRepository.forEachIndexedText((embeddingId, documentName, contextualizedText) -> built
+        .add(embeddingId, indexedText(documentName, contextualizedText)));
+    log.info("Indexed {} chunks for BM25 in {} ms", built.size(), (System.nanoTime() - start) / 1_000_000);
+    return built;
+  }
+
+  /**
+   * Brings a saved index in line with document_chunks, it can be older than the
+   * database after a crash. The same number of chunks does not mean the same
+   * chunks, a reindex replaces chunks under new embedding ids.
+   */
+  private void synchronize(Bm25Index loaded) {
+    Set<UUID> chunkIds = new HashSet<>(documentChunkRepository.findAllEmbeddingIds());
+    Set<UUID> indexed = loaded.ids();
+
+    List<UUID> stale = indexed.stream().filter(id -> !chunkIds.contains(id)).toList();
+    List<UUID> missing = chunkIds.stream().filter(id -> !indexed.contains(id)).toList();
+    if (stale.isEmpty() && missing.isEmpty()) {
+      log.info("Saved BM25 index matches document_chunks with {} chunks", indexed.size());
+      return;
+    }
+    log.info("Saved BM25 index has {} chunks and document_chunks {}, removing {} stale and indexing {} missing",
+        indexed.size(), chunkIds.size(), stale.size(), missing.size());
+
+    stale.forEach(loaded::remove);
+    for (int from = 0; from < missing.size(); from += RESTORE_BATCH_SIZE) {
+      List<UUID> batch = missing.subList(from, Math.min(from + RESTORE_BATCH_SIZE, missing.size()));
+      fullTextSearchRepository.forEachIndexedText(batch, (embeddingId, documentName, contextualizedText) -> loaded
+          .add(embeddingId, indexedText(documentName, contextualizedText)));
+    }
+  }
+
+  // the document name and chunk text, like search_vector
+  private static String indexedText(String documentName, String contextualizedText) {
+    return documentName + "\n" + (contextualizedText == null ? "" : contextualizedText);
+  }
+}
@@ -0,0 +1,131 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embedding model for query texts that keeps the most recently used query
+ * embeddings in memory, so repeated queries skip the embedding round trip.
+ *
+ * Entries are keyed by the query with whitespace collapsed and lower cased
+ * together with the model name, they are evicted in least recently used order
+ * once maxSize is reached and are not served after the ttl.
+ */
+@Slf4j
+class CachingQueryEmbeddingModel implements EmbeddingModel {
+
+  private record Entry(Embedding embedding, long expiresAt) {
+  }
+
+  private final EmbeddingModel delegate;
+  private final String modelName;
+  private final int maxSize;
+  private final long ttlNanos;
+  // access ordered, the eldest entry is the least recently used one
+  private final LinkedHashMap<String, Entry> entries;
+  private final Counter hits;
+  private final Counter misses;
+
+  CachingQueryEmbeddingModel(EmbeddingModel delegate, int maxSize, Duration ttl, MeterRegistry meterRegistry) {
+    this.delegate = delegate;
+    this.modelName = ModelNames.of(delegate);
+    this.maxSize = maxSize;
+    this.ttlNanos = ttl.toNanos();
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > CachingQueryEmbeddingModel.this.maxSize;
+      }
+    };
+    this.hits = requests(meterRegistry, "hit");
+    this.misses = requests(meterRegistry, "miss");
+    Gauge.builder("retrieval.query.embedding.cache.size", this, CachingQueryEmbeddingModel::size)
+        .register(meterRegistry);
+    Gauge.builder("retrieval.query.embedding.cache.hit.ratio", this, CachingQueryEmbeddingModel::hitRatio)
+        .description("Share of query embeddings served from the cache since start")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+    List<Embedding> embeddings = new ArrayList<>(textSegments.size());
+    List<Integer> missingPositions = new ArrayList<>();
+    List<TextSegment> missingSegments = new ArrayList<>();
+
+    for (TextSegment segment : textSegments) {
+      Embedding cached = get(key(segment.text()));
+      if (cached == null) {
+        missingPositions.add(embeddings.size());
+        missingSegments.add(segment);
+      }
+      embeddings.add(cached);
+    }
+    hits.increment(textSegments.size() - missingSegments.size());
+    misses.increment(missingSegments.size());
+    if (missingSegments.isEmpty()) {
+      return Response.from(embeddings);
+    }
+
+    Response<List<Embedding>> response = delegate.embedAll(missingSegments);
+    for (int i = 0; i < missingSegments.size(); i++) {
+      Embedding embedding = response.content().get(i);
+      embeddings.set(missingPositions.get(i), embedding);
+      put(key(missingSegments.get(i).text()), embedding);
+    }
+    return Response.from(embeddings, response.tokenUsage(), response.finishReason());
+  }
+
+  @Override
+  public int dimension() {
+    return delegate.dimension();
+  }
+
+  double hitRatio() {
+    double total = hits.count() + misses.count();
+    return total == 0 ? 0 : hits.count() / total;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private synchronized Embedding get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.expiresAt() > 0) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.embedding();
+  }
+
+  private synchronized void put(String key, Embedding embedding) {
+    entries.put(key, new Entry(embedding, System.nanoTime() + ttlNanos));
+  }
+
+  private String key(String query) {
+    return modelName + "\n" + query.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+  }
+
+  private static Counter requests(MeterRegistry meterRegistry, String result) {
+    return Counter.builder("retrieval.query.embedding.cache.requests")
+        .description("Lookups of query embeddings in the in-memory cache")
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+}
@@ -0,0 +1,53 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.xkollar3.contextual_retrieval_repository.repository.StoredChunk;
+
+/**
+ * Matches the chunks of a new split of a document against its stored chunks
+ * by content fingerprint. A matched chunk keeps its context and vector, only
+ * unmatched new chunks have to be contextualized and embedded and the stored
+ * chunks left unmatched at the end are no longer part of the document.
+ *
+ * Identical chunks occurring several times in a document are paired in chunk
+ * index order.
+ */
+final class ChunkDiff {
+
+  private final Map<String, ArrayDeque<StoredChunk>> unmatched = new HashMap<>();
+  private int remaining;
+
+  ChunkDiff(List<StoredChunk> storedChunks) {
+    for (StoredChunk chunk : storedChunks) {
+      unmatched.computeIfAbsent(chunk.contentHash(), hash -> new ArrayDeque<>()).add(chunk);
+    }
+    remaining = storedChunks.size();
+  }
+
+  /**
+   * @return a stored chunk with the same content that was not matched yet, or
+   *         null when the content is new
+   */
+  StoredChunk match(String contentHash) {
+    ArrayDeque<StoredChunk> candidates = unmatched.get(contentHash);
+    if (candidates == null || candidates.isEmpty()) {
+      return null;
+    }
+    remaining--;
+    return candidates.poll();
+  }
+
+  /**
+   * @return stored chunks no chunk of the new split matched
+   */
+  List<StoredChunk> unmatched() {
+    List<StoredChunk> chunks = new ArrayList<>(remaining);
+    unmatched.values().forEach(chunks::addAll);
+    return chunks;
+  }
+}
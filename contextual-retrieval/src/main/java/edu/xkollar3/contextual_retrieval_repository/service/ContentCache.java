@@ -0,0 +1,142 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import edu.xkollar3.contextual_retrieval_repository.configuration.IngestionConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.repository.ContentCacheRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent cache of ingestion results keyed by content hashes.
+ *
+ * Generated chunk contexts are keyed by (document hash, chunk text, prompt
+ * version, chat model), vectors by (text, embedding model). Re-uploading a
+ * document or a new version of it only calls the models for chunks whose
+ * inputs changed. Hits and misses are counted in ingestion.cache.requests.
+ */
+@Component
+@Slf4j
+public class ContentCache {
+
+  private final ContentCacheRepository repository;
+  private final boolean enabled;
+  private final String chatModelName;
+  private final String embeddingModelName;
+  private final Counter contextHits;
+  private final Counter contextMisses;
+  private final Counter embeddingHits;
+  private final Counter embeddingMisses;
+
+  @Autowired
+  public ContentCache(ContentCacheRepository repository, ChatModel chatModel, EmbeddingModel embeddingModel,
+      IngestionConfiguration configuration, MeterRegistry meterRegistry) {
+    this.repository = repository;
+    this.enabled = configuration.getCacheEnabled();
+    this.chatModelName = ModelNames.of(chatModel);
+    this.embeddingModelName = ModelNames.of(embeddingModel);
+    this.contextHits = requests(meterRegistry, "contextualization", "hit");
+    this.contextMisses = requests(meterRegistry, "contextualization", "miss");
+    this.embeddingHits = requests(meterRegistry, "embedding", "hit");
+    this.embeddingMisses = requests(meterRegistry, "embedding", "miss");
+  }
+
+  /**
+   * @return generated context by chunk index, only for the cached chunks
+   */
+  public Map<Integer, String> findContexts(ContextualizationPrompt prompt, List<PendingChunk> chunks) {
+    Map<Integer, String> found = new HashMap<>();
+    if (!enabled || chunks.isEmpty()) {
+      return found;
+    }
+    Map<Integer, String> keys = new HashMap<>();
+    chunks.forEach(chunk -> keys.put(chunk.chunkIndex(), contextKey(prompt, chunk.content())));
+
+    Map<String, String> contexts = repository.findContexts(keys.values());
+    keys.forEach((chunkIndex, key) -> {
+      if (contexts.containsKey(key)) {
+        found.put(chunkIndex, contexts.get(key));
+      }
+    });
+
+    contextHits.increment(found.size());
+    contextMisses.increment(chunks.size() - found.size());
+    log.debug("Contextualization cache: {} hits, {} misses", found.size(), chunks.size() - found.size());
+    return found;
+  }
+
+  /**
+   * @param contexts generated context by chunk content
+   */
+  public void saveContexts(ContextualizationPrompt prompt, Map<String, String> contexts) {
+    if (!enabled || contexts.isEmpty()) {
+      return;
+    }
+    Map<String, String> entries = new HashMap<>();
+    contexts.forEach((chunkContent, context) -> entries.put(contextKey(prompt, chunkContent), context));
+    repository.saveContexts(entries);
+  }
+
+  /**
+   * @return embedding per segment in segment order, null where it is not cached
+   */
+  public List<Embedding> findEmbeddings(List<TextSegment> segments) {
+    List<Embedding> found = new ArrayList<>(segments.size());
+    if (!enabled) {
+      segments.forEach(segment -> found.add(null));
+      return found;
+    }
+    List<String> keys = segments.stream().map(segment -> embeddingKey(segment.text())).toList();
+    Map<String, float[]> vectors = repository.findEmbeddings(keys);
+
+    int hits = 0;
+    for (String key : keys) {
+      float[] vector = vectors.get(key);
+      found.add(vector != null ? Embedding.from(vector) : null);
+      hits += vector != null ? 1 : 0;
+    }
+
+    embeddingHits.increment(hits);
+    embeddingMisses.increment(segments.size() - hits);
+    log.debug("Embedding cache: {} hits, {} misses", hits, segments.size() - hits);
+    return found;
+  }
+
+  public void saveEmbeddings(List<TextSegment> segments, List<Embedding> embeddings) {
+    if (!enabled || segments.isEmpty()) {
+      return;
+    }
+    Map<String, float[]> entries = new HashMap<>();
+    for (int i = 0; i < segments.size(); i++) {
+      entries.put(embeddingKey(segments.get(i).text()), embeddings.get(i).vector());
+    }
+    repository.saveEmbeddings(entries);
+  }
+
+  private String contextKey(ContextualizationPrompt prompt, String chunkContent) {
+    return ContentHashes.sha256(prompt.documentHash(), chunkContent, ContextualizationPrompt.VERSION, chatModelName);
+  }
+
+  private String embeddingKey(String text) {
+    return ContentHashes.sha256(text, embeddingModelName);
+  }
+
+  private static Counter requests(MeterRegistry meterRegistry, String cache, String result) {
+    return Counter.builder("ingestion.cache.requests")
+        .description("Lookups of ingestion results in the content cache")
+        .tag("cache", cache)
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+}
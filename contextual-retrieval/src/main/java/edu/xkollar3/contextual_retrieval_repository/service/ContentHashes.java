@@ -0,0 +1,43 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+final class ContentHashes {
+
+  private ContentHashes() {
+  }
+
+  /**
+   * SHA-256 over the parts, each part is length prefixed so that moving text
+   * from one part into the next never produces the same hash.
+   */
+  static String sha256(String... parts) {
+    MessageDigest digest = newDigest();
+    for (String part : parts) {
+      byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+      digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+      digest.update((byte) ':');
+      digest.update(bytes);
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * SHA-256 of the UTF-8 bytes of the text, the same value as
+   * encode(sha256(convert_to(text, 'UTF8')), 'hex') in PostgreSQL.
+   */
+  static String fingerprint(String text) {
+    return HexFormat.of().formatHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
+  }
+}
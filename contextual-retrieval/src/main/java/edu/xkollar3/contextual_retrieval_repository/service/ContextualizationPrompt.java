@@ -1,15 +1,60 @@
 package edu.xkollar3.contextual_retrieval_repository.service;
 
+import java.util.List;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+
+/**
+ * Contextualization prompt compiled for a single document.
+ *
+ * The document bearing part is rendered once per upload into its own message
+ * and the same instance is sent first with every chunk, so the request prefix
+ * is byte identical across chunks (provider side prompt caching kicks in) and
+ * the document text is not copied on the heap for every chunk.
+ */
 public class ContextualizationPrompt {
 
-  public static final String PROMPT = """
-      <document>
-      {{WHOLE_DOCUMENT}}
-      </document>
+  // change together with the wording below, cached contexts of the old prompt are not reused
+  public static final String VERSION = "1";
+
+  private static final String DOCUMENT_PREFIX = "<document>\n";
+  private static final String DOCUMENT_SUFFIX = "\n</document>";
+
+  private static final String CHUNK_PREFIX = """
       Here is the chunk we want to situate within the whole document
       <chunk>
-      {{CHUNK_CONTENT}}
+      """;
+  private static final String CHUNK_SUFFIX = """
+
       </chunk>
       Please give a short succinct context to situate this chunk within the overall document for the purposes of improving search retrieval of the chunk. Answer only with the succinct context and nothing else.
-            """;
+      """;
+
+  private final UserMessage documentMessage;
+  private final int documentMessageLength;
+  private final String documentHash;
+
+  private ContextualizationPrompt(String wholeDocument) {
+    String documentText = DOCUMENT_PREFIX + wholeDocument + DOCUMENT_SUFFIX;
+    this.documentMessage = UserMessage.from(documentText);
+    this.documentMessageLength = documentText.length();
+    this.documentHash = ContentHashes.sha256(wholeDocument);
+  }
+
+  public static ContextualizationPrompt forDocument(String wholeDocument) {
+    return new ContextualizationPrompt(wholeDocument);
+  }
+
+  public List<ChatMessage> forChunk(String chunkContent) {
+    return List.of(documentMessage, UserMessage.from(CHUNK_PREFIX + chunkContent + CHUNK_SUFFIX));
+  }
+
+  public String documentHash() {
+    return documentHash;
+  }
+
+  public int length(String chunkContent) {
+    return documentMessageLength + CHUNK_PREFIX.length() + chunkContent.length() + CHUNK_SUFFIX.length();
+  }
 }
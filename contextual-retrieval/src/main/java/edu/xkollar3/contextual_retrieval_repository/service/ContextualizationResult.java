@@ -0,0 +1,12 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+/**
+ * @param context            generated context only
+ * @param contextualizedText context followed by the chunk, what gets embedded
+ */
+public record ContextualizationResult(int chunkIndex, String context, String contextualizedText, Exception error) {
+
+  public boolean failed() {
+    return error != null;
+  }
+}
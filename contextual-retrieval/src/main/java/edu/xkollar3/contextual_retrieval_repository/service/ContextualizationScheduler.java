@@ -0,0 +1,170 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import dev.langchain4j.exception.RetriableException;
+import dev.langchain4j.model.chat.ChatModel;
+import edu.xkollar3.contextual_retrieval_repository.configuration.ContextualizationConfiguration;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the contextualization LLM calls for chunks of a document while keeping
+ * the provider limits.
+ *
+ * The submitting thread has to take a concurrency permit before a chunk task
+ * is started, so at most maxConcurrency calls exist at any time and large
+ * documents are fed in as permits free up instead of all at once. Every call
+ * additionally takes its estimated prompt size from a shared token per minute
+ * budget. Throttled (429) and other retriable calls are repeated with
+ * exponential backoff, a chunk that still fails is reported in its result
+ * without cancelling the remaining chunks.
+ */
+@Component
+@Slf4j
+public class ContextualizationScheduler {
+
+  private final ChatModel chatModel;
+  private final ContentCache contentCache;
+  private final ContextualizationConfiguration configuration;
+  private final Semaphore concurrencyPermits;
+  private final TokenBucket tokenBudget;
+  private final ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
+
+  @Autowired
+  public ContextualizationScheduler(ChatModel chatModel, ContentCache contentCache,
+      ContextualizationConfiguration configuration) {
+    this.chatModel = chatModel;
+    this.contentCache = contentCache;
+    this.configuration = configuration;
+    this.concurrencyPermits = new Semaphore(configuration.getMaxConcurrency(), true);
+    this.tokenBudget = new TokenBucket(configuration.getTokensPerMinute());
+  }
+
+  /**
+   * Blocks until every chunk either got its context or ran out of retries.
+   * Chunks with a cached context are answered without calling the model.
+   *
+   * @return one result per chunk, in the order of the given chunks
+   */
+  public List<ContextualizationResult> contextualizeAll(ContextualizationPrompt prompt, List<PendingChunk> chunks) {
+    Map<Integer, String> cachedContexts = contentCache.findContexts(prompt, chunks);
+    List<Future<ContextualizationResult>> futures = new ArrayList<>(chunks.size());
+
+    for (PendingChunk chunk : chunks) {
+      String cachedContext = cachedContexts.get(chunk.chunkIndex());
+      if (cachedContext != null) {
+        futures.add(CompletableFuture.completedFuture(new ContextualizationResult(chunk.chunkIndex(), cachedContext,
+            contextualizedText(cachedContext, chunk.content()), null)));
+        continue;
+      }
+
+      try {
+        // backpressure, wait for a free slot before creating the next task
+        concurrencyPermits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while scheduling chunk contextualization", e);
+      }
+
+      futures.add(executorService.submit(() -> {
+        try {
+          return contextualizeWithRetry(chunk.chunkIndex(), prompt, chunk.content());
+        } finally {
+          concurrencyPermits.release();
+        }
+      }));
+    }
+
+    List<ContextualizationResult> results = new ArrayList<>(futures.size());
+    Map<String, String> generatedContexts = new HashMap<>();
+    for (int i = 0; i < futures.size(); i++) {
+      PendingChunk chunk = chunks.get(i);
+      try {
+        ContextualizationResult result = futures.get(i).get();
+        results.add(result);
+        if (!result.failed() && !cachedContexts.containsKey(chunk.chunkIndex())) {
+          generatedContexts.put(chunk.content(), result.context());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for chunk contextualization", e);
+      } catch (ExecutionException e) {
+        results.add(new ContextualizationResult(chunk.chunkIndex(), null, null, (Exception) e.getCause()));
+      }
+    }
+    contentCache.saveContexts(prompt, generatedContexts);
+
+    long failed = results.stream().filter(ContextualizationResult::failed).count();
+    log.info("Contextualized {} chunks ({} from cache), {} failed", results.size() - failed, cachedContexts.size(),
+        failed);
+    return results;
+  }
+
+  private ContextualizationResult contextualizeWithRetry(int chunkIndex, ContextualizationPrompt prompt,
+      String chunkContent) throws InterruptedException {
+    long estimatedTokens = estimateTokens(prompt, chunkContent);
+    Duration backoff = configuration.getInitialBackoff();
+
+    for (int attempt = 0;; attempt++) {
+      tokenBudget.acquire(estimatedTokens);
+      try {
+        String context = contextualizeChunk(prompt, chunkContent);
+        return new ContextualizationResult(chunkIndex, context, contextualizedText(context, chunkContent), null);
+      } catch (RetriableException e) {
+        if (attempt >= configuration.getMaxRetries()) {
+          log.error("Chunk {} failed after {} attempts", chunkIndex, attempt + 1, e);
+          return new ContextualizationResult(chunkIndex, null, null, e);
+        }
+        // full jitter so throttled chunks do not come back in lockstep
+        long sleepMillis = ThreadLocalRandom.current().nextLong(backoff.toMillis() + 1);
+        log.warn("Chunk {} attempt {} was throttled or failed transiently ({}), retrying in {} ms",
+            chunkIndex, attempt + 1, e.getClass().getSimpleName(), sleepMillis);
+        Thread.sleep(sleepMillis);
+        backoff = min(backoff.multipliedBy(2), configuration.getMaxBackoff());
+      } catch (RuntimeException e) {
+        log.error("Chunk {} failed with non retriable error", chunkIndex, e);
+        return new ContextualizationResult(chunkIndex, null, null, e);
+      }
+    }
+  }
+
+  private String contextualizeChunk(ContextualizationPrompt prompt, String chunkContent) {
+    log.debug("Contextualizing chunk with LLM");
+    String context = chatModel.chat(prompt.forChunk(chunkContent)).aiMessage().text();
+    log.debug("Generated context: {}", context);
+    return context;
+  }
+
+  private static String contextualizedText(String context, String chunkContent) {
+    return context + "\n\n" + chunkContent;
+  }
+
+  // ~4 characters per token is close enough for budgeting english text
+  private long estimateTokens(ContextualizationPrompt prompt, String chunkContent) {
+    return prompt.length(chunkContent) / 4 + configuration.getExpectedOutputTokens();
+  }
+
+  private static Duration min(Duration a, Duration b) {
+    return a.compareTo(b) <= 0 ? a : b;
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executorService.shutdownNow();
+  }
+}
@@ -0,0 +1,338 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.xml.sax.helpers.DefaultHandler;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentParser;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+import edu.xkollar3.contextual_retrieval_repository.configuration.IngestionConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentChunkEntity;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentEntity;
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobState;
+import edu.xkollar3.contextual_retrieval_repository.repository.DocumentChunkBulkWriter;
+import edu.xkollar3.contextual_retrieval_repository.repository.DocumentChunkRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.IngestionJobRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.StoredChunk;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * parse -> split -> contextualize -> embed -> save for a single ingestion job.
+ *
+ * Chunks are processed in windows of the embedding batch size and every window
+ * is committed in its own short transaction together with the job progress,
+ * no transaction is held open while LLM calls run.
+ *
+ * The new split is diffed against the chunks already stored for the document
+ * by content fingerprint. Stored chunks are parked at negative chunk indexes
+ * first, unchanged chunks are then renumbered to their place in the new split,
+ * new and changed ones are contextualized and embedded and stored chunks that
+ * are not part of the split any more are deleted in bulk, also when some
+ * chunks failed. Until then they keep a negative index, which no chunk of the
+ * new split has, so they are never merged with its neighbours. The same diff
+ * makes a resumed job skip the chunks it stored before and a reindex of a
+ * document cost as much as the chunks that changed. Unchanged chunks keep the
+ * context generated from the previous version of the document.
+ *
+ * Uploads above the streaming threshold are not parsed into memory as a whole,
+ * Tika pushes text into a streaming splitter on a producer thread and complete
+ * windows are handed over through a bounded queue. Such documents cannot be
+ * put into a prompt anyway, their chunks are contextualized with the text of
+ * their window instead of the whole document.
+ */
+@Component
+@Slf4j
+public class DocumentIngestionPipeline {
+
+  private static final int CHUNK_SIZE = 400;
+  private static final int CHUNK_OVERLAP = 200;
+  private static final StreamedWindow END_OF_DOCUMENT = new StreamedWindow(List.of(), "");
+
+  private final DocumentChunkRepository documentChunkRepository;
+  private final DocumentChunkBulkWriter documentChunkBulkWriter;
+  private final IngestionJobRepository ingestionJobRepository;
+  private final ContextualizationScheduler contextualizationScheduler;
+  private final EmbeddingBatchWriter embeddingBatchWriter;
+  private final TransactionTemplate transactionTemplate;
+  private final AnswerCache answerCache;
+  private final Bm25IndexService bm25IndexService;
+  private final int windowSize;
+  private final long streamingThresholdBytes;
+  private final int streamingContextChars;
+  private final int streamingQueueWindows;
+
+  @Autowired
+  public DocumentIngestionPipeline(DocumentChunkRepository documentChunkRepository,
+      DocumentChunkBulkWriter documentChunkBulkWriter, IngestionJobRepository ingestionJobRepository,
+      ContextualizationScheduler contextualizationScheduler, EmbeddingBatchWriter embeddingBatchWriter,
+      TransactionTemplate transactionTemplate, AnswerCache answerCache, Bm25IndexService bm25IndexService,
+      IngestionConfiguration configuration) {
+    this.documentChunkRepository = documentChunkRepository;
+    this.documentChunkBulkWriter = documentChunkBulkWriter;
+    this.ingestionJobRepository = ingestionJobRepository;
+    this.contextualizationScheduler = contextualizationScheduler;
+    this.embeddingBatchWriter = embeddingBatchWriter;
+    this.transactionTemplate = transactionTemplate;
+    this.answerCache = answerCache;
+    this.bm25IndexService = bm25IndexService;
+    this.windowSize = configuration.getEmbeddingBatchSize();
+    this.streamingThresholdBytes = configuration.getStreamingThreshold().toBytes();
+    this.streamingContextChars = configuration.getStreamingContextChars();
+    this.streamingQueueWindows = configuration.getStreamingQueueWindows();
+  }
+
+  /**
+   * @return number of chunks that could not be processed in this run
+   */
+  public int run(UUID jobId, DocumentEntity document, Path source) throws IOException {
+    if (Files.size(source) > streamingThresholdBytes) {
+      return runStreaming(jobId, document, source);
+    }
+    return runWholeDocument(jobId, document, source);
+  }
+
+  private int runWholeDocument(UUID jobId, DocumentEntity document, Path source) throws IOException {
+    DocumentParser parser = new ApacheTikaDocumentParser();
+    DocumentSplitter splitter = DocumentSplitters.recursive(CHUNK_SIZE, CHUNK_OVERLAP);
+
+    Document parsed;
+    try (InputStream inputStream = Files.newInputStream(source)) {
+      parsed = parser.parse(inputStream);
+    }
+    List<TextSegment> segments = splitter.split(parsed);
+
+    ChunkDiff diff = parkStoredChunks(document);
+    List<PendingChunk> chunks = new ArrayList<>(segments.size());
+    for (int chunkIndex = 0; chunkIndex < segments.size(); chunkIndex++) {
+      chunks.add(new PendingChunk(chunkIndex, segments.get(chunkIndex).text()));
+    }
+    Map<UUID, Integer> renumbered = new HashMap<>();
+    List<PendingChunk> pending = diff(diff, chunks, renumbered);
+    int unchanged = segments.size() - pending.size();
+
+    transactionTemplate.executeWithoutResult(status -> {
+      documentChunkBulkWriter.updateChunkIndexes(renumbered);
+      ingestionJobRepository.startRun(jobId, IngestionJobState.RUNNING, segments.size(), unchanged, Instant.now());
+    });
+    log.info("Job {}: {} chunks in document, {} already stored, {} to process",
+        jobId, segments.size(), unchanged, pending.size());
+    // the whole split is known, superseded chunks do not have to wait for the new ones
+    removeChunks(jobId, document, diff.unmatched());
+
+    ContextualizationPrompt prompt = ContextualizationPrompt.forDocument(parsed.text());
+    int failed = 0;
+    for (int from = 0; from < pending.size(); from += windowSize) {
+      List<PendingChunk> window = pending.subList(from, Math.min(from + windowSize, pending.size()));
+      failed += processWindow(jobId, document, prompt, window);
+    }
+    return failed;
+  }
+
+  private int runStreaming(UUID jobId, DocumentEntity document, Path source) throws IOException {
+    ChunkDiff diff = parkStoredChunks(document);
+    transactionTemplate.executeWithoutResult(status -> ingestionJobRepository.startRun(jobId,
+        IngestionJobState.RUNNING, 0, 0, Instant.now()));
+    log.info("Job {}: streaming document", jobId);
+
+    BlockingQueue<StreamedWindow> windows = new ArrayBlockingQueue<>(streamingQueueWindows);
+    AtomicReference<Exception> parseError = new AtomicReference<>();
+    Thread producer = Thread.ofVirtual().name("ingestion-parser-" + jobId).start(() -> {
+      try (InputStream inputStream = Files.newInputStream(source)) {
+        StreamingTextSplitter splitter = new StreamingTextSplitter(CHUNK_SIZE, CHUNK_OVERLAP, windowSize,
+            streamingContextChars, window -> enqueue(windows, window));
+        new AutoDetectParser().parse(inputStream, new BodyContentHandler(new SplitterContentHandler(splitter)),
+            new Metadata(), new ParseContext());
+        splitter.finish();
+      } catch (Exception e) {
+        parseError.set(e);
+      } finally {
+        if (!Thread.currentThread().isInterrupted()) {
+          enqueue(windows, END_OF_DOCUMENT);
+        }
+      }
+    });
+
+    int failed = 0;
+    try {
+      while (true) {
+        StreamedWindow window = windows.take();
+        if (window == END_OF_DOCUMENT) {
+          break;
+        }
+        List<PendingChunk> chunks = window.chunks();
+        int lastIndex = chunks.get(chunks.size() - 1).chunkIndex();
+
+        Map<UUID, Integer> renumbered = new HashMap<>();
+        List<PendingChunk> pending = diff(diff, chunks, renumbered);
+        int unchanged = chunks.size() - pending.size();
+
+        transactionTemplate.executeWithoutResult(status -> {
+          documentChunkBulkWriter.updateChunkIndexes(renumbered);
+          ingestionJobRepository.updateTotalChunks(jobId, lastIndex + 1);
+          // unchanged chunks count as processed as soon as their window is reached
+          ingestionJobRepository.recordProgress(jobId, unchanged, 0);
+        });
+        if (!pending.isEmpty()) {
+          failed += processWindow(jobId, document, ContextualizationPrompt.forDocument(window.context()), pending);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while streaming document", e);
+    } finally {
+      // stops the parser if processing failed half way
+      producer.interrupt();
+    }
+
+    if (parseError.get() != null) {
+      throw new IOException("Failed to parse document", parseError.get());
+    }
+    // failed chunks are missing until a retry instead of being stood in for by
+    // the chunks they replace
+    removeChunks(jobId, document, diff.unmatched());
+    return failed;
+  }
+
+  /**
+   * @return diff against the stored chunks of the document, all of them parked
+   */
+  private ChunkDiff parkStoredChunks(DocumentEntity document) {
+    transactionTemplate.executeWithoutResult(status -> documentChunkBulkWriter.parkChunkIndexes(document.getId()));
+    return new ChunkDiff(documentChunkRepository.findStoredChunksByDocumentId(document.getId()));
+  }
+
+  /**
+   * @param renumbered filled with the new chunk index of unchanged chunks
+   * @return chunks that have to be processed
+   */
+  private static List<PendingChunk> diff(ChunkDiff diff, List<PendingChunk> chunks, Map<UUID, Integer> renumbered) {
+    List<PendingChunk> pending = new ArrayList<>();
+    for (PendingChunk chunk : chunks) {
+      StoredChunk stored = diff.match(ContentHashes.fingerprint(chunk.content()));
+      if (stored == null) {
+        pending.add(chunk);
+      } else if (stored.chunkIndex() != chunk.chunkIndex()) {
+        renumbered.put(stored.id(), chunk.chunkIndex());
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Vectors go first, a chunk row whose delete failed stays parked, it is
+   * still unmatched on the next run and only findable by full-text search
+   * until then.
+   */
+  private void removeChunks(UUID jobId, DocumentEntity document, List<StoredChunk> removed) {
+    if (removed.isEmpty()) {
+      return;
+    }
+    List<UUID> embeddingIds = removed.stream().map(StoredChunk::embeddingId).toList();
+    embeddingBatchWriter.removeAll(embeddingIds.stream().map(UUID::toString).toList());
+    transactionTemplate.executeWithoutResult(status -> documentChunkRepository
+        .deleteAllByIdInBatch(removed.stream().map(StoredChunk::id).toList()));
+    answerCache.invalidateDocument(document.getId());
+    bm25IndexService.remove(embeddingIds);
+    log.info("Job {}: removed {} chunks that are no longer in the document", jobId, removed.size());
+  }
+
+  private static void enqueue(BlockingQueue<StreamedWindow> windows, StreamedWindow window) {
+    try {
+      // blocks the parser while the pipeline is busy with previous windows
+      windows.put(window);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Streaming of the document was cancelled");
+    }
+  }
+
+  private int processWindow(UUID jobId, DocumentEntity document, ContextualizationPrompt prompt,
+      List<PendingChunk> window) {
+    List<ContextualizationResult> results = contextualizationScheduler.contextualizeAll(prompt, window);
+
+    List<String> ids = new ArrayList<>();
+    List<TextSegment> contextualizedSegments = new ArrayList<>();
+    List<DocumentChunkEntity> chunks = new ArrayList<>();
+    for (int i = 0; i < window.size(); i++) {
+      ContextualizationResult result = results.get(i);
+      if (result.failed()) {
+        continue;
+      }
+      PendingChunk pendingChunk = window.get(i);
+      UUID embeddingId = embeddingId(jobId, pendingChunk.chunkIndex());
+
+      ids.add(embeddingId.toString());
+      contextualizedSegments.add(TextSegment.from(result.contextualizedText()));
+
+      DocumentChunkEntity chunk = new DocumentChunkEntity();
+      chunk.setDocument(document);
+      chunk.setContent(pendingChunk.content());
+      chunk.setContextualizedText(result.contextualizedText());
+      chunk.setChunkIndex(pendingChunk.chunkIndex());
+      chunk.setEmbeddingId(embeddingId);
+      chunk.setContentHash(ContentHashes.fingerprint(pendingChunk.content()));
+      chunks.add(chunk);
+    }
+
+    embeddingBatchWriter.embedAndStore(ids, contextualizedSegments);
+
+    int failed = window.size() - chunks.size();
+    transactionTemplate.executeWithoutResult(status -> {
+      documentChunkBulkWriter.insertAll(document.getId(), chunks);
+      ingestionJobRepository.recordProgress(jobId, chunks.size(), failed);
+    });
+    answerCache.invalidateDocument(document.getId());
+    bm25IndexService.index(document.getName(), chunks);
+    return failed;
+  }
+
+  private static class SplitterContentHandler extends DefaultHandler {
+
+    private final StreamingTextSplitter splitter;
+
+    SplitterContentHandler(StreamingTextSplitter splitter) {
+      this.splitter = splitter;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      splitter.append(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+      splitter.append(ch, start, length);
+    }
+  }
+
+  // same id when a chunk is redone after a restart, the vector row is overwritten instead of duplicated
+  private static UUID embeddingId(UUID jobId, int chunkIndex) {
+    return UUID.nameUUIDFromBytes((jobId + ":" + chunkIndex).getBytes(StandardCharsets.UTF_8));
+  }
+}
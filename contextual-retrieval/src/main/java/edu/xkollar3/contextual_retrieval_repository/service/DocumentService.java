@@ -1,31 +1,33 @@
 package edu.xkollar3.contextual_retrieval_repository.service;
 
-import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
-
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentParser;
-import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
-import dev.langchain4j.data.embedding.Embedding;
+
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.rag.content.Content;
 import dev.langchain4j.rag.content.ContentMetadata;
@@ -33,11 +35,23 @@ import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
 import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import edu.xkollar3.contextual_retrieval_repository.model.DocumentChunkEntity;
-import edu.xkollar3.contextual_retrieval_repository.model.DocumentEntity;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration.HybridMode;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration.LexicalBackend;
+import edu.xkollar3.contextual_retrieval_repository.repository.ChunkContent;
 import edu.xkollar3.contextual_retrieval_repository.repository.DocumentChunkRepository;
-import edu.xkollar3.contextual_retrieval_repository.repository.DocumentRepository;
-import jakarta.transaction.Transactional;
+import edu.xkollar3.contextual_retrieval_repository.repository.FullTextHit;
+import edu.xkollar3.contextual_retrieval_repository.repository.FullTextSearchRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.HnswEmbeddingStore;
+import edu.xkollar3.contextual_retrieval_repository.repository.HybridSearchHit;
+import edu.xkollar3.contextual_retrieval_repository.repository.HybridSearchRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.VectorSearchHit;
+import edu.xkollar3.contextual_retrieval_repository.repository.VectorSearchRepository;
+import edu.xkollar3.contextual_retrieval_repository.service.ReciprocalRankFusion.FusedItem;
+import edu.xkollar3.contextual_retrieval_repository.service.ReciprocalRankFusion.Ranking;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
 // https://www.anthropic.com/engineering/contextual-retrieval
@@ -45,198 +59,330 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DocumentService {
 
-  private final DocumentRepository documentRepository;
+  private final FullTextSearchRepository fullTextSearchRepository;
   private final DocumentChunkRepository documentChunkRepository;
-  private final EmbeddingStore<TextSegment> embeddingStore;
-  private final EmbeddingModel embeddingModel;
+  private final HybridSearchRepository hybridSearchRepository;
+  private final VectorSearchRepository vectorSearchRepository;
+  private final Bm25IndexService bm25IndexService;
+  private final EmbeddingModel queryEmbeddingModel;
   private final ContentRetriever contentRetriever;
   private final ChatModel chatModel;
-  private final ExecutorService executorService = Executors
-      .newVirtualThreadPerTaskExecutor();
+  private final StreamingChatModel streamingChatModel;
+  private final ReciprocalRankFusion reciprocalRankFusion;
+  private final AnswerCache answerCache;
+  private final ContextPacker contextPacker;
+  // embeddings of retrieved chunks are read from the in-process store instead of the embedding table
+  private final Optional<HnswEmbeddingStore> hnswEmbeddingStore;
+  private final RetrievalConfiguration configuration;
+  private final MeterRegistry meterRegistry;
+  private final ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
   private final int K = 5;
 
   @Autowired
-  public DocumentService(DocumentRepository documentRepository, DocumentChunkRepository documentChunkRepository,
-      EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel, ChatModel chatModel) {
-    this.documentRepository = documentRepository;
+  public DocumentService(FullTextSearchRepository fullTextSearchRepository,
+      DocumentChunkRepository documentChunkRepository, HybridSearchRepository hybridSearchRepository,
+      VectorSearchRepository vectorSearchRepository, Bm25IndexService bm25IndexService,
+      EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel, ChatModel chatModel,
+      StreamingChatModel streamingChatModel, ReciprocalRankFusion reciprocalRankFusion, AnswerCache answerCache,
+      ContextPacker contextPacker, RetrievalConfiguration configuration, MeterRegistry meterRegistry) {
+    this.fullTextSearchRepository = fullTextSearchRepository;
     this.documentChunkRepository = documentChunkRepository;
-    this.embeddingStore = embeddingStore;
-    this.embeddingModel = embeddingModel;
+    this.hybridSearchRepository = hybridSearchRepository;
+    this.vectorSearchRepository = vectorSearchRepository;
+    this.bm25IndexService = bm25IndexService;
+    this.queryEmbeddingModel = new CachingQueryEmbeddingModel(embeddingModel,
+        configuration.getQueryEmbeddingCacheSize(), configuration.getQueryEmbeddingCacheTtl(), meterRegistry);
     this.contentRetriever = EmbeddingStoreContentRetriever.builder()
-        .embeddingModel(embeddingModel)
+        .embeddingModel(queryEmbeddingModel)
         .embeddingStore(embeddingStore)
-        .maxResults(K)
+        .maxResults(configuration.getCandidatesPerLeg())
         .build();
     this.chatModel = chatModel;
+    this.streamingChatModel = streamingChatModel;
+    this.reciprocalRankFusion = reciprocalRankFusion;
+    this.answerCache = answerCache;
+    this.contextPacker = contextPacker;
+    this.hnswEmbeddingStore = embeddingStore instanceof HnswEmbeddingStore hnsw ? Optional.of(hnsw) : Optional.empty();
+    this.configuration = configuration;
+    this.meterRegistry = meterRegistry;
   }
 
-  // create TF IDF index and also embedding for document
-  @Transactional
-  public void uploadDocument(MultipartFile file, String documentName) throws IOException {
-    log.info("Uploading document with name: {}", documentName);
-
-    DocumentEntity entity = new DocumentEntity();
-    entity.setName(documentName);
-    documentRepository.save(entity);
-
-    DocumentParser parser = new ApacheTikaDocumentParser();
-    DocumentSplitter splitter = DocumentSplitters.recursive(400, 200);
-    Document document = parser.parse(file.getInputStream());
-
-    List<TextSegment> segments = splitter.split(document);
-    String wholeDocumentText = document.text();
-
-    List<Future<DocumentChunkEntity>> futures = new ArrayList<>();
-
-    // Submit all tasks to executor service
-    for (int chunkIndex = 0; chunkIndex < segments.size(); chunkIndex++) {
-      final int index = chunkIndex;
-      TextSegment segment = segments.get(chunkIndex);
-
-      Future<DocumentChunkEntity> future = executorService.submit(() -> {
-        String contextualizedChunk = contextualizeChunk(wholeDocumentText, segment.text());
-        log.debug("Contextualized chunk: {}", contextualizedChunk);
-        TextSegment contextualizedSegment = TextSegment.from(contextualizedChunk);
-
-        // INEFFICIENT batch embed should be called! for demo is ok
-        Embedding embed = embeddingModel.embed(contextualizedSegment).content();
-        String id = embeddingStore.add(embed, contextualizedSegment);
-
-        DocumentChunkEntity chunk = new DocumentChunkEntity();
-        chunk.setDocument(entity);
-        chunk.setContent(segment.text());
-        chunk.setContextualizedText(contextualizedChunk);
-        chunk.setChunkIndex(index);
-        chunk.setEmbeddingId(UUID.fromString(id));
-        return chunk;
-      });
-
-      futures.add(future);
-    }
-
-    List<DocumentChunkEntity> results = new ArrayList<>();
+  @PreDestroy
+  public void shutdown() {
+    executorService.shutdownNow();
+  }
 
-    // Wait for all tasks to complete
-    for (Future<DocumentChunkEntity> future : futures) {
-      try {
-        DocumentChunkEntity chunk = future.get();
-        results.add(chunk);
-      } catch (Exception e) {
-        log.error("Error processing chunk", e);
-        throw new RuntimeException("Failed to process chunk", e);
+  public String query(String query) {
+    log.info("Processing query: {}", query);
+    long start = System.nanoTime();
+    float[] queryEmbedding = answerCacheEmbedding(query);
+    if (queryEmbedding != null) {
+      Optional<String> cachedAnswer = answerCache.find(queryEmbedding);
+      if (cachedAnswer.isPresent()) {
+        return cachedAnswer.get();
       }
     }
 
-    documentChunkRepository.saveAll(results);
+    long generation = answerCache.generation();
+    List<RetrievedChunk> retrievedChunks = retrieveTopK(query);
+    String answer = chatModel.chat(prompt(query, retrievedChunks));
+    log.info("Generated answer for query: {}", query);
 
-    log.info("All {} chunks processed and saved to database", futures.size());
+    cacheAnswer(queryEmbedding, answer, retrievedChunks, start, generation);
+    return answer;
   }
 
-  private String contextualizeChunk(String wholeDocument, String chunkContent) {
-    log.debug("Contextualizing chunk with LLM");
-    // TODO: replace document in earlier to avoid doing everytime
-    String prompt = ContextualizationPrompt.PROMPT
-        .replace("{{WHOLE_DOCUMENT}}", wholeDocument)
-        .replace("{{CHUNK_CONTENT}}", chunkContent);
-
-    String context = chatModel.chat(prompt);
-    log.debug("Generated context: {}", context);
+  /**
+   * Streaming variant of query, blocks the calling thread for the retrieval
+   * and returns once the model started streaming, the rest of the answer is
+   * delivered to the stream from the model's threads.
+   */
+  public void queryStreaming(String query, AnswerStream stream) {
+    log.info("Processing streamed query: {}", query);
+    long start = System.nanoTime();
+    try {
+      float[] queryEmbedding = answerCacheEmbedding(query);
+      if (queryEmbedding != null) {
+        Optional<String> cachedAnswer = answerCache.find(queryEmbedding);
+        if (cachedAnswer.isPresent()) {
+          // sources of cached answers are not kept
+          stream.sources(List.of());
+          stream.token(cachedAnswer.get());
+          stream.complete();
+          return;
+        }
+      }
 
-    return context + "\n\n" + chunkContent;
+      long generation = answerCache.generation();
+      List<RetrievedChunk> retrievedChunks = retrieveTopK(query);
+      stream.sources(retrievedChunks);
+
+      streamingChatModel.chat(prompt(query, retrievedChunks), new StreamingChatResponseHandler() {
+        @Override
+        public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+          stream.onCancel(context.streamingHandle()::cancel);
+          stream.token(partialResponse.text());
+        }
+
+        @Override
+        public void onCompleteResponse(ChatResponse completeResponse) {
+          log.info("Streamed answer for query: {}", query);
+          cacheAnswer(queryEmbedding, completeResponse.aiMessage().text(), retrievedChunks, start, generation);
+          stream.complete();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+          log.error("Streaming the answer failed", error);
+          stream.error(error);
+        }
+      });
+    } catch (RuntimeException e) {
+      log.error("Answering the streamed query failed", e);
+      stream.error(e);
+    }
   }
 
-  public String query(String query) {
-    log.info("Processing query: {}", query);
-    List<String> retrievedChunks = retrieveTopK(query);
-
-    String context = String.join("\n\n", retrievedChunks);
-    String prompt = String.format(
+  private String prompt(String query, List<RetrievedChunk> retrievedChunks) {
+    String context = String.join("\n\n", packContext(retrievedChunks));
+    return String.format(
         "Use the following context to answer the question:\n\nContext:\n%s\n\nQuestion: %s",
         context,
         query);
+  }
 
-    String answer = chatModel.chat(prompt);
-    log.info("Generated answer for query: {}", query);
-    return answer;
+  /**
+   * The prompt gets the original text of the chunks, adjacent ones merged,
+   * near-duplicates left out and within the token budget.
+   */
+  private List<String> packContext(List<RetrievedChunk> retrievedChunks) {
+    List<UUID> embeddingIds = retrievedChunks.stream().map(RetrievedChunk::embeddingId).toList();
+    Map<UUID, ChunkContent> contents = new HashMap<>();
+    documentChunkRepository.findChunkContentsByEmbeddingIds(embeddingIds)
+        .forEach(content -> contents.put(content.embeddingId(), content));
+    Map<UUID, float[]> embeddings = findEmbeddings(embeddingIds);
+
+    List<ContextPacker.Chunk> chunks = new ArrayList<>(retrievedChunks.size());
+    for (RetrievedChunk retrieved : retrievedChunks) {
+      ChunkContent content = contents.get(retrieved.embeddingId());
+      float[] embedding = embeddings.get(retrieved.embeddingId());
+      chunks.add(content == null
+          // deleted since it was retrieved, the retrieved text is all there is
+          ? new ContextPacker.Chunk(null, -1, retrieved.content(), embedding, retrieved.score())
+          : new ContextPacker.Chunk(content.documentId().toString(), content.chunkIndex(), content.content(),
+              embedding, retrieved.score()));
+    }
+    return contextPacker.pack(chunks);
   }
 
-  private List<String> retrieveTopK(String query) {
-    log.info("Starting top-K retrieval for query: {}", query);
-    Map<UUID, RetrievedChunk> fullTextSearchResults = score(doFulltextSearch(query));
-    Map<UUID, RetrievedChunk> retrievalResults = score(doRetrieval(query));
-
-    Set<UUID> uniqueIds = new HashSet<>();
-    uniqueIds.addAll(fullTextSearchResults.keySet());
-    uniqueIds.addAll(retrievalResults.keySet());
-
-    log.info("Full-text search found {} unique chunks, vector retrieval found {} unique chunks, total unique: {}",
-        fullTextSearchResults.size(), retrievalResults.size(), uniqueIds.size());
-
-    // TreeMap sorted by score in descending order
-    Map<UUID, RetrievedChunk> mergedResults = new TreeMap<>(
-        Comparator.comparingDouble((UUID id) -> {
-          float mergedScore = 0;
-          if (fullTextSearchResults.containsKey(id)) {
-            mergedScore += fullTextSearchResults.get(id).score();
-          }
-          if (retrievalResults.containsKey(id)) {
-            mergedScore += retrievalResults.get(id).score();
-          }
-          return mergedScore;
-        }).reversed());
-
-    for (UUID id : uniqueIds) {
-      float mergedScore = 0;
-      String content = "";
-
-      if (fullTextSearchResults.containsKey(id)) {
-        RetrievedChunk chunk = fullTextSearchResults.get(id);
-        mergedScore += chunk.score();
-        content = chunk.content();
-      }
-      if (retrievalResults.containsKey(id)) {
-        RetrievedChunk chunk = retrievalResults.get(id);
-        mergedScore += chunk.score();
-        content = chunk.content();
-      }
+  private Map<UUID, float[]> findEmbeddings(List<UUID> embeddingIds) {
+    if (hnswEmbeddingStore.isEmpty()) {
+      return vectorSearchRepository.findEmbeddings(embeddingIds);
+    }
+    Map<UUID, float[]> embeddings = new HashMap<>();
+    hnswEmbeddingStore.get().findEmbeddings(embeddingIds.stream().map(UUID::toString).toList())
+        .forEach((id, embedding) -> embeddings.put(UUID.fromString(id), embedding));
+    return embeddings;
+  }
+
+  /**
+   * @param generation of the answer cache, taken before the retrieval
+   */
+  private void cacheAnswer(float[] queryEmbedding, String answer, List<RetrievedChunk> retrievedChunks, long start,
+      long generation) {
+    if (queryEmbedding == null || retrievedChunks.isEmpty()) {
+      return;
+    }
+    Set<UUID> chunkIds = retrievedChunks.stream().map(RetrievedChunk::embeddingId).collect(Collectors.toSet());
+    Set<UUID> documentIds = documentChunkRepository.findDocumentIdsByEmbeddingIds(chunkIds);
+    // the document of a chunk deleted in the meantime is not known any more
+    if (documentChunkRepository.countByEmbeddingIdIn(chunkIds) < chunkIds.size()) {
+      log.info("Not caching answer, some of its chunks were deleted while it was generated");
+      return;
+    }
+    answerCache.put(queryEmbedding, answer, chunkIds, documentIds, System.nanoTime() - start, generation);
+  }
+
+  /**
+   * @return embedding of the query, null when the answer cache is disabled or
+   *         the query cannot be embedded right now, retrieval then goes on
+   *         without the cache
+   */
+  private float[] answerCacheEmbedding(String query) {
+    if (!answerCache.isEnabled()) {
+      return null;
+    }
+    try {
+      // goes through the query embedding cache, the vector leg reuses it
+      return queryEmbeddingModel.embed(query).content().vector();
+    } catch (RuntimeException e) {
+      log.warn("Embedding the query for the answer cache failed, skipping the cache", e);
+      return null;
+    }
+  }
 
-      mergedResults.put(id, new RetrievedChunk(content, mergedScore));
-      log.debug("Merged chunk ID: {} with score: {}", id, mergedScore);
+  private List<RetrievedChunk> retrieveTopK(String query) {
+    log.info("Starting top-K retrieval for query: {}", query);
+    if (configuration.getHybridMode() == HybridMode.DATABASE) {
+      return retrieveTopKInDatabase(query);
+    }
+    // both legs start together, the vector leg includes the embedding call
+    long start = System.nanoTime();
+    Future<Map<UUID, RetrievedChunk>> fullTextLeg = executorService
+        .submit(() -> timed("fulltext", () -> doFulltextSearch(query)));
+    Future<Map<UUID, RetrievedChunk>> vectorLeg = executorService
+        .submit(() -> timed("vector", () -> doRetrieval(query)));
+
+    Map<UUID, RetrievedChunk> fullTextResults = awaitLeg("fulltext", fullTextLeg, start,
+        configuration.getFullTextTimeout());
+    Map<UUID, RetrievedChunk> vectorResults = awaitLeg("vector", vectorLeg, start,
+        configuration.getVectorTimeout());
+    if (fullTextResults == null && vectorResults == null) {
+      throw new IllegalStateException("Both full-text and vector retrieval failed for the query");
     }
 
-    List<String> topKChunks = mergedResults.entrySet().stream()
-        .limit(K)
-        .peek(entry -> log.info("Top-K retrieved chunk ID: {} with merged score: {}",
-            entry.getKey(), String.format("%.4f", entry.getValue().score())))
-        .map(entry -> entry.getValue().content())
-        .toList();
+    Map<UUID, RetrievedChunk> fullTextSearchResults = fullTextResults == null ? Map.of() : fullTextResults;
+    Map<UUID, RetrievedChunk> retrievalResults = vectorResults == null ? Map.of() : vectorResults;
+
+    List<FusedItem<UUID>> fused = reciprocalRankFusion.fuse(List.of(
+        new Ranking<>(List.copyOf(fullTextSearchResults.keySet()), configuration.getFullTextWeight()),
+        new Ranking<>(List.copyOf(retrievalResults.keySet()), configuration.getVectorWeight())), K);
+
+    log.info("Full-text search found {} chunks, vector retrieval found {} chunks",
+        fullTextSearchResults.size(), retrievalResults.size());
+
+    List<RetrievedChunk> topKChunks = new ArrayList<>(fused.size());
+    for (FusedItem<UUID> item : fused) {
+      log.info("Top-K retrieved chunk ID: {} with merged score: {}", item.item(), String.format("%.4f", item.score()));
+      RetrievedChunk chunk = retrievalResults.get(item.item());
+      String content = chunk != null ? chunk.content() : fullTextSearchResults.get(item.item()).content();
+      topKChunks.add(new RetrievedChunk(item.item(), content, (float) item.score()));
+    }
 
     log.info("Retrieved top {} chunks for query", topKChunks.size());
     return topKChunks;
+  }
 
+  private List<RetrievedChunk> retrieveTopKInDatabase(String query) {
+    long start = System.nanoTime();
+    String outcome = "error";
+    try {
+      float[] embedding = queryEmbeddingModel.embed(query).content().vector();
+      List<HybridSearchHit> hits = hybridSearchRepository.search(query, embedding, K);
+      outcome = "success";
+
+      List<RetrievedChunk> topKChunks = new ArrayList<>(hits.size());
+      for (HybridSearchHit hit : hits) {
+        log.info("Top-K retrieved chunk ID: {} with merged score: {}", hit.embeddingId(),
+            String.format("%.4f", hit.score()));
+        topKChunks.add(new RetrievedChunk(hit.embeddingId(), hit.content(), (float) hit.score()));
+      }
+      log.info("Retrieved top {} chunks for query in a single statement", topKChunks.size());
+      return topKChunks;
+    } finally {
+      legTimer("hybrid", outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
   }
 
-  private Map<UUID, RetrievedChunk> score(Map<UUID, RetrievedChunk> items) {
-    float K = 60;
-    Map<UUID, RetrievedChunk> scored = new LinkedHashMap<>();
-    float rank = 1;
+  /**
+   * Waits for a leg until its timeout counted from the start of the retrieval.
+   *
+   * @return results of the leg, null when it failed or did not finish in time
+   */
+  private Map<UUID, RetrievedChunk> awaitLeg(String leg, Future<Map<UUID, RetrievedChunk>> future, long start,
+      Duration timeout) {
+    long remaining = start + timeout.toNanos() - System.nanoTime();
+    try {
+      return future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      legTimer(leg, "timeout").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      log.warn("{} retrieval did not finish within {}, continuing without it", leg, timeout);
+      return null;
+    } catch (ExecutionException e) {
+      log.warn("{} retrieval failed, continuing without it", leg, e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      return null;
+    }
+  }
 
-    for (var entry : items.entrySet()) {
-      float score = 1F / (rank + K);
-      scored.put(entry.getKey(), new RetrievedChunk(entry.getValue().content(), score));
-      rank++;
+  private <T> T timed(String leg, Callable<T> task) throws Exception {
+    long start = System.nanoTime();
+    String outcome = "error";
+    try {
+      T result = task.call();
+      outcome = "success";
+      return result;
+    } finally {
+      // a leg cancelled after its timeout is already recorded by the caller
+      if (!Thread.currentThread().isInterrupted()) {
+        legTimer(leg, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
     }
+  }
 
-    return scored;
+  private Timer legTimer(String leg, String outcome) {
+    return Timer.builder("retrieval.leg.latency")
+        .description("Latency of one leg of the hybrid retrieval")
+        .tag("leg", leg)
+        .tag("outcome", outcome)
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(meterRegistry);
   }
 
   private Map<UUID, RetrievedChunk> doFulltextSearch(String query) {
     log.info("Full text search with query: {}", query);
     Map<UUID, RetrievedChunk> results = new LinkedHashMap<>();
-    for (DocumentChunkEntity entity : documentChunkRepository.searchByQuery(query, K)) {
-      results.put(entity.getEmbeddingId(), new RetrievedChunk(entity.getContent(), -1F));
-      log.debug("Full-text search found chunk ID: {}, content: {}",
-          entity.getEmbeddingId(), entity.getContent());
+    List<FullTextHit> hits = configuration.getLexicalBackend() == LexicalBackend.BM25 && bm25IndexService.isReady()
+        ? bm25IndexService.search(query, configuration.getCandidatesPerLeg())
+        : fullTextSearchRepository.search(query, configuration.getFullTextRankFunction().name(),
+            configuration.getFullTextRankNormalization(), configuration.getCandidatesPerLeg());
+    for (FullTextHit hit : hits) {
+      results.put(hit.embeddingId(), new RetrievedChunk(hit.embeddingId(), hit.content(), -1F));
+      log.debug("Full-text search found chunk ID: {}, content: {}", hit.embeddingId(), hit.content());
     }
     log.info("Full-text search returned {} results", results.size());
     return results;
@@ -245,11 +391,20 @@ public class DocumentService {
   private Map<UUID, RetrievedChunk> doRetrieval(String query) {
     log.info("Doing vector similarity retrieval on query: {}", query);
     Map<UUID, RetrievedChunk> results = new LinkedHashMap<>();
+    if (vectorSearchRepository.isQuantized()) {
+      float[] embedding = queryEmbeddingModel.embed(query).content().vector();
+      for (VectorSearchHit hit : vectorSearchRepository.search(embedding, configuration.getCandidatesPerLeg())) {
+        results.put(hit.embeddingId(), new RetrievedChunk(hit.embeddingId(), hit.text(), -1F));
+        log.debug("Quantized vector search found chunk ID: {}, content: {}", hit.embeddingId(), hit.text());
+      }
+      log.info("Quantized vector search returned {} results", results.size());
+      return results;
+    }
     for (Content content : contentRetriever.retrieve(Query.from(query))) {
       String text = content.textSegment().text();
       String idString = ((String) content.metadata().get(ContentMetadata.EMBEDDING_ID));
       UUID chunkId = UUID.fromString(idString);
-      results.put(chunkId, new RetrievedChunk(text, -1F));
+      results.put(chunkId, new RetrievedChunk(chunkId, text, -1F));
       log.debug("Vector similarity search found chunk ID: {}, content: {}", chunkId, text);
     }
     log.info("Vector similarity retrieval returned {} results", results.size());
@@ -0,0 +1,92 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import edu.xkollar3.contextual_retrieval_repository.configuration.IngestionConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embeds segments with embedAll and persists them with addAll in batches of
+ * configurable size, so an upload costs one embedding round trip and one
+ * multi-row insert per batch instead of one of each per chunk.
+ */
+@Component
+@Slf4j
+public class EmbeddingBatchWriter {
+
+  private final EmbeddingModel embeddingModel;
+  private final EmbeddingStore<TextSegment> embeddingStore;
+  private final ContentCache contentCache;
+  private final int batchSize;
+
+  @Autowired
+  public EmbeddingBatchWriter(EmbeddingModel embeddingModel, EmbeddingStore<TextSegment> embeddingStore,
+      ContentCache contentCache, IngestionConfiguration configuration) {
+    this.embeddingModel = embeddingModel;
+    this.embeddingStore = embeddingStore;
+    this.contentCache = contentCache;
+    this.batchSize = configuration.getEmbeddingBatchSize();
+  }
+
+  /**
+   * Stores the segments under the given ids, the store upserts by id so
+   * repeating a batch (e.g. for a resumed job) does not create duplicates.
+   */
+  public void embedAndStore(List<String> ids, List<TextSegment> segments) {
+    int batchCount = (segments.size() + batchSize - 1) / batchSize;
+
+    for (int batch = 0; batch < batchCount; batch++) {
+      int from = batch * batchSize;
+      int to = Math.min(from + batchSize, segments.size());
+      List<TextSegment> batchSegments = segments.subList(from, to);
+      List<String> batchIds = ids.subList(from, to);
+
+      long embedStart = System.nanoTime();
+      List<Embedding> embeddings = embed(batchSegments);
+      long storeStart = System.nanoTime();
+      embeddingStore.addAll(batchIds, embeddings, batchSegments);
+      long storeEnd = System.nanoTime();
+
+      log.info("Embedding batch {}/{} with {} segments: embedding took {} ms, addAll took {} ms",
+          batch + 1, batchCount, batchSegments.size(),
+          (storeStart - embedStart) / 1_000_000, (storeEnd - storeStart) / 1_000_000);
+    }
+  }
+
+  public void removeAll(List<String> ids) {
+    if (!ids.isEmpty()) {
+      embeddingStore.removeAll(ids);
+    }
+  }
+
+  // cached vectors are reused, only the misses go to the embedding model
+  private List<Embedding> embed(List<TextSegment> segments) {
+    List<Embedding> embeddings = new ArrayList<>(contentCache.findEmbeddings(segments));
+
+    List<Integer> missing = new ArrayList<>();
+    for (int i = 0; i < embeddings.size(); i++) {
+      if (embeddings.get(i) == null) {
+        missing.add(i);
+      }
+    }
+    if (missing.isEmpty()) {
+      return embeddings;
+    }
+
+    List<TextSegment> missingSegments = missing.stream().map(segments::get).toList();
+    List<Embedding> computed = embeddingModel.embedAll(missingSegments).content();
+    for (int i = 0; i < missing.size(); i++) {
+      embeddings.set(missing.get(i), computed.get(i));
+    }
+    contentCache.saveEmbeddings(missingSegments, computed);
+    return embeddings;
+  }
+}
@@ -0,0 +1,125 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import edu.xkollar3.contextual_retrieval_repository.configuration.EmbeddingStoreConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentChunkEntity;
+import edu.xkollar3.contextual_retrieval_repository.repository.DocumentChunkRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.HnswEmbeddingStore;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persists the in-process HNSW embedding store, on shutdown and on demand.
+ * Does nothing for the pgvector store.
+ *
+ * document_chunks stays the source of truth. A snapshot can be missing, older
+ * than the database after a crash or written by another replica, so on startup
+ * the store is compared with the chunk table. Embeddings of deleted chunks are
+ * removed and missing chunks are embedded again, mostly from the embedding
+ * cache. Until then the vector leg misses the chunks that were not restored yet.
+ */
+@Service
+@Slf4j
+public class EmbeddingStoreSnapshotService {
+
+  private static final int RESTORE_BATCH_SIZE = 1000;
+
+  private final Optional<HnswEmbeddingStore> store;
+  private final DocumentChunkRepository documentChunkRepository;
+  private final EmbeddingBatchWriter embeddingBatchWriter;
+  private final String snapshotPath;
+  // embeddings read from the snapshot, only these can belong to chunks that no longer exist
+  private final Set<String> loadedIds;
+
+  @Autowired
+  public EmbeddingStoreSnapshotService(EmbeddingStore<TextSegment> embeddingStore,
+      DocumentChunkRepository documentChunkRepository, EmbeddingBatchWriter embeddingBatchWriter,
+      EmbeddingStoreConfiguration configuration) {
+    this.store = embeddingStore instanceof HnswEmbeddingStore hnsw ? Optional.of(hnsw) : Optional.empty();
+    this.documentChunkRepository = documentChunkRepository;
+    this.embeddingBatchWriter = embeddingBatchWriter;
+    this.snapshotPath = configuration.getHnswSnapshotPath();
+    this.loadedIds = store.map(HnswEmbeddingStore::ids).orElse(Set.of());
+  }
+
+  /**
+   * @return false when there is no in-process store or no snapshot path
+   */
+  public boolean save() throws IOException {
+    if (store.isEmpty() || snapshotPath == null || snapshotPath.isBlank()) {
+      return false;
+    }
+    store.get().saveSnapshot(Path.of(snapshotPath));
+    return true;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void synchronizeOnStartup() {
+    if (store.isEmpty()) {
+      return;
+    }
+    Thread.ofVirtual().name("hnsw-store-sync").start(() -> {
+      try {
+        synchronize(store.get());
+      } catch (RuntimeException e) {
+        log.error("Synchronizing the HNSW store with document_chunks failed, the vector leg may miss chunks", e);
+      }
+    });
+  }
+
+  @EventListener(ContextClosedEvent.class)
+  public void saveOnShutdown() {
+    try {
+      save();
+    } catch (IOException e) {
+      log.error("Saving the HNSW snapshot failed", e);
+    }
+  }
+
+  private void synchronize(HnswEmbeddingStore hnsw) {
+    Set<UUID> chunkIds = new HashSet<>(documentChunkRepository.findAllEmbeddingIds());
+    Set<String> indexed = hnsw.ids();
+
+    List<String> stale = loadedIds.stream().filter(id -> !chunkIds.contains(UUID.fromString(id))).toList();
+    List<UUID> missing = chunkIds.stream().filter(id -> !indexed.contains(id.toString())).toList();
+    if (stale.isEmpty() && missing.isEmpty()) {
+      log.info("HNSW store matches document_chunks with {} embeddings", indexed.size());
+      return;
+    }
+    log.warn("HNSW store has {} embeddings and document_chunks {} chunks, removing {} stale and restoring {} missing",
+        indexed.size(), chunkIds.size(), stale.size(), missing.size());
+
+    hnsw.removeAll(stale);
+    long start = System.nanoTime();
+    for (int from = 0; from < missing.size(); from += RESTORE_BATCH_SIZE) {
+      List<UUID> batch = missing.subList(from, Math.min(from + RESTORE_BATCH_SIZE, missing.size()));
+      List<String> ids = new ArrayList<>();
+      List<TextSegment> segments = new ArrayList<>();
+      // the same text and id ingestion embedded the chunk with
+      for (DocumentChunkEntity chunk : documentChunkRepository.findByEmbeddingIdIn(batch)) {
+        if (chunk.getContextualizedText() != null) {
+          ids.add(chunk.getEmbeddingId().toString());
+          segments.add(TextSegment.from(chunk.getContextualizedText()));
+        }
+      }
+      embeddingBatchWriter.embedAndStore(ids, segments);
+    }
+    log.info("HNSW store synchronized with document_chunks in {} ms, {} embeddings",
+        (System.nanoTime() - start) / 1_000_000, hnsw.size());
+  }
+}
@@ -0,0 +1,21 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobState;
+
+public record IngestionJobProgress(
+    UUID jobId,
+    UUID documentId,
+    String documentName,
+    IngestionJobState state,
+    int totalChunks,
+    int processedChunks,
+    int failedChunks,
+    double chunksPerSecond,
+    String error,
+    Instant createdAt,
+    Instant startedAt,
+    Instant finishedAt) {
+}
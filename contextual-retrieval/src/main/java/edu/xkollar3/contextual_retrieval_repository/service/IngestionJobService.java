@@ -0,0 +1,235 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.IngestionConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentEntity;
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobEntity;
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobState;
+import edu.xkollar3.contextual_retrieval_repository.repository.DocumentRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.IngestionJobRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Accepts uploads as ingestion jobs and runs them on a background worker pool.
+ *
+ * The upload is copied into the spool directory under the job id and stays
+ * there until the job completes, together with the job row this is all that is
+ * needed to resume an unfinished job after a restart. Jobs stopped by a
+ * shutdown are left RUNNING for that, not failed.
+ */
+@Service
+@Slf4j
+public class IngestionJobService {
+
+  private final DocumentRepository documentRepository;
+  private final IngestionJobRepository ingestionJobRepository;
+  private final DocumentIngestionPipeline pipeline;
+  private final TransactionTemplate transactionTemplate;
+  private final Path spoolDirectory;
+  private final ExecutorService workers;
+  // set before the workers are interrupted, what they fail with then is the shutdown
+  private volatile boolean shuttingDown;
+
+  @Autowired
+  public IngestionJobService(DocumentRepository documentRepository, IngestionJobRepository ingestionJobRepository,
+      DocumentIngestionPipeline pipeline, TransactionTemplate transactionTemplate,
+      IngestionConfiguration configuration) throws IOException {
+    this.documentRepository = documentRepository;
+    this.ingestionJobRepository = ingestionJobRepository;
+    this.pipeline = pipeline;
+    this.transactionTemplate = transactionTemplate;
+    this.spoolDirectory = Files.createDirectories(Path.of(configuration.getSpoolDirectory()));
+    this.workers = Executors.newFixedThreadPool(configuration.getWorkerThreads());
+  }
+
+  public IngestionJobProgress submit(MultipartFile file, String documentName) throws IOException {
+    log.info("Accepting document with name: {}", documentName);
+
+    UUID jobId = UUID.randomUUID();
+    file.transferTo(spoolFile(jobId));
+
+    IngestionJobEntity job = transactionTemplate.execute(status -> {
+      DocumentEntity document = new DocumentEntity();
+      document.setName(documentName);
+      documentRepository.save(document);
+
+      IngestionJobEntity entity = new IngestionJobEntity();
+      entity.setId(jobId);
+      entity.setDocument(document);
+      entity.setState(IngestionJobState.QUEUED);
+      entity.setCreatedAt(Instant.now());
+      return ingestionJobRepository.save(entity);
+    });
+
+    schedule(job);
+    return toProgress(job, documentName);
+  }
+
+  /**
+   * Ingests a new version of a stored document, only chunks that changed are
+   * contextualized and embedded again.
+   *
+   * @return empty when there is no such document
+   * @throws IllegalStateException when a job of the document is still running
+   */
+  public Optional<IngestionJobProgress> reindex(UUID documentId, MultipartFile file) throws IOException {
+    Optional<DocumentEntity> document = documentRepository.findById(documentId);
+    if (document.isEmpty()) {
+      return Optional.empty();
+    }
+    if (ingestionJobRepository.existsByDocumentIdAndStateIn(documentId,
+        List.of(IngestionJobState.QUEUED, IngestionJobState.RUNNING))) {
+      throw new IllegalStateException("Document " + documentId + " is still being ingested");
+    }
+    log.info("Accepting new version of document: {}", document.get().getName());
+
+    UUID jobId = UUID.randomUUID();
+    file.transferTo(spoolFile(jobId));
+
+    IngestionJobEntity job;
+    try {
+      job = transactionTemplate.execute(status -> {
+        IngestionJobEntity entity = new IngestionJobEntity();
+        entity.setId(jobId);
+        entity.setDocument(document.get());
+        entity.setState(IngestionJobState.QUEUED);
+        entity.setCreatedAt(Instant.now());
+        return ingestionJobRepository.saveAndFlush(entity);
+      });
+    } catch (DataIntegrityViolationException e) {
+      // the check above is only a shortcut, the unique index on unfinished
+      // jobs decides between concurrent reindexes
+      Files.deleteIfExists(spoolFile(jobId));
+      throw new IllegalStateException("Document " + documentId + " is still being ingested", e);
+    }
+
+    schedule(job);
+    return Optional.of(toProgress(job, document.get().getName()));
+  }
+
+  public Optional<IngestionJobProgress> getProgress(UUID jobId) {
+    return transactionTemplate.execute(status -> ingestionJobRepository.findById(jobId)
+        .map(job -> toProgress(job, job.getDocument().getName())));
+  }
+
+  /**
+   * Runs a failed job again, only the chunks that are not stored yet are
+   * processed.
+   */
+  public Optional<IngestionJobProgress> retry(UUID jobId) {
+    Optional<IngestionJobEntity> job = ingestionJobRepository.findById(jobId)
+        .filter(entity -> entity.getState() == IngestionJobState.FAILED)
+        .filter(entity -> Files.exists(spoolFile(entity.getId())));
+    if (job.isEmpty()) {
+      return Optional.empty();
+    }
+    Integer requeued;
+    try {
+      requeued = transactionTemplate.execute(status -> ingestionJobRepository
+          .updateStateIf(jobId, IngestionJobState.FAILED, IngestionJobState.QUEUED));
+    } catch (DataIntegrityViolationException e) {
+      log.info("Job {} is not retried, another job of its document is unfinished", jobId);
+      return Optional.empty();
+    }
+    if (requeued == null || requeued != 1) {
+      log.info("Job {} is not failed any more, another retry got it first", jobId);
+      return Optional.empty();
+    }
+    schedule(job.get());
+    return getProgress(jobId);
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void resumeUnfinishedJobs() {
+    List<IngestionJobEntity> unfinished = ingestionJobRepository
+        .findByStateInOrderByCreatedAt(List.of(IngestionJobState.QUEUED, IngestionJobState.RUNNING));
+    for (IngestionJobEntity job : unfinished) {
+      if (!Files.exists(spoolFile(job.getId()))) {
+        log.error("Cannot resume job {}, its spooled upload is missing", job.getId());
+        finish(job.getId(), IngestionJobState.FAILED, "Spooled upload missing, upload the document again");
+        continue;
+      }
+      log.info("Resuming unfinished ingestion job {}", job.getId());
+      schedule(job);
+    }
+  }
+
+  private void schedule(IngestionJobEntity job) {
+    UUID jobId = job.getId();
+    workers.submit(() -> {
+      try {
+        DocumentEntity document = documentRepository.findById(job.getDocument().getId()).orElseThrow();
+        int failed = pipeline.run(jobId, document, spoolFile(jobId));
+        if (shuttingDown) {
+          log.info("Ingestion job {} stopped by shutdown, it is resumed on the next start", jobId);
+        } else if (failed > 0) {
+          finish(jobId, IngestionJobState.FAILED, failed + " chunks could not be processed");
+        } else {
+          finish(jobId, IngestionJobState.COMPLETED, null);
+          Files.deleteIfExists(spoolFile(jobId));
+        }
+      } catch (Exception e) {
+        if (shuttingDown) {
+          log.info("Ingestion job {} stopped by shutdown, it is resumed on the next start", jobId);
+          return;
+        }
+        log.error("Ingestion job {} failed", jobId, e);
+        finish(jobId, IngestionJobState.FAILED, e.getMessage());
+      }
+    });
+  }
+
+  private void finish(UUID jobId, IngestionJobState state, String error) {
+    transactionTemplate.executeWithoutResult(
+        status -> ingestionJobRepository.updateState(jobId, state, error, Instant.now()));
+    log.info("Ingestion job {} finished with state {}", jobId, state);
+  }
+
+  private Path spoolFile(UUID jobId) {
+    return spoolDirectory.resolve(jobId.toString());
+  }
+
+  private IngestionJobProgress toProgress(IngestionJobEntity job, String documentName) {
+    double chunksPerSecond = 0;
+    if (job.getStartedAt() != null) {
+      Instant end = job.getFinishedAt() != null ? job.getFinishedAt() : Instant.now();
+      double seconds = Duration.between(job.getStartedAt(), end).toMillis() / 1000D;
+      int processedInRun = job.getProcessedChunks() - job.getProcessedChunksAtStart();
+      chunksPerSecond = seconds > 0 ? processedInRun / seconds : 0;
+    }
+    return new IngestionJobProgress(job.getId(), job.getDocument().getId(), documentName, job.getState(),
+        job.getTotalChunks(), job.getProcessedChunks(), job.getFailedChunks(), chunksPerSecond, job.getError(),
+        job.getCreatedAt(), job.getStartedAt(), job.getFinishedAt());
+  }
+
+  @PreDestroy
+  void shutdown() throws InterruptedException {
+    // running jobs stay RUNNING in the database and are resumed on the next start
+    shuttingDown = true;
+    workers.shutdownNow();
+    // interrupted jobs are done with the database before it is closed
+    if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+      log.warn("Ingestion workers did not stop within 30 seconds");
+    }
+  }
+}
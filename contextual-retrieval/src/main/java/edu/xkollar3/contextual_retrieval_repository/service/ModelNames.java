@@ -0,0 +1,27 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
+
+/**
+ * Names of the configured models, part of every cache key so that switching a
+ * model never serves results of the previous one.
+ */
+final class ModelNames {
+
+  private ModelNames() {
+  }
+
+  static String of(ChatModel chatModel) {
+    String name = chatModel.defaultRequestParameters().modelName();
+    return name != null ? name : chatModel.getClass().getName();
+  }
+
+  static String of(EmbeddingModel embeddingModel) {
+    if (embeddingModel instanceof OpenAiEmbeddingModel openAiEmbeddingModel) {
+      return openAiEmbeddingModel.modelName();
+    }
+    return embeddingModel.getClass().getName() + ":" + embeddingModel.dimension();
+  }
+}
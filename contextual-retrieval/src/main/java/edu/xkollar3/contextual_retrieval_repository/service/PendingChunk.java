@@ -0,0 +1,4 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+public record PendingChunk(int chunkIndex, String content) {
+}
@@ -0,0 +1,149 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration;
+
+/**
+ * Reciprocal rank fusion of any number of rankings, an item at 1-based rank r
+ * of a ranking with weight w contributes w / (k + r) to its fused score.
+ *
+ * Scores are accumulated in a primitive array indexed by the order in which
+ * items are first seen, rankings are walked rank by rank so that order is
+ * the best rank of the item, ties in the first ranking first. The top results
+ * are selected with a bounded heap and equal scores are broken by that order,
+ * so no item is ever dropped for having the same score as another one.
+ */
+@Component
+public class ReciprocalRankFusion {
+
+  public record Ranking<T>(List<T> items, double weight) {
+  }
+
+  public record FusedItem<T>(T item, double score) {
+  }
+
+  private final double k;
+
+  @Autowired
+  public ReciprocalRankFusion(RetrievalConfiguration configuration) {
+    this(configuration.getRrfK());
+  }
+
+  public ReciprocalRankFusion(double k) {
+    if (k < 0) {
+      throw new IllegalArgumentException("RRF constant must not be negative: " + k);
+    }
+    this.k = k;
+  }
+
+  /**
+   * @return at most topK items ordered by fused score, highest first
+   */
+  public <T> List<FusedItem<T>> fuse(List<Ranking<T>> rankings, int topK) {
+    int capacity = 0;
+    int longest = 0;
+    for (Ranking<T> ranking : rankings) {
+      capacity += ranking.items().size();
+      longest = Math.max(longest, ranking.items().size());
+    }
+
+    Map<T, Integer> slots = new HashMap<>(capacity * 4 / 3 + 1);
+    List<T> items = new ArrayList<>(capacity);
+    double[] scores = new double[capacity];
+
+    for (int rank = 0; rank < longest; rank++) {
+      for (Ranking<T> ranking : rankings) {
+        if (rank >= ranking.items().size()) {
+          continue;
+        }
+        T item = ranking.items().get(rank);
+        Integer slot = slots.get(item);
+        if (slot == null) {
+          slot = items.size();
+          slots.put(item, slot);
+          items.add(item);
+        }
+        scores[slot] += ranking.weight() / (k + rank + 1);
+      }
+    }
+
+    int[] top = selectTop(scores, items.size(), topK);
+    List<FusedItem<T>> fused = new ArrayList<>(top.length);
+    for (int slot : top) {
+      fused.add(new FusedItem<>(items.get(slot), scores[slot]));
+    }
+    return fused;
+  }
+
+  /**
+   * Keeps the best topK slots in a min-heap whose root is the worst kept one
+   * and returns them best first.
+   */
+  private static int[] selectTop(double[] scores, int count, int topK) {
+    int[] heap = new int[Math.max(0, Math.min(topK, count))];
+    int size = 0;
+    for (int slot = 0; slot < count; slot++) {
+      if (size < heap.length) {
+        heap[size] = slot;
+        siftUp(heap, size++, scores);
+      } else if (size > 0 && better(slot, heap[0], scores)) {
+        heap[0] = slot;
+        siftDown(heap, size, scores);
+      }
+    }
+
+    // pop the worst one to the end until the heap is empty, the array ends up best first
+    for (int end = size - 1; end > 0; end--) {
+      int worst = heap[0];
+      heap[0] = heap[end];
+      heap[end] = worst;
+      siftDown(heap, end, scores);
+    }
+    return heap;
+  }
+
+  private static boolean better(int slot, int other, double[] scores) {
+    int compared = Double.compare(scores[slot], scores[other]);
+    return compared > 0 || (compared == 0 && slot < other);
+  }
+
+  private static void siftUp(int[] heap, int index, double[] scores) {
+    int slot = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (!better(heap[parent], slot, scores)) {
+        break;
+      }
+      heap[index] = heap[parent];
+      index = parent;
+    }
+    heap[index] = slot;
+  }
+
+  private static void siftDown(int[] heap, int size, double[] scores) {
+    int index = 0;
+    int slot = heap[0];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && better(heap[child], heap[child + 1], scores)) {
+        child++;
+      }
+      if (!better(slot, heap[child], scores)) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = slot;
+  }
+}
@@ -1,4 +1,6 @@
 package edu.xkollar3.contextual_retrieval_repository.service;
 
-public record RetrievedChunk(String content, float score) {
-};
+import java.util.UUID;
+
+public record RetrievedChunk(UUID embeddingId, String content, float score) {
+}
@@ -0,0 +1,11 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.List;
+
+/**
+ * Consecutive chunks of a streamed document together with the raw text they
+ * were cut from (plus some text preceding them), which stands in for the whole
+ * document when contextualizing them.
+ */
+public record StreamedWindow(List<PendingChunk> chunks, String context) {
+}
@@ -0,0 +1,122 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Splits text that arrives in pieces into overlapping chunks of at most
+ * maxChars, preferring paragraph, line, sentence and word boundaries like the
+ * recursive splitter does. Chunks are grouped into windows of windowSize and
+ * handed to the sink as soon as a window is complete, text that no chunk or
+ * window context needs anymore is dropped from the buffer, so memory stays
+ * bounded by the window and not by the document.
+ */
+class StreamingTextSplitter {
+
+  private static final String[] SEPARATORS = { "\n\n", "\n", ". ", " " };
+
+  private final int maxChars;
+  private final int overlapChars;
+  private final int windowSize;
+  private final int contextChars;
+  private final Consumer<StreamedWindow> sink;
+
+  private final StringBuilder buffer = new StringBuilder();
+  // absolute offset in the document of buffer[0]
+  private long bufferStart = 0;
+  private long chunkStart = 0;
+  private long lastChunkEnd = 0;
+  private int nextChunkIndex = 0;
+
+  private final List<PendingChunk> windowChunks = new ArrayList<>();
+  private long windowStart = 0;
+  private long windowEnd = 0;
+
+  StreamingTextSplitter(int maxChars, int overlapChars, int windowSize, int contextChars,
+      Consumer<StreamedWindow> sink) {
+    this.maxChars = maxChars;
+    this.overlapChars = overlapChars;
+    this.windowSize = windowSize;
+    this.contextChars = contextChars;
+    this.sink = sink;
+  }
+
+  void append(char[] characters, int start, int length) {
+    buffer.append(characters, start, length);
+    while (bufferEnd() - chunkStart >= maxChars) {
+      emitChunk(findBreak(chunkStart + maxChars));
+    }
+  }
+
+  void finish() {
+    // the rest, unless it is only the overlap of the previous chunk
+    if (bufferEnd() > lastChunkEnd) {
+      emitChunk(bufferEnd());
+    }
+    flushWindow();
+  }
+
+  private long findBreak(long limit) {
+    long earliest = chunkStart + maxChars / 2;
+    for (String separator : SEPARATORS) {
+      int index = buffer.lastIndexOf(separator, offset(limit) - separator.length());
+      if (index >= 0 && bufferStart + index >= earliest) {
+        return bufferStart + index + separator.length();
+      }
+    }
+    return limit;
+  }
+
+  private void emitChunk(long end) {
+    String content = buffer.substring(offset(chunkStart), offset(end)).strip();
+    if (!content.isEmpty()) {
+      if (windowChunks.isEmpty()) {
+        windowStart = chunkStart;
+      }
+      windowChunks.add(new PendingChunk(nextChunkIndex++, content));
+      windowEnd = end;
+      if (windowChunks.size() == windowSize) {
+        flushWindow();
+      }
+    }
+    lastChunkEnd = end;
+
+    // the next chunk repeats up to overlapChars of this one, starting at a word
+    long next = Math.max(end - overlapChars, chunkStart + 1);
+    while (next < end && !Character.isWhitespace(buffer.charAt(offset(next - 1)))) {
+      next++;
+    }
+    chunkStart = next;
+    compact();
+  }
+
+  private void flushWindow() {
+    if (windowChunks.isEmpty()) {
+      return;
+    }
+    long contextStart = Math.max(bufferStart, windowStart - contextChars);
+    sink.accept(new StreamedWindow(List.copyOf(windowChunks),
+        buffer.substring(offset(contextStart), offset(windowEnd))));
+    windowChunks.clear();
+    compact();
+  }
+
+  private void compact() {
+    long neededFrom = (windowChunks.isEmpty() ? chunkStart : windowStart) - contextChars;
+    int dead = offset(Math.max(bufferStart, neededFrom));
+    // shifting the buffer is linear, only do it once a good part of it is dead
+    if (dead > 4096 && dead > buffer.length() / 2) {
+      buffer.delete(0, dead);
+      bufferStart += dead;
+    }
+  }
+
+  private long bufferEnd() {
+    return bufferStart + buffer.length();
+  }
+
+  private int offset(long absolute) {
+    return (int) (absolute - bufferStart);
+  }
+}
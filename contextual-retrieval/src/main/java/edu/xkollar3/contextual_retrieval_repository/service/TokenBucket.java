@@ -0,0 +1,44 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+/**
+ * Token per minute budget, refilled continuously. Callers block until the
+ * requested amount of tokens is available.
+ */
+class TokenBucket {
+
+  private final double capacity;
+  private final double refillPerNano;
+  private double available;
+  private long lastRefill;
+
+  TokenBucket(long tokensPerMinute) {
+    this.capacity = tokensPerMinute;
+    this.refillPerNano = tokensPerMinute / 60_000_000_000D;
+    this.available = tokensPerMinute;
+    this.lastRefill = System.nanoTime();
+  }
+
+  void acquire(long tokens) throws InterruptedException {
+    // a single request bigger than the whole budget would wait forever
+    double requested = Math.min(tokens, capacity);
+
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        refill();
+        if (available >= requested) {
+          available -= requested;
+          return;
+        }
+        waitNanos = (long) ((requested - available) / refillPerNano);
+      }
+      Thread.sleep(Math.max(1, waitNanos / 1_000_000));
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    available = Math.min(capacity, available + (now - lastRefill) * refillPerNano);
+    lastRefill = now;
+  }
+}
@@ -0,0 +1,72 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.EmbeddingStoreConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.repository.VectorIndexRepository;
+import lombok.extern.slf4j.Slf4j;
+
+@Service
+@Slf4j
+public class VectorIndexService {
+
+  private final VectorIndexRepository vectorIndexRepository;
+  private final boolean pgVectorStore;
+  private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+  @Autowired
+  public VectorIndexService(VectorIndexRepository vectorIndexRepository,
+      EmbeddingStoreConfiguration storeConfiguration) {
+    this.vectorIndexRepository = vectorIndexRepository;
+    this.pgVectorStore = storeConfiguration.getType() == EmbeddingStoreConfiguration.Type.PGVECTOR;
+  }
+
+  // the embedding table is created by the store bean, so wait until the context is up
+  @EventListener(ApplicationReadyEvent.class)
+  public void createIndexIfMissing() {
+    if (!pgVectorStore) {
+      return;
+    }
+    rebuilding.set(true);
+    Thread.ofVirtual().name("vector-index-create").start(() -> {
+      try {
+        vectorIndexRepository.createIndexIfMissing();
+      } catch (RuntimeException e) {
+        log.error("Creating the vector index failed", e);
+      } finally {
+        rebuilding.set(false);
+      }
+    });
+  }
+
+  /**
+   * Starts a concurrent rebuild of the vector index in the background.
+   *
+   * @return false when a rebuild is already running or the embeddings are not
+   *         stored in pgvector
+   */
+  public boolean rebuild() {
+    if (!pgVectorStore || !rebuilding.compareAndSet(false, true)) {
+      return false;
+    }
+    Thread.ofVirtual().name("vector-index-rebuild").start(() -> {
+      try {
+        vectorIndexRepository.rebuildIndex();
+      } catch (RuntimeException e) {
+        log.error("Rebuilding the vector index failed", e);
+      } finally {
+        rebuilding.set(false);
+      }
+    });
+    return true;
+  }
+
+  public boolean isRebuilding() {
+    return rebuilding.get();
+  }
+}
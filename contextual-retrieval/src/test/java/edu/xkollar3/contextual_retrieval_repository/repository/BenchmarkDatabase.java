@@ -0,0 +1,57 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+/**
+ * Scratch schema in the database from compose.yaml for benchmarks that need
+ * a real PostgreSQL, benchmarks are skipped when it is not running.
+ */
+final class BenchmarkDatabase {
+
+  private static final String URL = System.getProperty("benchmark.db.url", "jdbc:postgresql://localhost:5432/rag_db");
+  static final String USER = System.getProperty("benchmark.db.user", "postgres");
+  static final String PASSWORD = System.getProperty("benchmark.db.password", "postgres");
+
+  private BenchmarkDatabase() {
+  }
+
+  /**
+   * Drops and creates the schema and returns a data source whose single
+   * connection has it as the only schema on the search path.
+   */
+  static SingleConnectionDataSource recreateSchema(String schema) {
+    try (Connection connection = DriverManager.getConnection(URL, USER, PASSWORD);
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE EXTENSION IF NOT EXISTS vector");
+      statement.execute("DROP SCHEMA IF EXISTS " + schema + " CASCADE");
+      statement.execute("CREATE SCHEMA " + schema);
+    } catch (SQLException e) {
+      assumeTrue(false, "PostgreSQL from compose.yaml is not reachable: " + e.getMessage());
+    }
+    SingleConnectionDataSource dataSource = new SingleConnectionDataSource(url(schema), USER, PASSWORD, true);
+    dataSource.setAutoCommit(true);
+    return dataSource;
+  }
+
+  static String url(String schema) {
+    return URL + "?currentSchema=" + schema + ",public";
+  }
+
+  static void dropSchema(SingleConnectionDataSource dataSource, String schema) {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("DROP SCHEMA IF EXISTS " + schema + " CASCADE");
+    } catch (SQLException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      dataSource.destroy();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.DatabaseInitialization;
+
+/**
+ * Query latency and recall@5 of the database full-text search vs. the
+ * in-memory BM25 index over the same chunks. Every query is three words of
+ * one chunk, recall counts the queries whose chunk is among the top 5. The
+ * chunk count can be changed with -Dbenchmark.bm25.rows=1000000. Needs the
+ * database from compose.yaml.
+ */
+@Tag("benchmark")
+class Bm25IndexBenchmark {
+
+  private static final String SCHEMA = "benchmark_bm25";
+  private static final int VOCABULARY = 20_000;
+  private static final int WORDS_PER_CHUNK = 60;
+  private static final int QUERIES = 200;
+  private static final int TOP_K = 5;
+
+  private SingleConnectionDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private NamedParameterJdbcTemplate namedJdbcTemplate;
+
+  @BeforeEach
+  void setUp() {
+    dataSource = BenchmarkDatabase.recreateSchema(SCHEMA);
+    new DatabaseInitialization(dataSource).initializeDatabase();
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    namedJdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (dataSource != null) {
+      BenchmarkDatabase.dropSchema(dataSource, SCHEMA);
+    }
+  }
+
+  @Test
+  void inMemoryIndexAnswersFasterWithComparableRecall() {
+    int rows = Integer.getInteger("benchmark.bm25.rows", 100_000);
+    Random random = new Random(42);
+    UUID documentId = UUID.randomUUID();
+    jdbcTemplate.update("INSERT INTO documents (id, name) VALUES (?, ?)", documentId, "Benchmark corpus");
+
+    List<UUID> embeddingIds = new ArrayList<>(rows);
+    List<String> texts = new ArrayList<>(rows);
+    List<Object[]> batch = new ArrayList<>();
+    for (int i = 0; i < rows; i++) {
+      UUID embeddingId = UUID.randomUUID();
+      String text = chunkText(random);
+      embeddingIds.add(embeddingId);
+      texts.add(text);
+      batch.add(new Object[] {UUID.randomUUID(), documentId, text, text, i, embeddingId, text});
+      if (batch.size() == 1000 || i == rows - 1) {
+        jdbcTemplate.batchUpdate("""
+            INSERT INTO document_chunks (id, document_id, content, contextualized_text, chunk_index, embedding_id, search_vector)
+            VALUES (?, ?, ?, ?, ?, ?, to_tsvector(?))
+            """, batch);
+        batch.clear();
+      }
+    }
+    jdbcTemplate.execute("ANALYZE document_chunks");
+
+    FullTextSearchRepository repository = new FullTextSearchRepository(namedJdbcTemplate);
+    long start = System.nanoTime();
+    Bm25Index index = new Bm25Index(1.2f, 0.75f);
+    repository.forEachIndexedText((embeddingId, name, text) -> index.add(embeddingId, name + "\n" + text));
+    System.out.printf("%,d chunks, BM25 index built from the database in %.1f s%n", rows,
+        (System.nanoTime() - start) / 1e9);
+
+    List<String> queries = new ArrayList<>(QUERIES);
+    List<UUID> targets = new ArrayList<>(QUERIES);
+    for (int i = 0; i < QUERIES; i++) {
+      int chunk = random.nextInt(rows);
+      String[] words = texts.get(chunk).split(" ");
+      queries.add(words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " "
+          + words[random.nextInt(words.length)]);
+      targets.add(embeddingIds.get(chunk));
+    }
+
+    long postgresNanos = 0;
+    long bm25Nanos = 0;
+    int postgresFound = 0;
+    int bm25Found = 0;
+    for (int round = 0; round < 2; round++) {
+      // first round warms the caches and is not counted
+      for (int i = 0; i < QUERIES; i++) {
+        // websearch_to_tsquery ands the words, or them to match like BM25
+        String orQuery = queries.get(i).replace(" ", " or ");
+        start = System.nanoTime();
+        List<FullTextHit> postgresHits = repository.search(orQuery, "TS_RANK", 0, TOP_K);
+        long postgresEnd = System.nanoTime();
+        List<Bm25Hit> bm25Hits = index.search(queries.get(i), TOP_K);
+        long bm25End = System.nanoTime();
+        if (round == 1) {
+          postgresNanos += postgresEnd - start;
+          bm25Nanos += bm25End - postgresEnd;
+          UUID target = targets.get(i);
+          postgresFound += postgresHits.stream().anyMatch(hit -> hit.embeddingId().equals(target)) ? 1 : 0;
+          bm25Found += bm25Hits.stream().anyMatch(hit -> hit.embeddingId().equals(target)) ? 1 : 0;
+        }
+      }
+    }
+
+    double postgresRecall = (double) postgresFound / QUERIES;
+    double bm25Recall = (double) bm25Found / QUERIES;
+    System.out.printf("postgres ts_rank: %8.3f ms per query, recall@%d %.3f%n", postgresNanos / 1e6 / QUERIES, TOP_K,
+        postgresRecall);
+    System.out.printf("in-memory BM25:   %8.3f ms per query, recall@%d %.3f%n", bm25Nanos / 1e6 / QUERIES, TOP_K,
+        bm25Recall);
+
+    assertThat(bm25Nanos).isLessThan(postgresNanos);
+    assertThat(bm25Recall).isGreaterThanOrEqualTo(postgresRecall - 0.05);
+  }
+
+  // words drawn from a skewed distribution, a few are very frequent
+  private static String chunkText(Random random) {
+    StringBuilder text = new StringBuilder();
+    for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+      if (w > 0) {
+        text.append(' ');
+      }
+      text.append("word").append((int) (Math.pow(random.nextDouble(), 3) * VOCABULARY));
+    }
+    return text.toString();
+  }
+}
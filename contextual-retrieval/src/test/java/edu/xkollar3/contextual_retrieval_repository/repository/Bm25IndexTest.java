@@ -0,0 +1,142 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class Bm25IndexTest {
+
+  private static final UUID CATS = new UUID(0, 1);
+  private static final UUID DOGS = new UUID(0, 2);
+  private static final UUID BOTH = new UUID(0, 3);
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void ranksRareAndFrequentTermsHigher() {
+    Bm25Index index = index();
+
+    List<Bm25Hit> hits = index.search("cats", 10);
+
+    assertThat(hits).extracting(Bm25Hit::embeddingId).containsExactly(CATS, BOTH);
+    assertThat(hits.get(0).score()).isGreaterThan(hits.get(1).score());
+  }
+
+  @Test
+  void ignoresStopWordsAndPluralForms() {
+    Bm25Index index = index();
+
+    assertThat(index.search("the", 10)).isEmpty();
+    assertThat(index.search("a cat", 10)).extracting(Bm25Hit::embeddingId).containsExactly(CATS, BOTH);
+    assertThat(index.search("puppies", 10)).extracting(Bm25Hit::embeddingId).containsExactly(DOGS);
+  }
+
+  @Test
+  void lowerCasesTermsTheSameInEveryLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    try {
+      // upper case I lower cases to a dotless i in Turkish
+      Locale.setDefault(Locale.forLanguageTag("tr-TR"));
+      Bm25Index index = new Bm25Index(1.2f, 0.75f);
+      index.add(CATS, "INSTALL THE FILTER");
+
+      assertThat(index.search("install filter", 10)).extracting(Bm25Hit::embeddingId).containsExactly(CATS);
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  @Test
+  void replacesAndRemovesChunks() {
+    Bm25Index index = index();
+
+    index.add(CATS, "only about birds now");
+    index.remove(DOGS);
+
+    assertThat(index.size()).isEqualTo(2);
+    assertThat(index.search("cats", 10)).extracting(Bm25Hit::embeddingId).containsExactly(BOTH);
+    assertThat(index.search("birds dogs", 10)).extracting(Bm25Hit::embeddingId).containsExactly(CATS, BOTH);
+  }
+
+  @Test
+  void returnsTopK() {
+    Bm25Index index = new Bm25Index(1.2f, 0.75f);
+    for (int i = 0; i < 100; i++) {
+      index.add(new UUID(1, i), "word ".repeat(i + 1) + "filler text");
+    }
+
+    List<Bm25Hit> hits = index.search("word", 3);
+
+    // same frequency per length, the longer chunks saturate higher
+    assertThat(hits).hasSize(3);
+    assertThat(hits).isSortedAccordingTo((left, right) -> Float.compare(right.score(), left.score()));
+    assertThat(hits).extracting(Bm25Hit::embeddingId).containsExactly(new UUID(1, 99), new UUID(1, 98),
+        new UUID(1, 97));
+  }
+
+  @Test
+  void compactsRemovedChunksOutOfThePostings() {
+    Bm25Index index = new Bm25Index(1.2f, 0.75f);
+    Bm25Index reference = new Bm25Index(1.2f, 0.75f);
+    for (int i = 0; i < 4096; i++) {
+      index.add(new UUID(2, i), text(i));
+      if (i % 2 == 0) {
+        reference.add(new UUID(2, i), text(i));
+      }
+    }
+
+    // compacted after the 1024th and the 2048th removal, a quarter of the index each time
+    for (int i = 1; i < 4096; i += 2) {
+      index.remove(new UUID(2, i));
+    }
+
+    assertThat(index.size()).isEqualTo(2048);
+    List<Bm25Hit> hits = index.search("alpha", 20);
+    // document frequencies no longer count the removed chunks, ties may be broken differently
+    assertThat(hits).extracting(Bm25Hit::score)
+        .isEqualTo(reference.search("alpha", 20).stream().map(Bm25Hit::score).toList());
+    assertThat(hits).allMatch(hit -> hit.embeddingId().getLeastSignificantBits() % 2 == 0);
+    assertThat(index.search("c7", 10)).isEmpty();
+    index.add(new UUID(2, 7), "word again");
+    assertThat(index.search("again", 10)).extracting(Bm25Hit::embeddingId).containsExactly(new UUID(2, 7));
+  }
+
+  @Test
+  void restoresSavedIndexWithoutRemovedChunks() throws IOException {
+    Bm25Index index = index();
+    index.remove(DOGS);
+    Path file = directory.resolve("bm25.bin");
+
+    index.save(file);
+    Bm25Index loaded = Bm25Index.load(file, 1.2f, 0.75f);
+
+    assertThat(loaded.size()).isEqualTo(2);
+    // saving compacted the index, both have the same document frequencies
+    for (String query : List.of("cats", "dogs", "cats and dogs", "fish")) {
+      assertThat(loaded.search(query, 10)).usingRecursiveFieldByFieldElementComparator().isEqualTo(index.search(query, 10));
+    }
+    loaded.add(DOGS, "dogs again");
+    assertThat(loaded.search("dogs", 10)).extracting(Bm25Hit::embeddingId).contains(DOGS);
+  }
+
+  // alpha in every fifth chunk, repeated so the chunks rank differently
+  private static String text(int i) {
+    return (i % 5 == 0 ? "alpha ".repeat(i % 7 + 1) : "") + "filler text c" + i;
+  }
+
+  private static Bm25Index index() {
+    Bm25Index index = new Bm25Index(1.2f, 0.75f);
+    index.add(CATS, "The cats sleep. Cats like fish, the cat is happy.");
+    index.add(DOGS, "The dogs and their puppies run in the park.");
+    index.add(BOTH, "A long story about cats and dogs living together in a small house with a garden.");
+    return index;
+  }
+}
@@ -0,0 +1,134 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.DatabaseInitialization;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentChunkEntity;
+
+/**
+ * Chunks per second persisted row by row (what saveAll did without JDBC
+ * batching, the trigger looks up the document name for every row) vs. COPY
+ * through DocumentChunkBulkWriter. Needs the database from compose.yaml.
+ */
+@Tag("benchmark")
+class DocumentChunkBulkWriterBenchmark {
+
+  private static final String SCHEMA = "benchmark_chunk_writes";
+  private static final int CHUNKS = 5_000;
+  private static final int ROUNDS = 3;
+
+  private SingleConnectionDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  void setUp() {
+    dataSource = BenchmarkDatabase.recreateSchema(SCHEMA);
+    new DatabaseInitialization(dataSource).initializeDatabase();
+    jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (dataSource != null) {
+      BenchmarkDatabase.dropSchema(dataSource, SCHEMA);
+    }
+  }
+
+  @Test
+  void copyIsFasterThanRowByRowInserts() throws SQLException {
+    DocumentChunkBulkWriter writer = new DocumentChunkBulkWriter(dataSource);
+    TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+    double rowByRowRate = 0;
+    double copyRate = 0;
+    UUID rowByRowDocument = null;
+    UUID copyDocument = null;
+    for (int round = 0; round < ROUNDS; round++) {
+      List<DocumentChunkEntity> chunks = chunks(round);
+
+      rowByRowDocument = insertDocument();
+      long start = System.nanoTime();
+      insertRowByRow(rowByRowDocument, chunks);
+      rowByRowRate = CHUNKS / ((System.nanoTime() - start) / 1e9);
+
+      copyDocument = insertDocument();
+      UUID documentId = copyDocument;
+      start = System.nanoTime();
+      transactionTemplate.executeWithoutResult(status -> writer.insertAll(documentId, chunks));
+      copyRate = CHUNKS / ((System.nanoTime() - start) / 1e9);
+
+      System.out.printf("round %d: row by row %.0f chunks/s, COPY %.0f chunks/s%n", round, rowByRowRate, copyRate);
+    }
+
+    // both paths have to produce the same search vectors
+    Integer differing = jdbcTemplate.queryForObject("""
+        SELECT count(*) FROM document_chunks a
+        JOIN document_chunks b ON a.chunk_index = b.chunk_index
+        WHERE a.document_id = ? AND b.document_id = ? AND a.search_vector IS DISTINCT FROM b.search_vector
+        """, Integer.class, rowByRowDocument, copyDocument);
+    assertThat(differing).isZero();
+    assertThat(copyRate).isGreaterThan(rowByRowRate);
+  }
+
+  private UUID insertDocument() {
+    UUID id = UUID.randomUUID();
+    jdbcTemplate.update("INSERT INTO documents (id, name) VALUES (?, ?)", id, "Operating manual of the X-200 pump");
+    return id;
+  }
+
+  private void insertRowByRow(UUID documentId, List<DocumentChunkEntity> chunks) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    connection.setAutoCommit(false);
+    try (PreparedStatement statement = connection.prepareStatement(
+        "INSERT INTO document_chunks (id, document_id, content, contextualized_text, chunk_index, embedding_id) "
+            + "VALUES (?, ?, ?, ?, ?, ?)")) {
+      for (DocumentChunkEntity chunk : chunks) {
+        statement.setObject(1, UUID.randomUUID());
+        statement.setObject(2, documentId);
+        statement.setString(3, chunk.getContent());
+        statement.setString(4, chunk.getContextualizedText());
+        statement.setInt(5, chunk.getChunkIndex());
+        statement.setObject(6, chunk.getEmbeddingId());
+        statement.executeUpdate();
+      }
+      connection.commit();
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+
+  private static List<DocumentChunkEntity> chunks(long seed) {
+    Random random = new Random(seed);
+    List<DocumentChunkEntity> chunks = new ArrayList<>(CHUNKS);
+    for (int i = 0; i < CHUNKS; i++) {
+      StringBuilder content = new StringBuilder();
+      while (content.length() < 400) {
+        content.append("word").append(random.nextInt(5_000)).append(i % 7 == 0 ? ", \"quoted\" " : " ");
+      }
+      DocumentChunkEntity chunk = new DocumentChunkEntity();
+      chunk.setContent(content.toString());
+      chunk.setContextualizedText("Section " + i / 20 + " of the manual.\n\n" + content);
+      chunk.setChunkIndex(i);
+      chunk.setEmbeddingId(UUID.randomUUID());
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+}
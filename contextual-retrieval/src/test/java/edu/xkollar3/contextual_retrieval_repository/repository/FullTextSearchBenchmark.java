@@ -0,0 +1,115 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.DatabaseInitialization;
+
+/**
+ * Query latency of the previous full-text search, ranking every row of
+ * document_chunks, vs. FullTextSearchRepository.SEARCH filtering
+ * through the GIN index, for growing table sizes. Sizes can be changed with
+ * -Dbenchmark.fulltext.sizes=10000,100000. Needs the database from
+ * compose.yaml.
+ */
+@Tag("benchmark")
+class FullTextSearchBenchmark {
+
+  private static final String SCHEMA = "benchmark_full_text";
+  private static final String RANK_ALL_ROWS = """
+      SELECT dc.*
+      FROM document_chunks dc
+      ORDER BY ts_rank(dc.search_vector, websearch_to_tsquery(:query)) DESC
+      LIMIT :k
+      """;
+  private static final List<String> QUERIES = List.of("word17 word42", "word3001", "\"word5 word6\"", "word999 -word1");
+  private static final int QUERY_ROUNDS = 5;
+
+  private SingleConnectionDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private NamedParameterJdbcTemplate namedJdbcTemplate;
+
+  @BeforeEach
+  void setUp() {
+    dataSource = BenchmarkDatabase.recreateSchema(SCHEMA);
+    new DatabaseInitialization(dataSource).initializeDatabase();
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    namedJdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (dataSource != null) {
+      BenchmarkDatabase.dropSchema(dataSource, SCHEMA);
+    }
+  }
+
+  @Test
+  void indexedSearchScalesWithMatchesInsteadOfTableSize() {
+    UUID documentId = UUID.randomUUID();
+    jdbcTemplate.update("INSERT INTO documents (id, name) VALUES (?, ?)", documentId, "Benchmark corpus");
+
+    int loaded = 0;
+    double lastFullScan = 0;
+    double lastIndexed = 0;
+    for (String size : System.getProperty("benchmark.fulltext.sizes", "10000,100000,1000000").split(",")) {
+      int rows = Integer.parseInt(size.trim());
+      load(documentId, loaded, rows);
+      loaded = rows;
+
+      lastFullScan = averageMillis(RANK_ALL_ROWS, "TS_RANK", 0);
+      lastIndexed = averageMillis(FullTextSearchRepository.SEARCH, "TS_RANK", 0);
+      double indexedCoverDensity = averageMillis(FullTextSearchRepository.SEARCH, "TS_RANK_CD", 1);
+      System.out.printf("%,10d chunks: rank all rows %8.2f ms, @@ + ts_rank %7.2f ms, @@ + ts_rank_cd/1 %7.2f ms%n",
+          rows, lastFullScan, lastIndexed, indexedCoverDensity);
+    }
+
+    assertThat(lastIndexed).isLessThan(lastFullScan);
+  }
+
+  /**
+   * Grows the table to the given number of chunks, every chunk has 60 words
+   * drawn from a vocabulary of 5000 with a skewed distribution.
+   */
+  private void load(UUID documentId, int from, int to) {
+    jdbcTemplate.update("""
+        INSERT INTO document_chunks (id, document_id, content, contextualized_text, chunk_index, embedding_id, search_vector)
+        SELECT gen_random_uuid(), ?, t.text, t.text, i, gen_random_uuid(), to_tsvector(t.text)
+        FROM generate_series(?, ?) i
+        CROSS JOIN LATERAL (
+          SELECT string_agg('word' || floor(power(random(), 3) * 5000)::int, ' ') AS text
+          FROM generate_series(1, 60) w
+          WHERE i >= 0
+        ) t
+        """, documentId, from, to - 1);
+    jdbcTemplate.execute("ANALYZE document_chunks");
+  }
+
+  private double averageMillis(String sql, String rankFunction, int normalization) {
+    // first round warms the cache and is not counted
+    long nanos = 0;
+    for (int round = 0; round <= QUERY_ROUNDS; round++) {
+      for (String query : QUERIES) {
+        Map<String, Object> parameters = Map.of("query", query, "rankFunction", rankFunction,
+            "normalization", normalization, "k", 5);
+        long start = System.nanoTime();
+        namedJdbcTemplate.queryForList(sql, parameters);
+        if (round > 0) {
+          nanos += System.nanoTime() - start;
+        }
+      }
+    }
+    return nanos / 1e6 / (QUERY_ROUNDS * QUERIES.size());
+  }
+}
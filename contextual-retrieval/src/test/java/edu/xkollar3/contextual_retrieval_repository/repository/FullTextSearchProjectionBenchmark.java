@@ -0,0 +1,143 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.DatabaseInitialization;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentChunkEntity;
+import jakarta.persistence.EntityManager;
+
+/**
+ * Per query latency and heap allocation of the full-text search hydrating
+ * DocumentChunkEntity rows (the previous searchByQuery) vs. the
+ * FullTextSearchRepository projection, on chunks with a large
+ * contextualized_text. Needs the database from compose.yaml.
+ */
+@Tag("benchmark")
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class FullTextSearchProjectionBenchmark {
+
+  private static final String SCHEMA = "benchmark_full_text_projection";
+  private static final String ENTITY_SEARCH = """
+      SELECT dc.*
+      FROM document_chunks dc, websearch_to_tsquery(:query) q
+      WHERE dc.search_vector @@ q
+      ORDER BY ts_rank(dc.search_vector, q, 0) DESC
+      LIMIT :k
+      """;
+  private static final int CHUNKS = 20_000;
+  private static final int K = 20;
+  private static final int QUERIES = 500;
+
+  private static SingleConnectionDataSource setupDataSource;
+
+  @Autowired
+  private EntityManager entityManager;
+  @Autowired
+  private javax.sql.DataSource dataSource;
+
+  @DynamicPropertySource
+  static void properties(DynamicPropertyRegistry registry) {
+    registry.add("spring.datasource.url", () -> BenchmarkDatabase.url(SCHEMA));
+    registry.add("spring.datasource.username", () -> BenchmarkDatabase.USER);
+    registry.add("spring.datasource.password", () -> BenchmarkDatabase.PASSWORD);
+    registry.add("spring.docker.compose.enabled", () -> "false");
+  }
+
+  // runs before the Spring context is created, so the benchmark is skipped without a database
+  @BeforeAll
+  static void createSchema() {
+    setupDataSource = BenchmarkDatabase.recreateSchema(SCHEMA);
+    new DatabaseInitialization(setupDataSource).initializeDatabase();
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(setupDataSource);
+    UUID documentId = UUID.randomUUID();
+    jdbcTemplate.update("INSERT INTO documents (id, name) VALUES (?, ?)", documentId, "Benchmark corpus");
+    // 400 characters of content and roughly 4 KB of contextualized text per chunk
+    jdbcTemplate.update("""
+        INSERT INTO document_chunks (id, document_id, content, contextualized_text, chunk_index, embedding_id, search_vector)
+        SELECT gen_random_uuid(), ?, left(t.text, 400), repeat(t.text || ' ', 10), i, gen_random_uuid(), to_tsvector(t.text)
+        FROM generate_series(0, ?) i
+        CROSS JOIN LATERAL (
+          SELECT string_agg('word' || floor(power(random(), 3) * 2000)::int, ' ') AS text
+          FROM generate_series(1, 60) w
+          WHERE i >= 0
+        ) t
+        """, documentId, CHUNKS - 1);
+    jdbcTemplate.execute("ANALYZE document_chunks");
+  }
+
+  @AfterAll
+  static void dropSchema() {
+    if (setupDataSource != null) {
+      BenchmarkDatabase.dropSchema(setupDataSource, SCHEMA);
+    }
+  }
+
+  @Test
+  void projectionAllocatesLessThanEntities() {
+    FullTextSearchRepository repository = new FullTextSearchRepository(new NamedParameterJdbcTemplate(dataSource));
+    Supplier<Integer> entities = () -> {
+      @SuppressWarnings("unchecked")
+      List<DocumentChunkEntity> found = entityManager.createNativeQuery(ENTITY_SEARCH, DocumentChunkEntity.class)
+          .setParameter("query", "word7 word11")
+          .setParameter("k", K)
+          .getResultList();
+      int bytes = found.stream().mapToInt(chunk -> chunk.getContent().length()).sum();
+      // the persistence context of the service request ends after the query
+      entityManager.clear();
+      return bytes;
+    };
+    Supplier<Integer> projection = () -> repository.search("word7 word11", "TS_RANK", 0, K).stream()
+        .mapToInt(hit -> hit.content().length())
+        .sum();
+
+    assertThat(projection.get()).isEqualTo(entities.get());
+    long[] entityResult = measure(entities);
+    long[] projectionResult = measure(projection);
+
+    System.out.printf("entities:   %.3f ms, %,d bytes allocated per query%n", entityResult[0] / 1e6,
+        entityResult[1]);
+    System.out.printf("projection: %.3f ms, %,d bytes allocated per query%n", projectionResult[0] / 1e6,
+        projectionResult[1]);
+
+    assertThat(projectionResult[1]).isLessThan(entityResult[1]);
+  }
+
+  /**
+   * @return average nanoseconds and allocated bytes per query after a warm up
+   */
+  private static long[] measure(Supplier<Integer> query) {
+    for (int i = 0; i < QUERIES / 5; i++) {
+      query.get();
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    long threadId = Thread.currentThread().threadId();
+    long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    for (int i = 0; i < QUERIES; i++) {
+      query.get();
+    }
+    long nanos = System.nanoTime() - start;
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    return new long[] { nanos / QUERIES, allocated / QUERIES };
+  }
+}
@@ -0,0 +1,132 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+
+/**
+ * Recall@10 and latency of the HNSW search against the exact scan over the
+ * same store, for a sweep of ef values, plus snapshot save and load times.
+ * Vectors are drawn around random centroids, closer to real embeddings than
+ * uniform noise.
+ */
+@Tag("benchmark")
+class HnswEmbeddingStoreBenchmark {
+
+  private static final int DIMENSION = 256;
+  private static final int VECTORS = 50_000;
+  private static final int CLUSTERS = 200;
+  private static final int QUERIES = 200;
+  private static final int TOP_K = 10;
+  private static final int[] EF_SEARCH = {16, 32, 64, 128, 256};
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void graphSearchIsFasterThanExactScanWithHighRecall() throws IOException {
+    Random random = new Random(42);
+    float[][] centroids = new float[CLUSTERS][];
+    for (int i = 0; i < CLUSTERS; i++) {
+      centroids[i] = gaussian(random, 1.0f, null);
+    }
+    List<Embedding> embeddings = new ArrayList<>(VECTORS);
+    for (int i = 0; i < VECTORS; i++) {
+      embeddings.add(Embedding.from(gaussian(random, 0.3f, centroids[random.nextInt(CLUSTERS)])));
+    }
+    List<EmbeddingSearchRequest> queries = new ArrayList<>(QUERIES);
+    for (int i = 0; i < QUERIES; i++) {
+      Embedding query = Embedding.from(gaussian(random, 0.3f, centroids[random.nextInt(CLUSTERS)]));
+      queries.add(EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(TOP_K).build());
+    }
+
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 16, 100, 64);
+    long start = System.nanoTime();
+    for (int from = 0; from < VECTORS; from += 1000) {
+      List<Embedding> batch = embeddings.subList(from, from + 1000);
+      store.addAll(batch, batch.stream().map(embedding -> TextSegment.from("chunk")).toList());
+    }
+    System.out.printf("vectors: %,d x %d, build: %.1f s%n", VECTORS, DIMENSION, (System.nanoTime() - start) / 1e9);
+
+    // warm up
+    for (EmbeddingSearchRequest query : queries) {
+      store.exactSearch(query);
+      store.search(query);
+    }
+
+    List<Set<String>> expected = new ArrayList<>(QUERIES);
+    start = System.nanoTime();
+    for (EmbeddingSearchRequest query : queries) {
+      expected.add(ids(store.exactSearch(query).matches()));
+    }
+    double exactMicros = (System.nanoTime() - start) / 1e3 / QUERIES;
+    System.out.printf("exact scan:      %8.1f us per query%n", exactMicros);
+
+    double recallAt64 = 0;
+    double micros64 = 0;
+    for (int ef : EF_SEARCH) {
+      store.setEfSearch(ef);
+      int found = 0;
+      start = System.nanoTime();
+      List<Set<String>> actual = new ArrayList<>(QUERIES);
+      for (EmbeddingSearchRequest query : queries) {
+        actual.add(ids(store.search(query).matches()));
+      }
+      double micros = (System.nanoTime() - start) / 1e3 / QUERIES;
+      for (int i = 0; i < QUERIES; i++) {
+        actual.get(i).retainAll(expected.get(i));
+        found += actual.get(i).size();
+      }
+      double recall = (double) found / (QUERIES * TOP_K);
+      System.out.printf("HNSW ef=%-4d     %8.1f us per query, recall@%d %.3f%n", ef, micros, TOP_K, recall);
+      if (ef == 64) {
+        recallAt64 = recall;
+        micros64 = micros;
+      }
+    }
+
+    Path snapshot = directory.resolve("hnsw.bin");
+    start = System.nanoTime();
+    store.saveSnapshot(snapshot);
+    double saveMillis = (System.nanoTime() - start) / 1e6;
+    start = System.nanoTime();
+    HnswEmbeddingStore loaded = HnswEmbeddingStore.loadSnapshot(snapshot, 64);
+    double loadMillis = (System.nanoTime() - start) / 1e6;
+    System.out.printf("snapshot: %,d MB, save %.0f ms, load %.0f ms%n", Files.size(snapshot) >> 20, saveMillis,
+        loadMillis);
+
+    assertThat(loaded.size()).isEqualTo(VECTORS);
+    assertThat(recallAt64).isGreaterThan(0.9);
+    assertThat(micros64).isLessThan(exactMicros);
+  }
+
+  private static Set<String> ids(List<EmbeddingMatch<TextSegment>> matches) {
+    Set<String> ids = new HashSet<>();
+    matches.forEach(match -> ids.add(match.embeddingId()));
+    return ids;
+  }
+
+  private static float[] gaussian(Random random, float deviation, float[] mean) {
+    float[] vector = new float[DIMENSION];
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] = (float) random.nextGaussian() * deviation + (mean == null ? 0 : mean[i]);
+    }
+    return vector;
+  }
+}
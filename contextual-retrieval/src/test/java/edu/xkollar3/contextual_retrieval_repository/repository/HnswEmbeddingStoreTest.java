@@ -0,0 +1,220 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+
+class HnswEmbeddingStoreTest {
+
+  private static final int DIMENSION = 32;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void findsNearestEmbeddingsFirst() {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(500, new Random(1));
+    List<String> ids = store.addAll(embeddings, segments(embeddings.size()));
+
+    List<EmbeddingMatch<TextSegment>> matches = store.search(request(embeddings.get(42), 3)).matches();
+
+    assertThat(matches).hasSize(3);
+    assertThat(matches.get(0).embeddingId()).isEqualTo(ids.get(42));
+    assertThat(matches.get(0).score()).isCloseTo(1.0, offset(1e-5));
+    assertThat(matches.get(0).embedded().text()).isEqualTo("segment 42");
+    assertThat(matches).isSortedAccordingTo((left, right) -> Double.compare(right.score(), left.score()));
+  }
+
+  @Test
+  void replacesAndRemovesEmbeddingsById() {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(100, new Random(2));
+    List<String> ids = store.addAll(embeddings, segments(embeddings.size()));
+
+    store.addAll(List.of(ids.get(0)), List.of(embeddings.get(1)), List.of(TextSegment.from("replaced")));
+    store.remove(ids.get(2));
+
+    assertThat(store.size()).isEqualTo(99);
+    List<EmbeddingMatch<TextSegment>> matches = store.search(request(embeddings.get(0), 100)).matches();
+    assertThat(matches).extracting(EmbeddingMatch::embeddingId).doesNotHaveDuplicates().doesNotContain(ids.get(2));
+    assertThat(matches).filteredOn(match -> match.embeddingId().equals(ids.get(0)))
+        .extracting(match -> match.embedded().text()).containsExactly("replaced");
+  }
+
+  @Test
+  void appliesMetadataFilters() {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(300, new Random(3));
+    store.addAll(embeddings, segments(embeddings.size()));
+
+    // one in a hundred segments matches, more selective than the oversampled graph search
+    EmbeddingSearchRequest request = EmbeddingSearchRequest.builder().queryEmbedding(embeddings.get(0))
+        .maxResults(3).filter(metadataKey("bucket").isEqualTo(7)).build();
+    List<EmbeddingMatch<TextSegment>> matches = store.search(request).matches();
+
+    assertThat(matches).hasSize(3);
+    assertThat(matches).allMatch(match -> match.embedded().metadata().getInteger("bucket") == 7);
+
+    store.removeAll(metadataKey("bucket").isEqualTo(7));
+    assertThat(store.search(request).matches()).isEmpty();
+  }
+
+  @Test
+  void concurrentSearchesOnVirtualThreadsMatchSequentialOnes() throws Exception {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(1000, new Random(5));
+    store.addAll(embeddings, segments(embeddings.size()));
+
+    List<List<String>> sequential = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      sequential.add(ids(store.search(request(embeddings.get(i), 10)).matches()));
+    }
+
+    List<Future<List<String>>> concurrent = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 200; i++) {
+        Embedding query = embeddings.get(i);
+        concurrent.add(executor.submit(() -> ids(store.search(request(query, 10)).matches())));
+      }
+      for (int i = 0; i < 200; i++) {
+        assertThat(concurrent.get(i).get()).isEqualTo(sequential.get(i));
+      }
+    }
+  }
+
+  @Test
+  void restoresSnapshot() throws IOException {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(400, new Random(4));
+    List<String> ids = store.addAll(embeddings, segments(embeddings.size()));
+    store.remove(ids.get(5));
+    Path snapshot = directory.resolve("store.bin");
+
+    store.saveSnapshot(snapshot);
+    HnswEmbeddingStore loaded = HnswEmbeddingStore.loadSnapshot(snapshot, 32);
+
+    assertThat(loaded.size()).isEqualTo(store.size());
+    for (int i = 0; i < 20; i++) {
+      EmbeddingSearchRequest request = request(embeddings.get(i), 5);
+      assertThat(loaded.search(request).matches()).usingRecursiveFieldByFieldElementComparator()
+          .isEqualTo(store.search(request).matches());
+    }
+    TextSegment segment = loaded.search(request(embeddings.get(7), 1)).matches().get(0).embedded();
+    assertThat(segment.metadata().toMap()).isEqualTo(segments(8).get(7).metadata().toMap());
+
+    // the loaded store keeps accepting embeddings
+    String added = loaded.add(embeddings.get(5), TextSegment.from("again"));
+    assertThat(loaded.search(request(embeddings.get(5), 1)).matches().get(0).embeddingId()).isEqualTo(added);
+  }
+
+  @Test
+  void rebuildsTheGraphOnceAQuarterOfItIsDeleted() {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(4096, new Random(5));
+    List<String> ids = store.addAll(embeddings, segments(embeddings.size()));
+
+    // one short of a quarter
+    store.removeAll(ids.subList(0, 1023));
+    assertThat(store.nodeCount()).isEqualTo(4096);
+    store.remove(ids.get(1023));
+
+    assertThat(store.nodeCount()).isEqualTo(3072);
+    assertThat(store.size()).isEqualTo(3072);
+    assertThat(store.search(request(embeddings.get(5), 1)).matches().get(0).embeddingId())
+        .isNotEqualTo(ids.get(5));
+    for (int i = 1024; i < 1124; i++) {
+      EmbeddingMatch<TextSegment> match = store.search(request(embeddings.get(i), 1)).matches().get(0);
+      assertThat(match.embeddingId()).isEqualTo(ids.get(i));
+      assertThat(match.embedded().text()).isEqualTo("segment " + i);
+    }
+  }
+
+  @Test
+  void countsReplacedEmbeddingsAsDeleted() {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(4096, new Random(6));
+    List<String> ids = store.addAll(embeddings, segments(embeddings.size()));
+
+    // a reindex storing new vectors under the ids of 1400 chunks, the old
+    // vectors are then a quarter of the 5496 nodes
+    List<Embedding> replacements = randomEmbeddings(1400, new Random(7));
+    store.addAll(ids.subList(0, 1400), replacements, segments(1400));
+
+    assertThat(store.nodeCount()).isEqualTo(4096);
+    assertThat(store.size()).isEqualTo(4096);
+    assertThat(store.search(request(replacements.get(3), 1)).matches().get(0).embeddingId()).isEqualTo(ids.get(3));
+  }
+
+  @Test
+  void savesSnapshotsWithoutMostlyDeletedNodes() throws IOException {
+    HnswEmbeddingStore store = new HnswEmbeddingStore(DIMENSION, 8, 64, 32);
+    List<Embedding> embeddings = randomEmbeddings(400, new Random(8));
+    List<String> ids = store.addAll(embeddings, segments(embeddings.size()));
+    // far below the number rebuilt on removal, but a quarter of this store
+    store.removeAll(ids.subList(0, 100));
+    assertThat(store.nodeCount()).isEqualTo(400);
+    Path snapshot = directory.resolve("store.bin");
+
+    store.saveSnapshot(snapshot);
+    HnswEmbeddingStore loaded = HnswEmbeddingStore.loadSnapshot(snapshot, 32);
+
+    assertThat(store.nodeCount()).isEqualTo(300);
+    assertThat(loaded.nodeCount()).isEqualTo(300);
+    assertThat(loaded.ids()).containsExactlyInAnyOrderElementsOf(ids.subList(100, 400));
+    assertThat(loaded.search(request(embeddings.get(150), 1)).matches().get(0).embeddingId())
+        .isEqualTo(ids.get(150));
+  }
+
+  private static List<String> ids(List<EmbeddingMatch<TextSegment>> matches) {
+    return matches.stream().map(EmbeddingMatch::embeddingId).toList();
+  }
+
+  private static EmbeddingSearchRequest request(Embedding query, int maxResults) {
+    return EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(maxResults).build();
+  }
+
+  private static List<TextSegment> segments(int count) {
+    List<TextSegment> segments = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Metadata metadata = new Metadata()
+          .put("bucket", i % 100)
+          .put("document_id", new UUID(0, i))
+          .put("title", "document " + i / 10)
+          .put("weight", i * 0.5);
+      segments.add(TextSegment.from("segment " + i, metadata));
+    }
+    return segments;
+  }
+
+  private static List<Embedding> randomEmbeddings(int count, Random random) {
+    List<Embedding> embeddings = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      float[] vector = new float[DIMENSION];
+      for (int j = 0; j < DIMENSION; j++) {
+        vector[j] = (float) random.nextGaussian();
+      }
+      embeddings.add(Embedding.from(vector));
+    }
+    return embeddings;
+  }
+}
@@ -0,0 +1,284 @@
+package edu.xkollar3.contextual_retrieval_repository.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.ToDoubleFunction;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration.IndexType;
+import edu.xkollar3.contextual_retrieval_repository.configuration.PgVectorStoreConfiguration.Quantization;
+
+/**
+ * Recall@10 against an exact scan, latency and HNSW index size of the full
+ * precision, half precision and binary quantized indexes, for a sweep of
+ * oversampling factors. The row count can be changed with
+ * -Dbenchmark.quantization.rows=100000. The index benchmark needs the
+ * database from compose.yaml, the in-memory one measures what the
+ * quantization alone costs in recall, without the HNSW approximation.
+ */
+@Tag("benchmark")
+class QuantizedVectorSearchBenchmark {
+
+  private static final String SCHEMA = "benchmark_quantization";
+  private static final String TABLE = "langchain_vector";
+  private static final int DIMENSIONS = 1536;
+  private static final int CLUSTERS = 100;
+  private static final int QUERIES = 50;
+  private static final int TOP_K = 10;
+  private static final int[] OVERSAMPLING = {1, 2, 4, 8};
+
+  private SingleConnectionDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private NamedParameterJdbcTemplate namedJdbcTemplate;
+
+  private void setUpDatabase() {
+    dataSource = BenchmarkDatabase.recreateSchema(SCHEMA);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    namedJdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+    // same table the langchain store creates
+    jdbcTemplate.execute("CREATE TABLE " + TABLE
+        + " (embedding_id UUID PRIMARY KEY, embedding vector(" + DIMENSIONS + "), text TEXT NULL, metadata JSON NULL)");
+    // enough candidates for the largest oversampling
+    jdbcTemplate.execute("SET hnsw.ef_search = 200");
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (dataSource != null) {
+      BenchmarkDatabase.dropSchema(dataSource, SCHEMA);
+    }
+  }
+
+  @Test
+  void quantizedIndexesTradeRecallForMemory() {
+    setUpDatabase();
+    Random random = new Random(42);
+    float[][] centroids = centroids(random);
+    Map<UUID, float[]> vectors = vectors(random, centroids);
+    load(vectors);
+    List<float[]> queries = new ArrayList<>();
+    List<Set<UUID>> expected = new ArrayList<>();
+    for (int i = 0; i < QUERIES; i++) {
+      float[] query = gaussian(random, 0.5f, centroids[random.nextInt(CLUSTERS)]);
+      queries.add(query);
+      expected.add(exactTopK(vectors, query));
+    }
+
+    Map<String, Double> recalls = new LinkedHashMap<>();
+    Map<Quantization, Long> indexBytes = new LinkedHashMap<>();
+    for (Quantization quantization : Quantization.values()) {
+      PgVectorStoreConfiguration configuration = configuration(quantization, 1);
+      long start = System.nanoTime();
+      new VectorIndexRepository(jdbcTemplate, configuration).rebuildIndex();
+      double buildSeconds = (System.nanoTime() - start) / 1e9;
+      long bytes = jdbcTemplate.queryForObject("""
+          SELECT coalesce(sum(pg_relation_size(indexrelid)), 0)
+          FROM pg_index WHERE indrelid = CAST(? AS regclass) AND NOT indisprimary
+          """, Long.class, TABLE);
+      indexBytes.put(quantization, bytes);
+      System.out.printf("%-8s index %,6d MB, built in %.1f s%n", quantization, bytes >> 20, buildSeconds);
+
+      for (int oversampling : quantization == Quantization.NONE ? new int[] {1} : OVERSAMPLING) {
+        VectorSearchRepository repository = new VectorSearchRepository(namedJdbcTemplate,
+            configuration(quantization, oversampling));
+        int found = 0;
+        long nanos = 0;
+        for (int round = 0; round < 2; round++) {
+          // first round warms the cache and is not counted
+          for (int i = 0; i < QUERIES; i++) {
+            start = System.nanoTime();
+            List<VectorSearchHit> hits = repository.search(queries.get(i), TOP_K);
+            if (round == 1) {
+              nanos += System.nanoTime() - start;
+              found += (int) hits.stream().map(VectorSearchHit::embeddingId).filter(expected.get(i)::contains).count();
+            }
+          }
+        }
+        double recall = (double) found / (QUERIES * TOP_K);
+        recalls.put(quantization + "x" + oversampling, recall);
+        System.out.printf("         oversampling %d: %7.2f ms per query, recall@%d %.3f%n", oversampling,
+            nanos / 1e6 / QUERIES, TOP_K, recall);
+      }
+    }
+
+    assertThat(indexBytes.get(Quantization.BINARY)).isLessThan(indexBytes.get(Quantization.NONE) / 4);
+    assertThat(indexBytes.get(Quantization.HALFVEC)).isLessThan(indexBytes.get(Quantization.NONE));
+    assertThat(recalls.get("HALFVECx4")).isGreaterThanOrEqualTo(recalls.get("NONEx1") - 0.05);
+    assertThat(recalls.get("BINARYx8")).isGreaterThan(recalls.get("BINARYx1"));
+  }
+
+  @Test
+  void quantizedScansTradeRecallForMemory() {
+    Random random = new Random(42);
+    float[][] centroids = centroids(random);
+    Map<UUID, float[]> vectors = vectors(random, centroids);
+    // the same conversions as the index expressions, embedding::halfvec and
+    // binary_quantize(embedding), which sets the bits of positive elements
+    Map<UUID, float[]> halves = new LinkedHashMap<>();
+    Map<UUID, long[]> bits = new LinkedHashMap<>();
+    vectors.forEach((id, vector) -> {
+      halves.put(id, toHalf(vector));
+      bits.put(id, toBits(vector));
+    });
+
+    Map<String, Double> recalls = new LinkedHashMap<>();
+    System.out.printf("NONE     %,6d bytes per vector%n", DIMENSIONS * Float.BYTES);
+    System.out.printf("HALFVEC  %,6d bytes per vector%n", DIMENSIONS * Float.BYTES / 2);
+    System.out.printf("BINARY   %,6d bytes per vector%n", DIMENSIONS / Byte.SIZE);
+    for (int oversampling : OVERSAMPLING) {
+      int halfFound = 0;
+      int bitsFound = 0;
+      for (int i = 0; i < QUERIES; i++) {
+        float[] query = gaussian(random, 0.5f, centroids[random.nextInt(CLUSTERS)]);
+        Set<UUID> expected = exactTopK(vectors, query);
+        float[] halfQuery = toHalf(query);
+        long[] bitsQuery = toBits(query);
+        halfFound += found(expected, rerank(vectors, query, candidates(halves.keySet(),
+            id -> -cosine(halves.get(id), halfQuery), TOP_K * oversampling)));
+        bitsFound += found(expected, rerank(vectors, query, candidates(bits.keySet(),
+            id -> hamming(bits.get(id), bitsQuery), TOP_K * oversampling)));
+      }
+      recalls.put("HALFVECx" + oversampling, (double) halfFound / (QUERIES * TOP_K));
+      recalls.put("BINARYx" + oversampling, (double) bitsFound / (QUERIES * TOP_K));
+      System.out.printf("oversampling %d: recall@%d halfvec %.3f, binary %.3f%n", oversampling, TOP_K,
+          recalls.get("HALFVECx" + oversampling), recalls.get("BINARYx" + oversampling));
+    }
+
+    assertThat(recalls.get("HALFVECx1")).isGreaterThanOrEqualTo(0.95);
+    assertThat(recalls.get("BINARYx8")).isGreaterThan(recalls.get("BINARYx1"));
+  }
+
+  private static float[][] centroids(Random random) {
+    float[][] centroids = new float[CLUSTERS][];
+    for (int i = 0; i < CLUSTERS; i++) {
+      centroids[i] = gaussian(random, 1.0f, null);
+    }
+    return centroids;
+  }
+
+  private static Map<UUID, float[]> vectors(Random random, float[][] centroids) {
+    int rows = Integer.getInteger("benchmark.quantization.rows", 20_000);
+    Map<UUID, float[]> vectors = new LinkedHashMap<>();
+    for (int i = 0; i < rows; i++) {
+      vectors.put(new UUID(random.nextLong(), random.nextLong()),
+          gaussian(random, 0.5f, centroids[random.nextInt(CLUSTERS)]));
+    }
+    return vectors;
+  }
+
+  private static List<UUID> candidates(Collection<UUID> ids, ToDoubleFunction<UUID> distance, int limit) {
+    List<Map.Entry<UUID, Double>> scored = new ArrayList<>(ids.size());
+    ids.forEach(id -> scored.add(Map.entry(id, distance.applyAsDouble(id))));
+    scored.sort(Map.Entry.comparingByValue());
+    return scored.subList(0, Math.min(limit, scored.size())).stream().map(Map.Entry::getKey).toList();
+  }
+
+  private static List<UUID> rerank(Map<UUID, float[]> vectors, float[] query, List<UUID> candidates) {
+    return candidates(candidates, id -> -cosine(vectors.get(id), query), TOP_K);
+  }
+
+  private static int found(Set<UUID> expected, List<UUID> hits) {
+    return (int) hits.stream().filter(expected::contains).count();
+  }
+
+  private static float[] toHalf(float[] vector) {
+    float[] half = new float[vector.length];
+    for (int i = 0; i < vector.length; i++) {
+      half[i] = Float.float16ToFloat(Float.floatToFloat16(vector[i]));
+    }
+    return half;
+  }
+
+  private static long[] toBits(float[] vector) {
+    long[] bits = new long[(vector.length + Long.SIZE - 1) / Long.SIZE];
+    for (int i = 0; i < vector.length; i++) {
+      if (vector[i] > 0) {
+        bits[i / Long.SIZE] |= 1L << (i % Long.SIZE);
+      }
+    }
+    return bits;
+  }
+
+  private static int hamming(long[] left, long[] right) {
+    int distance = 0;
+    for (int i = 0; i < left.length; i++) {
+      distance += Long.bitCount(left[i] ^ right[i]);
+    }
+    return distance;
+  }
+
+  private PgVectorStoreConfiguration configuration(Quantization quantization, int oversampling) {
+    PgVectorStoreConfiguration configuration = new PgVectorStoreConfiguration();
+    configuration.setEmbeddingTableName(TABLE);
+    configuration.setEmbeddingDimensions(DIMENSIONS);
+    configuration.setIndexType(IndexType.HNSW);
+    configuration.setQuantization(quantization);
+    configuration.setQuantizationOversampling(oversampling);
+    return configuration;
+  }
+
+  private void load(Map<UUID, float[]> vectors) {
+    List<Object[]> batch = new ArrayList<>();
+    for (Map.Entry<UUID, float[]> entry : vectors.entrySet()) {
+      batch.add(new Object[] {entry.getKey(), VectorSearchRepository.vectorLiteral(entry.getValue()), "chunk"});
+      if (batch.size() == 500) {
+        insert(batch);
+      }
+    }
+    insert(batch);
+    jdbcTemplate.execute("ANALYZE " + TABLE);
+  }
+
+  private void insert(List<Object[]> batch) {
+    jdbcTemplate.batchUpdate("INSERT INTO " + TABLE + " (embedding_id, embedding, text) VALUES (?, CAST(? AS vector), ?)",
+        batch);
+    batch.clear();
+  }
+
+  private static Set<UUID> exactTopK(Map<UUID, float[]> vectors, float[] query) {
+    List<Map.Entry<UUID, Double>> scored = new ArrayList<>(vectors.size());
+    for (Map.Entry<UUID, float[]> entry : vectors.entrySet()) {
+      scored.add(Map.entry(entry.getKey(), cosine(entry.getValue(), query)));
+    }
+    scored.sort(Map.Entry.<UUID, Double>comparingByValue().reversed());
+    Set<UUID> ids = new HashSet<>();
+    scored.subList(0, TOP_K).forEach(entry -> ids.add(entry.getKey()));
+    return ids;
+  }
+
+  private static double cosine(float[] left, float[] right) {
+    double dot = 0;
+    double leftNorm = 0;
+    double rightNorm = 0;
+    for (int i = 0; i < left.length; i++) {
+      dot += left[i] * right[i];
+      leftNorm += left[i] * left[i];
+      rightNorm += right[i] * right[i];
+    }
+    return dot / Math.sqrt(leftNorm * rightNorm);
+  }
+
+  private static float[] gaussian(Random random, float deviation, float[] mean) {
+    float[] vector = new float[DIMENSIONS];
+    for (int i = 0; i < DIMENSIONS; i++) {
+      vector[i] = (float) random.nextGaussian() * deviation + (mean == null ? 0 : mean[i]);
+    }
+    return vector;
+  }
+}
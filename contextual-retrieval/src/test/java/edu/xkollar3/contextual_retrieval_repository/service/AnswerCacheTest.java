@@ -0,0 +1,98 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.AnswerCacheConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class AnswerCacheTest {
+
+  private static final UUID MANUAL = UUID.randomUUID();
+  private static final UUID WARRANTY = UUID.randomUUID();
+
+  @Test
+  void servesAnswersOfQueriesAboveTheSimilarityThreshold() {
+    AnswerCache cache = cache(0.95, 10, Duration.ofHours(1));
+    put(cache, new float[] { 1, 0, 0 }, "Prime the pump first.", MANUAL);
+
+    // cosine 0.995 and 0.707 to the cached query
+    assertThat(cache.find(new float[] { 10, 1, 0 })).contains("Prime the pump first.");
+    assertThat(cache.find(new float[] { 1, 1, 0 })).isEmpty();
+  }
+
+  @Test
+  void dropsExpiredAnswers() throws InterruptedException {
+    AnswerCache cache = cache(0.95, 10, Duration.ofMillis(1));
+    put(cache, new float[] { 1, 0 }, "Prime the pump first.", MANUAL);
+
+    Thread.sleep(10);
+
+    assertThat(cache.find(new float[] { 1, 0 })).isEmpty();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsedAnswer() {
+    AnswerCache cache = cache(0.95, 2, Duration.ofHours(1));
+    put(cache, new float[] { 1, 0, 0 }, "first", MANUAL);
+    put(cache, new float[] { 0, 1, 0 }, "second", MANUAL);
+    // the first answer is used again, the second one is now the eldest
+    assertThat(cache.find(new float[] { 1, 0, 0 })).contains("first");
+
+    put(cache, new float[] { 0, 0, 1 }, "third", MANUAL);
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.find(new float[] { 0, 1, 0 })).isEmpty();
+    assertThat(cache.find(new float[] { 1, 0, 0 })).contains("first");
+    assertThat(cache.find(new float[] { 0, 0, 1 })).contains("third");
+  }
+
+  @Test
+  void invalidatesOnlyAnswersUsingTheDocument() {
+    AnswerCache cache = cache(0.95, 10, Duration.ofHours(1));
+    put(cache, new float[] { 1, 0 }, "from the manual", MANUAL);
+    put(cache, new float[] { 0, 1 }, "from the warranty", WARRANTY);
+
+    cache.invalidateDocument(MANUAL);
+
+    assertThat(cache.find(new float[] { 1, 0 })).isEmpty();
+    assertThat(cache.find(new float[] { 0, 1 })).contains("from the warranty");
+  }
+
+  @Test
+  void dropsAnAnswerWhoseDocumentChangedWhileItWasGenerated() {
+    AnswerCache cache = cache(0.95, 10, Duration.ofHours(1));
+    long retrievedIn = cache.generation();
+
+    // a reindex stores new chunks while the answer is generated
+    cache.invalidateDocument(MANUAL);
+
+    assertThat(cache.put(new float[] { 1, 0 }, "stale", Set.of(UUID.randomUUID()), Set.of(MANUAL), 0, retrievedIn))
+        .isFalse();
+    assertThat(cache.put(new float[] { 0, 1 }, "unaffected", Set.of(UUID.randomUUID()), Set.of(WARRANTY), 0,
+        retrievedIn)).isTrue();
+    assertThat(cache.find(new float[] { 1, 0 })).isEmpty();
+    // retrieved after the change
+    put(cache, new float[] { 1, 0 }, "fresh", MANUAL);
+    assertThat(cache.find(new float[] { 1, 0 })).contains("fresh");
+  }
+
+  private static void put(AnswerCache cache, float[] queryEmbedding, String answer, UUID documentId) {
+    assertThat(cache.put(queryEmbedding, answer, Set.of(UUID.randomUUID()), Set.of(documentId), 0,
+        cache.generation())).isTrue();
+  }
+
+  private static AnswerCache cache(double similarityThreshold, int maxSize, Duration ttl) {
+    AnswerCacheConfiguration configuration = new AnswerCacheConfiguration();
+    configuration.setSimilarityThreshold(similarityThreshold);
+    configuration.setMaxSize(maxSize);
+    configuration.setTtl(ttl);
+    return new AnswerCache(configuration, new SimpleMeterRegistry());
+  }
+}
@@ -0,0 +1,126 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration.LexicalBackend;
+import edu.xkollar3.contextual_retrieval_repository.repository.Bm25Index;
+import edu.xkollar3.contextual_retrieval_repository.repository.DocumentChunkRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.FullTextHit;
+import edu.xkollar3.contextual_retrieval_repository.repository.FullTextSearchRepository;
+
+class Bm25IndexServiceTest {
+
+  private static final UUID PRIME = new UUID(0, 1);
+  private static final UUID BLEED = new UUID(0, 2);
+  private static final UUID CLEAN = new UUID(0, 3);
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void replacesChunksOfASavedIndexThatWereReplacedInTheDatabase() throws Exception {
+    // saved before a reindex replaced the bleed chunk with the clean one, the
+    // chunk count is still the same
+    Bm25Index saved = new Bm25Index(1.2f, 0.75f);
+    saved.add(PRIME, "manual.pdf\nprime the pump");
+    saved.add(BLEED, "manual.pdf\nbleed the valve");
+    saved.save(directory.resolve("bm25.bin"));
+    Chunks chunks = new Chunks();
+    chunks.put(PRIME, "prime the pump");
+    chunks.put(CLEAN, "clean the filter");
+
+    Bm25IndexService service = load(chunks);
+
+    assertThat(service.search("filter", 10)).extracting(FullTextHit::embeddingId).containsExactly(CLEAN);
+    assertThat(service.search("valve", 10)).isEmpty();
+    assertThat(service.search("pump", 10)).extracting(FullTextHit::embeddingId).containsExactly(PRIME);
+    // only the missing chunk is read again
+    assertThat(chunks.readTexts).containsExactly(CLEAN);
+  }
+
+  @Test
+  void indexesEveryChunkWithoutASavedIndex() throws Exception {
+    Chunks chunks = new Chunks();
+    chunks.put(PRIME, "prime the pump");
+    chunks.put(CLEAN, "clean the filter");
+
+    Bm25IndexService service = load(chunks);
+
+    assertThat(service.search("pump filter", 10)).extracting(FullTextHit::embeddingId)
+        .containsExactlyInAnyOrder(PRIME, CLEAN);
+  }
+
+  private Bm25IndexService load(Chunks chunks) throws InterruptedException {
+    RetrievalConfiguration configuration = new RetrievalConfiguration();
+    configuration.setLexicalBackend(LexicalBackend.BM25);
+    configuration.setBm25IndexPath(directory.resolve("bm25.bin").toString());
+    Bm25IndexService service = new Bm25IndexService(chunks.fullTextSearchRepository(),
+        chunks.documentChunkRepository(), configuration);
+
+    service.load();
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (!service.isReady() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(service.isReady()).isTrue();
+    return service;
+  }
+
+  /**
+   * Rows of document_chunks of a single document, behind the queries the
+   * service runs.
+   */
+  private static class Chunks {
+
+    private final Map<UUID, String> texts = new LinkedHashMap<>();
+    final List<UUID> readTexts = new ArrayList<>();
+
+    void put(UUID embeddingId, String text) {
+      texts.put(embeddingId, text);
+    }
+
+    DocumentChunkRepository documentChunkRepository() {
+      return (DocumentChunkRepository) Proxy.newProxyInstance(DocumentChunkRepository.class.getClassLoader(),
+          new Class<?>[] { DocumentChunkRepository.class }, (proxy, method, args) -> switch (method.getName()) {
+            case "findAllEmbeddingIds" -> List.copyOf(texts.keySet());
+            default -> throw new UnsupportedOperationException(method.getName());
+          });
+    }
+
+    FullTextSearchRepository fullTextSearchRepository() {
+      return new FullTextSearchRepository(null) {
+        @Override
+        public List<FullTextHit> findByEmbeddingIds(Collection<UUID> embeddingIds) {
+          return embeddingIds.stream().filter(texts::containsKey)
+              .map(id -> new FullTextHit(id, id, texts.get(id), 0)).toList();
+        }
+
+        @Override
+        public void forEachIndexedText(IndexedTextConsumer consumer) {
+          forEachIndexedText(texts.keySet(), consumer);
+        }
+
+        @Override
+        public void forEachIndexedText(Collection<UUID> embeddingIds, IndexedTextConsumer consumer) {
+          for (UUID embeddingId : embeddingIds) {
+            readTexts.add(embeddingId);
+            consumer.accept(embeddingId, "manual.pdf", texts.get(embeddingId));
+          }
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CachingQueryEmbeddingModelTest {
+
+  @Test
+  void embedsAQueryOnceAndServesItFromTheCacheAfterwards() {
+    RecordingEmbeddingModel delegate = new RecordingEmbeddingModel();
+    CachingQueryEmbeddingModel model = model(delegate, 10, Duration.ofHours(1));
+
+    Embedding first = model.embed("How do I prime the pump?").content();
+    // differs only in case and whitespace
+    Embedding second = model.embed("  how do I   PRIME the pump?\n").content();
+
+    assertThat(delegate.embedded).containsExactly("How do I prime the pump?");
+    assertThat(second).isEqualTo(first);
+    assertThat(model.size()).isEqualTo(1);
+    assertThat(model.hitRatio()).isEqualTo(0.5);
+  }
+
+  @Test
+  void embedsDifferentQueriesSeparately() {
+    RecordingEmbeddingModel delegate = new RecordingEmbeddingModel();
+    CachingQueryEmbeddingModel model = model(delegate, 10, Duration.ofHours(1));
+
+    Embedding pump = model.embed("How do I prime the pump?").content();
+    Embedding valve = model.embed("How do I clean the valve?").content();
+
+    assertThat(delegate.embedded).containsExactly("How do I prime the pump?", "How do I clean the valve?");
+    assertThat(valve).isNotEqualTo(pump);
+    assertThat(model.hitRatio()).isZero();
+  }
+
+  @Test
+  void passesOnlyTheMissesToTheDelegate() {
+    RecordingEmbeddingModel delegate = new RecordingEmbeddingModel();
+    CachingQueryEmbeddingModel model = model(delegate, 10, Duration.ofHours(1));
+    Embedding pump = model.embed("pump").content();
+    delegate.embedded.clear();
+
+    Response<List<Embedding>> response = model.embedAll(
+        List.of(TextSegment.from("valve"), TextSegment.from("pump"), TextSegment.from("seal")));
+
+    assertThat(delegate.embedded).containsExactly("valve", "seal");
+    assertThat(response.content()).containsExactly(delegate.embedding("valve"), pump, delegate.embedding("seal"));
+    // the usage of the embedding round trip is passed through
+    assertThat(response.tokenUsage().inputTokenCount()).isEqualTo(2);
+  }
+
+  @Test
+  void doesNotCallTheDelegateWhenEveryQueryIsCached() {
+    RecordingEmbeddingModel delegate = new RecordingEmbeddingModel();
+    CachingQueryEmbeddingModel model = model(delegate, 10, Duration.ofHours(1));
+    model.embedAll(List.of(TextSegment.from("pump"), TextSegment.from("valve")));
+    delegate.embedded.clear();
+
+    Response<List<Embedding>> response = model.embedAll(List.of(TextSegment.from("valve"), TextSegment.from("pump")));
+
+    assertThat(delegate.embedded).isEmpty();
+    assertThat(response.content()).containsExactly(delegate.embedding("valve"), delegate.embedding("pump"));
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsedQuery() {
+    RecordingEmbeddingModel delegate = new RecordingEmbeddingModel();
+    CachingQueryEmbeddingModel model = model(delegate, 2, Duration.ofHours(1));
+    model.embed("pump");
+    model.embed("valve");
+    // the pump is used again, the valve is now the eldest
+    model.embed("pump");
+
+    model.embed("seal");
+    delegate.embedded.clear();
+
+    assertThat(model.size()).isEqualTo(2);
+    model.embed("pump");
+    model.embed("seal");
+    assertThat(delegate.embedded).isEmpty();
+    model.embed("valve");
+    assertThat(delegate.embedded).containsExactly("valve");
+  }
+
+  @Test
+  void embedsAgainAfterTheTtl() throws InterruptedException {
+    RecordingEmbeddingModel delegate = new RecordingEmbeddingModel();
+    CachingQueryEmbeddingModel model = model(delegate, 10, Duration.ofMillis(1));
+    model.embed("pump");
+
+    Thread.sleep(10);
+    model.embed("pump");
+
+    assertThat(delegate.embedded).containsExactly("pump", "pump");
+  }
+
+  @Test
+  void takesTheDimensionFromTheDelegate() {
+    CachingQueryEmbeddingModel model = model(new RecordingEmbeddingModel(), 10, Duration.ofHours(1));
+
+    assertThat(model.dimension()).isEqualTo(RecordingEmbeddingModel.DIMENSION);
+  }
+
+  @Test
+  void countsHitsAndMisses() {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    CachingQueryEmbeddingModel model = new CachingQueryEmbeddingModel(new RecordingEmbeddingModel(), 10,
+        Duration.ofHours(1), meterRegistry);
+
+    model.embedAll(List.of(TextSegment.from("pump"), TextSegment.from("valve")));
+    model.embedAll(List.of(TextSegment.from("pump"), TextSegment.from("seal")));
+
+    assertThat(meterRegistry.get("retrieval.query.embedding.cache.requests").tag("result", "hit").counter().count())
+        .isEqualTo(1);
+    assertThat(meterRegistry.get("retrieval.query.embedding.cache.requests").tag("result", "miss").counter().count())
+        .isEqualTo(3);
+    assertThat(meterRegistry.get("retrieval.query.embedding.cache.size").gauge().value()).isEqualTo(3);
+  }
+
+  private static CachingQueryEmbeddingModel model(EmbeddingModel delegate, int maxSize, Duration ttl) {
+    return new CachingQueryEmbeddingModel(delegate, maxSize, ttl, new SimpleMeterRegistry());
+  }
+
+  /**
+   * Embeds a text into its length and hash, remembers every text it was asked
+   * for.
+   */
+  private static class RecordingEmbeddingModel implements EmbeddingModel {
+
+    static final int DIMENSION = 2;
+
+    final List<String> embedded = new ArrayList<>();
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+      List<Embedding> embeddings = new ArrayList<>();
+      for (TextSegment segment : textSegments) {
+        embedded.add(segment.text());
+        embeddings.add(embedding(segment.text()));
+      }
+      return Response.from(embeddings, new TokenUsage(textSegments.size()));
+    }
+
+    @Override
+    public int dimension() {
+      return DIMENSION;
+    }
+
+    Embedding embedding(String text) {
+      return Embedding.from(new float[] { text.length(), text.hashCode() });
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import edu.xkollar3.contextual_retrieval_repository.repository.StoredChunk;
+
+class ChunkDiffTest {
+
+  @Test
+  void matchesUnchangedChunksAndLeavesRemovedOnes() {
+    StoredChunk intro = stored(0, "intro");
+    StoredChunk changed = stored(1, "old wording");
+    StoredChunk outro = stored(2, "outro");
+    ChunkDiff diff = new ChunkDiff(List.of(intro, changed, outro));
+
+    assertThat(diff.match(ContentHashes.fingerprint("intro"))).isEqualTo(intro);
+    assertThat(diff.match(ContentHashes.fingerprint("new wording"))).isNull();
+    assertThat(diff.match(ContentHashes.fingerprint("outro"))).isEqualTo(outro);
+    assertThat(diff.unmatched()).containsExactly(changed);
+  }
+
+  @Test
+  void pairsRepeatedChunksInOrder() {
+    StoredChunk first = stored(0, "same");
+    StoredChunk second = stored(1, "same");
+    ChunkDiff diff = new ChunkDiff(List.of(first, second));
+
+    assertThat(diff.match(ContentHashes.fingerprint("same"))).isEqualTo(first);
+    assertThat(diff.unmatched()).containsExactly(second);
+    assertThat(diff.match(ContentHashes.fingerprint("same"))).isEqualTo(second);
+    // a third copy in the new split is new content
+    assertThat(diff.match(ContentHashes.fingerprint("same"))).isNull();
+    assertThat(diff.unmatched()).isEmpty();
+  }
+
+  private static StoredChunk stored(int chunkIndex, String content) {
+    return new StoredChunk(UUID.randomUUID(), chunkIndex, UUID.randomUUID(), ContentHashes.fingerprint(content));
+  }
+}
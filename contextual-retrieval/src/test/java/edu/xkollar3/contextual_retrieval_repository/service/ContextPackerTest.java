@@ -0,0 +1,76 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.model.openai.OpenAiChatModelName;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
+import edu.xkollar3.contextual_retrieval_repository.configuration.RetrievalConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.service.ContextPacker.Chunk;
+
+class ContextPackerTest {
+
+  private static final OpenAiTokenCountEstimator TOKENS = new OpenAiTokenCountEstimator(
+      OpenAiChatModelName.GPT_4_O_MINI);
+
+  @Test
+  void mergesAdjacentChunksKeepingTheOverlapOnce() {
+    String first = "The pump must be primed before the first start. Open the bleed valve on top.";
+    String second = "Open the bleed valve on top. Fill the housing until water comes out.";
+
+    List<String> packed = packer(1000).pack(List.of(
+        new Chunk("manual", 4, second, null, 0.5),
+        new Chunk("manual", 3, first, null, 0.9),
+        new Chunk("manual", 7, "Unrelated chunk further down the manual.", null, 0.7)));
+
+    assertThat(packed).containsExactly(
+        "The pump must be primed before the first start. Open the bleed valve on top. "
+            + "Fill the housing until water comes out.",
+        "Unrelated chunk further down the manual.");
+  }
+
+  @Test
+  void leavesOutNearDuplicatesAndWhatExceedsTheBudget() {
+    String longText = "word ".repeat(200);
+    List<String> packed = packer(50).pack(List.of(
+        new Chunk("a", 0, "Primary answer text.", new float[] { 1, 0 }, 0.9),
+        new Chunk("b", 0, "Primary answer text, copied.", new float[] { 0.99F, 0.01F }, 0.8),
+        new Chunk("c", 0, longText, new float[] { 0, 1 }, 0.7),
+        new Chunk("d", 0, "Short other text.", new float[] { 0, 1 }, 0.6)));
+
+    assertThat(packed).containsExactly("Primary answer text.", "Short other text.");
+  }
+
+  @Test
+  void cutsAnOverBudgetBestPassageInsteadOfLeavingTheContextEmpty() {
+    String longText = "The warranty covers the pump for two years. ".repeat(50);
+
+    List<String> packed = packer(30).pack(List.of(
+        new Chunk("manual", 0, longText, null, 0.9),
+        new Chunk("manual", 5, "Lower ranked chunk.", null, 0.5)));
+
+    assertThat(packed).hasSize(1);
+    assertThat(longText).startsWith(packed.get(0));
+    assertThat(TOKENS.estimateTokenCountInText(packed.get(0))).isLessThanOrEqualTo(30).isGreaterThan(20);
+  }
+
+  @Test
+  void neverMergesChunksParkedByAReindexWithTheNewSplit() {
+    List<String> packed = packer(1000).pack(List.of(
+        new Chunk("manual", 0, "Prime the pump with clean water.", null, 0.9),
+        new Chunk("manual", -1, "Prime the pump with oil.", null, 0.8),
+        new Chunk("manual", -2, "Open the bleed valve first.", null, 0.7)));
+
+    assertThat(packed).containsExactly(
+        "Prime the pump with clean water.", "Prime the pump with oil.", "Open the bleed valve first.");
+  }
+
+  private static ContextPacker packer(int tokenBudget) {
+    RetrievalConfiguration configuration = new RetrievalConfiguration();
+    configuration.setContextTokenBudget(tokenBudget);
+    return new ContextPacker(TOKENS, configuration);
+  }
+}
@@ -0,0 +1,87 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.message.ChatMessage;
+
+/**
+ * Heap allocated while building the prompts for every chunk of a large
+ * document, rendering the whole template per chunk vs. the compiled prompt
+ * sharing the document message.
+ */
+@Tag("benchmark")
+class ContextualizationPromptBenchmark {
+
+  private static final String LEGACY_PROMPT = """
+      <document>
+      {{WHOLE_DOCUMENT}}
+      </document>
+      Here is the chunk we want to situate within the whole document
+      <chunk>
+      {{CHUNK_CONTENT}}
+      </chunk>
+      Please give a short succinct context to situate this chunk within the overall document for the purposes of improving search retrieval of the chunk. Answer only with the succinct context and nothing else.
+            """;
+
+  private static final int DOCUMENT_CHARS = 4 * 1024 * 1024;
+  private static final int CHUNK_CHARS = 400;
+
+  @Test
+  void compiledPromptAllocatesDocumentOnce() {
+    String document = "lorem ipsum dolor sit amet ".repeat(DOCUMENT_CHARS / 27);
+    List<String> chunks = new ArrayList<>();
+    for (int offset = 0; offset + CHUNK_CHARS <= 200 * CHUNK_CHARS; offset += CHUNK_CHARS) {
+      chunks.add(document.substring(offset, offset + CHUNK_CHARS));
+    }
+
+    // warm up both paths so class loading does not end up in the measurement
+    renderLegacy(document, chunks.subList(0, 2));
+    renderCompiled(document, chunks.subList(0, 2));
+
+    long legacyBytes = allocatedBytes(() -> renderLegacy(document, chunks));
+    long compiledBytes = allocatedBytes(() -> renderCompiled(document, chunks));
+
+    System.out.printf("document: %d chars, chunks: %d%n", document.length(), chunks.size());
+    System.out.printf("template replace per chunk: %,d bytes allocated%n", legacyBytes);
+    System.out.printf("compiled prompt:            %,d bytes allocated%n", compiledBytes);
+
+    assertThat(compiledBytes).isLessThan(legacyBytes / 10);
+  }
+
+  private static long renderLegacy(String document, List<String> chunks) {
+    long total = 0;
+    for (String chunk : chunks) {
+      String prompt = LEGACY_PROMPT
+          .replace("{{WHOLE_DOCUMENT}}", document)
+          .replace("{{CHUNK_CONTENT}}", chunk);
+      total += prompt.length();
+    }
+    return total;
+  }
+
+  private static long renderCompiled(String document, List<String> chunks) {
+    ContextualizationPrompt prompt = ContextualizationPrompt.forDocument(document);
+    long total = 0;
+    for (String chunk : chunks) {
+      List<ChatMessage> messages = prompt.forChunk(chunk);
+      total += messages.size();
+    }
+    return total;
+  }
+
+  private static long allocatedBytes(Runnable runnable) {
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    long threadId = Thread.currentThread().threadId();
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    runnable.run();
+    return threadBean.getThreadAllocatedBytes(threadId) - before;
+  }
+}
@@ -0,0 +1,267 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.xkollar3.contextual_retrieval_repository.configuration.IngestionConfiguration;
+import edu.xkollar3.contextual_retrieval_repository.model.DocumentEntity;
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobEntity;
+import edu.xkollar3.contextual_retrieval_repository.model.IngestionJobState;
+import edu.xkollar3.contextual_retrieval_repository.repository.DocumentRepository;
+import edu.xkollar3.contextual_retrieval_repository.repository.IngestionJobRepository;
+
+class IngestionJobServiceTest {
+
+  @TempDir
+  Path spoolDirectory;
+
+  @Test
+  void resumesAJobStoppedByAShutdown() throws Exception {
+    Jobs jobs = new Jobs();
+    IngestionJobEntity job = jobs.add(IngestionJobState.QUEUED);
+    Files.writeString(spoolDirectory.resolve(job.getId().toString()), "Prime the pump first.");
+
+    BlockingPipeline blocking = new BlockingPipeline(jobs);
+    IngestionJobService service = service(jobs, blocking);
+    service.resumeUnfinishedJobs();
+    assertThat(blocking.started.await(10, TimeUnit.SECONDS)).isTrue();
+
+    service.shutdown();
+
+    assertThat(blocking.interrupted).isTrue();
+    assertThat(job.getState()).isEqualTo(IngestionJobState.RUNNING);
+    assertThat(job.getError()).isNull();
+    assertThat(spoolDirectory.resolve(job.getId().toString())).exists();
+
+    // the next start
+    CompletingPipeline completing = new CompletingPipeline();
+    IngestionJobService restarted = service(jobs, completing);
+    restarted.resumeUnfinishedJobs();
+
+    assertThat(completing.finished.await(10, TimeUnit.SECONDS)).isTrue();
+    awaitState(job, IngestionJobState.COMPLETED);
+    assertThat(completing.jobIds).containsExactly(job.getId());
+    restarted.shutdown();
+  }
+
+  @Test
+  void failsAJobThatFailsWithoutAShutdown() throws Exception {
+    Jobs jobs = new Jobs();
+    IngestionJobEntity job = jobs.add(IngestionJobState.QUEUED);
+    Files.writeString(spoolDirectory.resolve(job.getId().toString()), "Prime the pump first.");
+
+    IngestionJobService service = service(jobs, new TestPipeline() {
+      @Override
+      public int run(UUID jobId, DocumentEntity document, Path source) throws IOException {
+        throw new IOException("Failed to parse document");
+      }
+    });
+    service.resumeUnfinishedJobs();
+
+    awaitState(job, IngestionJobState.FAILED);
+    assertThat(job.getError()).isEqualTo("Failed to parse document");
+    service.shutdown();
+  }
+
+  @Test
+  void rejectsAReindexRacingAnotherOneOfTheSameDocument() throws Exception {
+    Jobs jobs = new Jobs();
+    // inserted by a concurrent reindex after this one checked for unfinished jobs
+    jobs.add(IngestionJobState.QUEUED);
+    jobs.unfinishedCheckPasses = true;
+    IngestionJobService service = service(jobs, new CompletingPipeline());
+
+    assertThatThrownBy(() -> service.reindex(jobs.document.getId(),
+        new MockMultipartFile("file", "Prime the pump first.".getBytes())))
+        .isInstanceOf(IllegalStateException.class);
+
+    assertThat(jobs.byId).hasSize(1);
+    try (Stream<Path> spooled = Files.list(spoolDirectory)) {
+      assertThat(spooled).isEmpty();
+    }
+    service.shutdown();
+  }
+
+  private IngestionJobService service(Jobs jobs, DocumentIngestionPipeline pipeline) throws IOException {
+    IngestionConfiguration configuration = new IngestionConfiguration();
+    configuration.setSpoolDirectory(spoolDirectory.toString());
+    configuration.setWorkerThreads(1);
+    return new IngestionJobService(jobs.documentRepository(), jobs.jobRepository(), pipeline,
+        new TransactionTemplate(new NoTransactionManager()), configuration);
+  }
+
+  private static void awaitState(IngestionJobEntity job, IngestionJobState state) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (job.getState() != state && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(job.getState()).isEqualTo(state);
+  }
+
+  /**
+   * Job rows in memory, behind the few repository methods the service uses.
+   */
+  private static class Jobs {
+
+    final DocumentEntity document = new DocumentEntity();
+    final Map<UUID, IngestionJobEntity> byId = new ConcurrentHashMap<>();
+    // the unfinished job check misses a job inserted concurrently
+    volatile boolean unfinishedCheckPasses;
+
+    Jobs() {
+      document.setId(UUID.randomUUID());
+      document.setName("manual.pdf");
+    }
+
+    IngestionJobEntity add(IngestionJobState state) {
+      IngestionJobEntity job = new IngestionJobEntity();
+      job.setId(UUID.randomUUID());
+      job.setDocument(document);
+      job.setState(state);
+      job.setCreatedAt(Instant.now());
+      byId.put(job.getId(), job);
+      return job;
+    }
+
+    // like the unique index on the document of unfinished jobs
+    synchronized IngestionJobEntity insert(IngestionJobEntity job) {
+      if (byId.values().stream().anyMatch(other -> other.getDocument().getId().equals(job.getDocument().getId())
+          && (other.getState() == IngestionJobState.QUEUED || other.getState() == IngestionJobState.RUNNING))) {
+        throw new DataIntegrityViolationException("uq_ingestion_jobs_unfinished_document_id");
+      }
+      byId.put(job.getId(), job);
+      return job;
+    }
+
+    void updateState(UUID id, IngestionJobState state, String error, Instant finishedAt) {
+      IngestionJobEntity job = byId.get(id);
+      job.setError(error);
+      job.setFinishedAt(finishedAt);
+      job.setState(state);
+    }
+
+    DocumentRepository documentRepository() {
+      return fake(DocumentRepository.class, (name, args) -> switch (name) {
+        case "findById" -> Optional.of(document).filter(entity -> entity.getId().equals(args[0]));
+        default -> throw new UnsupportedOperationException(name);
+      });
+    }
+
+    @SuppressWarnings("unchecked")
+    IngestionJobRepository jobRepository() {
+      return fake(IngestionJobRepository.class, (name, args) -> switch (name) {
+        case "findByStateInOrderByCreatedAt" -> byId.values().stream()
+            .filter(job -> ((Collection<IngestionJobState>) args[0]).contains(job.getState())).toList();
+        case "findById" -> Optional.ofNullable(byId.get(args[0]));
+        case "existsByDocumentIdAndStateIn" -> !unfinishedCheckPasses && byId.values().stream()
+            .anyMatch(job -> ((Collection<IngestionJobState>) args[1]).contains(job.getState()));
+        case "saveAndFlush" -> insert((IngestionJobEntity) args[0]);
+        case "updateState" -> {
+          updateState((UUID) args[0], (IngestionJobState) args[1], (String) args[2], (Instant) args[3]);
+          yield null;
+        }
+        default -> throw new UnsupportedOperationException(name);
+      });
+    }
+
+    private interface Calls {
+      Object call(String name, Object[] args);
+    }
+
+    private static <T> T fake(Class<T> repository, Calls calls) {
+      return repository.cast(Proxy.newProxyInstance(repository.getClassLoader(), new Class<?>[] { repository },
+          (proxy, method, args) -> calls.call(method.getName(), args)));
+    }
+  }
+
+  private static class NoTransactionManager implements PlatformTransactionManager {
+
+    @Override
+    public TransactionStatus getTransaction(TransactionDefinition definition) {
+      return new SimpleTransactionStatus();
+    }
+
+    @Override
+    public void commit(TransactionStatus status) {
+    }
+
+    @Override
+    public void rollback(TransactionStatus status) {
+    }
+  }
+
+  private abstract static class TestPipeline extends DocumentIngestionPipeline {
+
+    TestPipeline() {
+      super(null, null, null, null, null, null, null, null, new IngestionConfiguration());
+    }
+  }
+
+  /**
+   * Starts the job and waits for chunks that never come, an interrupt fails it
+   * the way the real pipeline does.
+   */
+  private static class BlockingPipeline extends TestPipeline {
+
+    private final Jobs jobs;
+    final CountDownLatch started = new CountDownLatch(1);
+    volatile boolean interrupted;
+
+    BlockingPipeline(Jobs jobs) {
+      this.jobs = jobs;
+    }
+
+    @Override
+    public int run(UUID jobId, DocumentEntity document, Path source) throws IOException {
+      jobs.updateState(jobId, IngestionJobState.RUNNING, null, null);
+      started.countDown();
+      try {
+        new CountDownLatch(1).await();
+        return 0;
+      } catch (InterruptedException e) {
+        interrupted = true;
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while streaming document", e);
+      }
+    }
+  }
+
+  private static class CompletingPipeline extends TestPipeline {
+
+    final List<UUID> jobIds = new CopyOnWriteArrayList<>();
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    @Override
+    public int run(UUID jobId, DocumentEntity document, Path source) {
+      jobIds.add(jobId);
+      finished.countDown();
+      return 0;
+    }
+  }
+}
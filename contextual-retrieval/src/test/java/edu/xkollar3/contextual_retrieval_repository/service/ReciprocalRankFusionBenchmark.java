@@ -0,0 +1,118 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import edu.xkollar3.contextual_retrieval_repository.service.ReciprocalRankFusion.FusedItem;
+import edu.xkollar3.contextual_retrieval_repository.service.ReciprocalRankFusion.Ranking;
+
+/**
+ * Time to fuse large candidate lists, the previous TreeMap merge recomputing
+ * scores inside its comparator vs. ReciprocalRankFusion.
+ */
+@Tag("benchmark")
+class ReciprocalRankFusionBenchmark {
+
+  private static final int CANDIDATES = 100_000;
+  private static final int TOP_K = 5;
+  private static final int ITERATIONS = 10;
+
+  @Test
+  void heapFusionIsFasterThanTreeMapMerge() {
+    Random random = new Random(42);
+    List<UUID> pool = new ArrayList<>();
+    for (int i = 0; i < CANDIDATES * 3 / 2; i++) {
+      pool.add(new UUID(random.nextLong(), random.nextLong()));
+    }
+    List<UUID> first = shuffledPrefix(pool, random);
+    List<UUID> second = shuffledPrefix(pool, random);
+    ReciprocalRankFusion fusion = new ReciprocalRankFusion(60);
+
+    // warm up
+    for (int i = 0; i < 3; i++) {
+      treeMapMerge(first, second);
+      fusion.fuse(List.of(new Ranking<>(first, 1.0), new Ranking<>(second, 1.0)), TOP_K);
+    }
+
+    long treeMapNanos = 0;
+    long heapNanos = 0;
+    int treeMapResults = 0;
+    List<FusedItem<UUID>> fused = List.of();
+    for (int i = 0; i < ITERATIONS; i++) {
+      long start = System.nanoTime();
+      treeMapResults = treeMapMerge(first, second).size();
+      treeMapNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      fused = fusion.fuse(List.of(new Ranking<>(first, 1.0), new Ranking<>(second, 1.0)), TOP_K);
+      heapNanos += System.nanoTime() - start;
+    }
+
+    System.out.printf("candidates per ranking: %,d, unique: %,d%n", CANDIDATES, unique(first, second));
+    System.out.printf("TreeMap merge: %.2f ms per query, %,d results kept%n",
+        treeMapNanos / 1e6 / ITERATIONS, treeMapResults);
+    System.out.printf("heap fusion:   %.2f ms per query%n", heapNanos / 1e6 / ITERATIONS);
+
+    assertThat(fused).hasSize(TOP_K);
+    assertThat(heapNanos).isLessThan(treeMapNanos);
+  }
+
+  private static List<UUID> shuffledPrefix(List<UUID> pool, Random random) {
+    List<UUID> copy = new ArrayList<>(pool);
+    Collections.shuffle(copy, random);
+    return copy.subList(0, CANDIDATES);
+  }
+
+  private static int unique(List<UUID> first, List<UUID> second) {
+    Set<UUID> ids = new HashSet<>(first);
+    ids.addAll(second);
+    return ids.size();
+  }
+
+  // the merge retrieveTopK used before, kept here as the baseline
+  private static Map<UUID, Float> treeMapMerge(List<UUID> first, List<UUID> second) {
+    Map<UUID, Float> firstScores = score(first);
+    Map<UUID, Float> secondScores = score(second);
+    Set<UUID> uniqueIds = new HashSet<>(firstScores.keySet());
+    uniqueIds.addAll(secondScores.keySet());
+
+    Map<UUID, Float> merged = new TreeMap<>(Comparator.comparingDouble((UUID id) -> {
+      float mergedScore = 0;
+      if (firstScores.containsKey(id)) {
+        mergedScore += firstScores.get(id);
+      }
+      if (secondScores.containsKey(id)) {
+        mergedScore += secondScores.get(id);
+      }
+      return mergedScore;
+    }).reversed());
+    for (UUID id : uniqueIds) {
+      merged.put(id, firstScores.getOrDefault(id, 0F) + secondScores.getOrDefault(id, 0F));
+    }
+    return merged;
+  }
+
+  private static Map<UUID, Float> score(List<UUID> ranking) {
+    Map<UUID, Float> scored = new LinkedHashMap<>();
+    float rank = 1;
+    for (UUID id : ranking) {
+      scored.put(id, 1F / (rank + 60));
+      rank++;
+    }
+    return scored;
+  }
+}
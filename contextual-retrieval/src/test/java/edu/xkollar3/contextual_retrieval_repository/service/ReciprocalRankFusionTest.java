@@ -0,0 +1,96 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import edu.xkollar3.contextual_retrieval_repository.service.ReciprocalRankFusion.FusedItem;
+import edu.xkollar3.contextual_retrieval_repository.service.ReciprocalRankFusion.Ranking;
+
+class ReciprocalRankFusionTest {
+
+  private final ReciprocalRankFusion fusion = new ReciprocalRankFusion(60);
+
+  @Test
+  void sumsReciprocalRanksOfAllRankings() {
+    List<FusedItem<String>> fused = fusion.fuse(List.of(
+        new Ranking<>(List.of("a", "b", "c"), 1.0),
+        new Ranking<>(List.of("c", "a"), 1.0)), 10);
+
+    assertThat(fused).extracting(FusedItem::item).containsExactly("a", "c", "b");
+    assertThat(fused.get(0).score()).isCloseTo(1.0 / 61 + 1.0 / 62, within());
+    assertThat(fused.get(1).score()).isCloseTo(1.0 / 63 + 1.0 / 61, within());
+    assertThat(fused.get(2).score()).isCloseTo(1.0 / 62, within());
+  }
+
+  @Test
+  void keepsItemsWithEqualScores() {
+    // every item has the same fused score, the old score keyed merge kept only one of them
+    List<FusedItem<String>> fused = fusion.fuse(List.of(
+        new Ranking<>(List.of("a", "b"), 1.0),
+        new Ranking<>(List.of("b", "a"), 1.0),
+        new Ranking<>(List.of("c", "d"), 1.0),
+        new Ranking<>(List.of("d", "c"), 1.0)), 10);
+
+    assertThat(fused).hasSize(4);
+    assertThat(fused).extracting(FusedItem::score).containsOnly(fused.get(0).score());
+  }
+
+  @Test
+  void breaksTiesByBestRankThenRankingOrder() {
+    List<FusedItem<String>> fused = fusion.fuse(List.of(
+        new Ranking<>(List.of("x", "a"), 1.0),
+        new Ranking<>(List.of("y", "b"), 1.0)), 10);
+
+    assertThat(fused).extracting(FusedItem::item).containsExactly("x", "y", "a", "b");
+  }
+
+  @Test
+  void returnsTopKOrderedByScore() {
+    List<Integer> first = List.of(9, 8, 7, 6, 5, 4, 3, 2, 1, 0);
+    List<Integer> second = List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    List<FusedItem<Integer>> all = fusion.fuse(List.of(new Ranking<>(first, 1.0), new Ranking<>(second, 0.5)), 100);
+    List<FusedItem<Integer>> top = fusion.fuse(List.of(new Ranking<>(first, 1.0), new Ranking<>(second, 0.5)), 3);
+
+    assertThat(all).hasSize(10);
+    assertThat(all).isSortedAccordingTo((left, right) -> Double.compare(right.score(), left.score()));
+    assertThat(top).isEqualTo(all.subList(0, 3));
+  }
+
+  @Test
+  void appliesRankingWeights() {
+    List<FusedItem<String>> fused = fusion.fuse(List.of(
+        new Ranking<>(List.of("a"), 1.0),
+        new Ranking<>(List.of("b"), 2.0)), 10);
+
+    assertThat(fused).extracting(FusedItem::item).containsExactly("b", "a");
+    assertThat(fused.get(0).score()).isCloseTo(2.0 / 61, within());
+  }
+
+  @Test
+  void usesConfiguredConstant() {
+    List<FusedItem<String>> fused = new ReciprocalRankFusion(0).fuse(List.of(
+        new Ranking<>(List.of("a", "b"), 1.0)), 10);
+
+    assertThat(fused).extracting(FusedItem::score).containsExactly(1.0, 0.5);
+  }
+
+  @Test
+  void handlesEmptyInput() {
+    assertThat(fusion.fuse(List.<Ranking<String>>of(), 5)).isEmpty();
+    assertThat(fusion.fuse(List.of(new Ranking<>(List.<String>of(), 1.0)), 5)).isEmpty();
+    assertThat(fusion.fuse(List.of(new Ranking<>(List.of("a"), 1.0)), 0)).isEmpty();
+  }
+
+  @Test
+  void rejectsNegativeConstant() {
+    assertThatThrownBy(() -> new ReciprocalRankFusion(-1)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static org.assertj.core.data.Offset<Double> within() {
+    return org.assertj.core.data.Offset.offset(1e-12);
+  }
+}
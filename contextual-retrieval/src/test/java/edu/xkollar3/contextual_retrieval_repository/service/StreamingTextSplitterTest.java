@@ -0,0 +1,170 @@
+package edu.xkollar3.contextual_retrieval_repository.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+
+class StreamingTextSplitterTest {
+
+  private static final int CHUNK_SIZE = 400;
+  private static final int CHUNK_OVERLAP = 200;
+  private static final int WINDOW_SIZE = 8;
+  private static final int CONTEXT_CHARS = 2000;
+  private static final String[] WORDS = { "pump", "valve", "housing", "seal", "filter", "water", "pressure",
+      "motor", "warranty", "bleed", "prime", "clean", "replace", "check", "monthly", "the", "a", "of" };
+
+  // far longer than the buffer, which is compacted once more than 4096 chars are dead
+  private static final String TEXT = text(200_000);
+
+  @Test
+  void cutsChunksOfTheSameSizeAsTheRecursiveSplitter() {
+    List<String> streamed = chunks(split(TEXT, 1_000));
+    DocumentSplitter recursive = DocumentSplitters.recursive(CHUNK_SIZE, CHUNK_OVERLAP);
+    List<String> expected = recursive.split(Document.from(TEXT)).stream().map(TextSegment::text).toList();
+
+    assertThat(streamed).allSatisfy(chunk -> assertThat(chunk.length()).isLessThanOrEqualTo(CHUNK_SIZE));
+    assertThat(expected).allSatisfy(chunk -> assertThat(chunk.length()).isLessThanOrEqualTo(CHUNK_SIZE));
+    assertThat((double) streamed.size()).isBetween(expected.size() * 0.75, expected.size() * 1.25);
+    assertThat(average(streamed)).isBetween(average(expected) * 0.75, average(expected) * 1.25);
+  }
+
+  @Test
+  void coversTheWholeTextInOrderLikeTheRecursiveSplitter() {
+    List<String> streamed = chunks(split(TEXT, 1_000));
+    List<String> expected = DocumentSplitters.recursive(CHUNK_SIZE, CHUNK_OVERLAP)
+        .split(Document.from(TEXT)).stream().map(TextSegment::text).toList();
+
+    // both start and end where the text does
+    assertThat(streamed.get(0)).startsWith(expected.get(0).substring(0, 40));
+    assertThat(TEXT.strip()).endsWith(streamed.get(streamed.size() - 1));
+
+    // every chunk is a piece of the text, later than the one before and
+    // starting no later than where the one before ended, so no text is lost
+    int previousStart = -1;
+    int previousEnd = 0;
+    for (String chunk : streamed) {
+      int start = TEXT.indexOf(chunk, previousStart + 1);
+      assertThat(start).as("chunk after offset %d", previousStart).isGreaterThan(previousStart);
+      if (start > previousEnd) {
+        assertThat(TEXT.substring(previousEnd, start)).as("text between chunks").isBlank();
+      }
+      // consecutive chunks overlap by at most the overlap
+      assertThat(previousEnd - start).isLessThanOrEqualTo(CHUNK_OVERLAP);
+      previousStart = start;
+      previousEnd = Math.max(previousEnd, start + chunk.length());
+    }
+  }
+
+  @Test
+  void producesTheSameWindowsHoweverTheTextArrives() {
+    List<StreamedWindow> whole = split(TEXT, TEXT.length());
+
+    assertThat(split(TEXT, 1)).isEqualTo(whole);
+    assertThat(split(TEXT, 4_095)).isEqualTo(whole);
+    assertThat(split(TEXT, 10_000)).isEqualTo(whole);
+    assertThat(splitRandomly(TEXT, new Random(7))).isEqualTo(whole);
+  }
+
+  @Test
+  void keepsTheTextBeforeEveryWindowAcrossCompactions() {
+    List<StreamedWindow> windows = split(TEXT, 1_000);
+
+    assertThat(windows).hasSizeGreaterThan(10);
+    int chunkIndex = 0;
+    for (StreamedWindow window : windows) {
+      // a context cut from the wrong part of a compacted buffer would not be in the text
+      int contextStart = TEXT.indexOf(window.context());
+      assertThat(contextStart).isNotNegative();
+      String first = window.chunks().get(0).content();
+      String last = window.chunks().get(window.chunks().size() - 1).content();
+      assertThat(window.context().stripTrailing()).endsWith(last);
+      // chunks are stripped of the whitespace they were cut at
+      assertThat(window.context().indexOf(first)).isBetween(0, CONTEXT_CHARS + 2);
+      for (PendingChunk chunk : window.chunks()) {
+        assertThat(chunk.chunkIndex()).isEqualTo(chunkIndex++);
+        assertThat(window.context()).contains(chunk.content());
+      }
+    }
+    assertThat(windows.subList(0, windows.size() - 1))
+        .allSatisfy(window -> assertThat(window.chunks()).hasSize(WINDOW_SIZE));
+  }
+
+  @Test
+  void splitsTextWithoutBoundariesAtTheChunkSize() {
+    String word = "x".repeat(10_000);
+
+    List<String> streamed = chunks(split(word, 333));
+
+    assertThat(streamed).allSatisfy(chunk -> assertThat(chunk).hasSizeLessThanOrEqualTo(CHUNK_SIZE));
+    assertThat(String.join("", streamed).length()).isGreaterThanOrEqualTo(word.length());
+  }
+
+  private static List<StreamedWindow> split(String text, int pieceSize) {
+    List<StreamedWindow> windows = new ArrayList<>();
+    StreamingTextSplitter splitter = splitter(windows);
+    char[] characters = text.toCharArray();
+    for (int start = 0; start < characters.length; start += pieceSize) {
+      splitter.append(characters, start, Math.min(pieceSize, characters.length - start));
+    }
+    splitter.finish();
+    return windows;
+  }
+
+  private static List<StreamedWindow> splitRandomly(String text, Random random) {
+    List<StreamedWindow> windows = new ArrayList<>();
+    StreamingTextSplitter splitter = splitter(windows);
+    char[] characters = text.toCharArray();
+    int start = 0;
+    while (start < characters.length) {
+      int length = Math.min(1 + random.nextInt(9_000), characters.length - start);
+      splitter.append(characters, start, length);
+      start += length;
+    }
+    splitter.finish();
+    return windows;
+  }
+
+  private static StreamingTextSplitter splitter(List<StreamedWindow> windows) {
+    return new StreamingTextSplitter(CHUNK_SIZE, CHUNK_OVERLAP, WINDOW_SIZE, CONTEXT_CHARS, windows::add);
+  }
+
+  private static List<String> chunks(List<StreamedWindow> windows) {
+    return windows.stream().flatMap(window -> window.chunks().stream()).map(PendingChunk::content).toList();
+  }
+
+  private static double average(List<String> chunks) {
+    return chunks.stream().mapToInt(String::length).average().orElse(0);
+  }
+
+  /**
+   * Paragraphs of sentences, every sentence is numbered so no two pieces of
+   * the text are the same.
+   */
+  private static String text(int length) {
+    Random random = new Random(42);
+    StringBuilder text = new StringBuilder();
+    int sentence = 0;
+    while (text.length() < length) {
+      int sentences = 2 + random.nextInt(6);
+      for (int i = 0; i < sentences; i++) {
+        text.append("Step ").append(sentence++);
+        int words = 4 + random.nextInt(14);
+        for (int j = 0; j < words; j++) {
+          text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        text.append(i == sentences - 1 ? "." : ". ");
+      }
+      text.append(random.nextInt(4) == 0 ? "\n" : "\n\n");
+    }
+    return text.toString();
+  }
+}
@@ -1,21 +1,31 @@
 package edu.xkollar3.rag_example_java.api;
 
 import edu.xkollar3.rag_example_java.service.RagService;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
 @RequestMapping("/api/rag")
 @Slf4j
 public class RagApi {
 
+  private static final Duration STREAM_TIMEOUT = Duration.ofMinutes(5);
+
   private final RagService ragService;
+  private final MeterRegistry meterRegistry;
 
   @Autowired
-  public RagApi(RagService ragService) {
+  public RagApi(RagService ragService, MeterRegistry meterRegistry) {
     this.ragService = ragService;
+    this.meterRegistry = meterRegistry;
   }
 
   @PostMapping("/ask")
@@ -29,4 +39,13 @@ public class RagApi {
       return ResponseEntity.badRequest().body(new AnswerDto("Error processing question: " + e.getMessage()));
     }
   }
+
+  @PostMapping(value = "/ask/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter askQuestionStream(@RequestBody QuestionDto questionDto) {
+    log.info("Received streamed question: {}", questionDto.question());
+    SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT.toMillis());
+    SseAnswerStream stream = new SseAnswerStream(emitter, meterRegistry);
+    Thread.ofVirtual().name("ask-stream").start(() -> ragService.askQuestionStreaming(questionDto.question(), stream));
+    return emitter;
+  }
 }
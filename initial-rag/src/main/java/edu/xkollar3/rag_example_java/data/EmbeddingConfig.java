@@ -3,16 +3,22 @@ package edu.xkollar3.rag_example_java.data;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.TokenCountEstimator;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.model.openai.OpenAiChatModelName;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModelName;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import edu.xkollar3.rag_example_java.repository.DocumentNameIndex;
 import lombok.extern.slf4j.Slf4j;
 
 // TODO: move
@@ -22,16 +28,21 @@ public class EmbeddingConfig {
   @Bean
   public EmbeddingStore<TextSegment> embeddingStore(PgVectorStoreConfiguration configuration,
       EmbeddingModel openAiEmbeddingModel) {
-    return PgVectorEmbeddingStore.builder()
-        .host(configuration.getHostname())
-        .port(configuration.getPort())
-        .user(configuration.getUsername())
-        .password(configuration.getPassword())
+    // unpooled like the one the store builds from host and port itself
+    DriverManagerDataSource dataSource = new DriverManagerDataSource(
+        "jdbc:postgresql://" + configuration.getHostname() + ":" + configuration.getPort() + "/"
+            + configuration.getDatabase(),
+        configuration.getUsername(), configuration.getPassword());
+
+    PgVectorEmbeddingStore store = PgVectorEmbeddingStore.datasourceBuilder()
+        .datasource(dataSource)
         .dimension(openAiEmbeddingModel.dimension())
         .table(configuration.getEmbeddingTableName())
-        .database(configuration.getDatabase())
         .createTable(true)
         .build();
+    // segments of a document are removed with a document_name metadata filter
+    DocumentNameIndex.create(dataSource, configuration.getEmbeddingTableName());
+    return store;
   }
 
   @Bean
@@ -40,8 +51,19 @@ public class EmbeddingConfig {
         .build();
   }
 
+  // counts prompt tokens the way the chat models of both services do
+  @Bean
+  public TokenCountEstimator tokenCountEstimator() {
+    return new OpenAiTokenCountEstimator(OpenAiChatModelName.GPT_3_5_TURBO);
+  }
+
   @Bean
   public ChatModel chatModel(@Value("${openai-api-key}") String apiKey) {
     return OpenAiChatModel.builder().apiKey(apiKey).modelName(OpenAiChatModelName.GPT_3_5_TURBO).build();
   }
+
+  @Bean
+  public StreamingChatModel streamingChatModel(@Value("${openai-api-key}") String apiKey) {
+    return OpenAiStreamingChatModel.builder().apiKey(apiKey).modelName(OpenAiChatModelName.GPT_3_5_TURBO).build();
+  }
 }
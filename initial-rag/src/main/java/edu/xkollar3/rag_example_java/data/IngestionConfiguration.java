@@ -0,0 +1,18 @@
+package edu.xkollar3.rag_example_java.data;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Data;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "ingestion")
+public class IngestionConfiguration {
+
+  // segment size and overlap of the recursive splitter, in characters
+  private Integer chunkSize = 2000;
+  private Integer chunkOverlap = 400;
+  // segments sent to the embedding model and the embedding store in a single call
+  private Integer embeddingBatchSize = 64;
+}
@@ -0,0 +1,32 @@
+package edu.xkollar3.rag_example_java.data;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Data;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "rag")
+public class RagConfiguration {
+
+  // segments retrieved for each transformed query
+  private Integer resultsPerQuery = 5;
+  // retrievals and relevance checks of one question running at the same time
+  private Integer maxConcurrency = 8;
+  // time for retrieving and checking the segments of one question, what is
+  // not done by then is left out of the context
+  private Duration retrievalDeadline = Duration.ofSeconds(30);
+  // segments graded by the model in one call
+  private Integer gradingBatchSize = 10;
+  // retrieval scores, (cosine similarity + 1) / 2, above which a segment is
+  // relevant and below which it is not without asking the model
+  private Double autoAcceptScore = 0.85;
+  private Double autoRejectScore = 0.55;
+  // tokens of retrieved text put into the answer prompt, passages are taken best first while they fit
+  private Integer contextTokenBudget = 3000;
+  // cosine similarity above which a passage repeats one already in the prompt and is left out
+  private Double contextDuplicateSimilarity = 0.95;
+}
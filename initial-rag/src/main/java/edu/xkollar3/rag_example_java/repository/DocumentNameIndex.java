@@ -0,0 +1,71 @@
+package edu.xkollar3.rag_example_java.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Expression index on the document name in the json metadata of the vector
+ * tables, deleting, reindexing and listing the segments of a document by
+ * metadata->>'document_name' is an index lookup instead of a scan of every
+ * vector row.
+ *
+ * The Spring AI table is created by its vector store, so its index is created
+ * once the application is ready. The langchain table gets its index right
+ * after the embedding store created it.
+ */
+@Component
+@Slf4j
+public class DocumentNameIndex {
+
+  static final String SPRING_AI_TABLE = "vector_store";
+
+  private final DataSource dataSource;
+
+  @Autowired
+  public DocumentNameIndex(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void createForSpringAiTable() {
+    create(dataSource, SPRING_AI_TABLE);
+  }
+
+  /**
+   * Creates the index unless it exists, does nothing when the table does not.
+   * The table name comes from configuration, never from a request.
+   */
+  public static void create(DataSource dataSource, String table) {
+    try (Connection connection = dataSource.getConnection()) {
+      try (PreparedStatement exists = connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+        exists.setString(1, table);
+        try (ResultSet rs = exists.executeQuery()) {
+          if (!rs.next() || !rs.getBoolean(1)) {
+            log.info("Table {} does not exist, not indexing document names", table);
+            return;
+          }
+        }
+      }
+      long start = System.nanoTime();
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("CREATE INDEX IF NOT EXISTS " + table + "_document_name_idx ON " + table
+            + " ((metadata->>'document_name'))");
+      }
+      log.info("Document name index on {} ready in {} ms", table, (System.nanoTime() - start) / 1_000_000);
+    } catch (SQLException e) {
+      throw new IllegalStateException("Creating the document name index on " + table + " failed", e);
+    }
+  }
+}
@@ -8,13 +8,45 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
 import java.util.UUID;
 
 @Repository
 public interface DocumentRepository extends JpaRepository<DocumentEntity, UUID> {
 
+  // lookups by metadata->>'document_name' go through DocumentNameIndex
+
   @Modifying
   @Transactional
   @Query(value = "DELETE FROM vector_store WHERE metadata->>'document_name' = :documentName", nativeQuery = true)
   void deleteByDocumentName(@Param("documentName") String documentName);
+
+  @Query(value = """
+      SELECT CAST(id AS varchar) AS "id", metadata->>'content_hash' AS "contentHash",
+        CAST(metadata->>'chunk_index' AS integer) AS "chunkIndex"
+      FROM vector_store WHERE metadata->>'document_name' = :documentName
+      """, nativeQuery = true)
+  List<StoredSegment> findSegmentsByDocumentName(@Param("documentName") String documentName);
+
+  /**
+   * Renumbers segments kept by a reindex in a single statement, ids and
+   * chunkIndexes are pairs by position.
+   */
+  @Modifying
+  @Query(value = """
+      UPDATE vector_store v
+      SET metadata = CAST(jsonb_set(CAST(v.metadata AS jsonb), '{chunk_index}', to_jsonb(u.chunk_index)) AS json)
+      FROM unnest(CAST(:ids AS uuid[]), CAST(:chunkIndexes AS integer[])) AS u(id, chunk_index)
+      WHERE v.id = u.id
+      """, nativeQuery = true)
+  void updateChunkIndexes(@Param("ids") UUID[] ids, @Param("chunkIndexes") Integer[] chunkIndexes);
+
+  // content_hash and chunk_index are null for segments stored before they were recorded
+  interface StoredSegment {
+    String getId();
+
+    String getContentHash();
+
+    Integer getChunkIndex();
+  }
 }
@@ -0,0 +1,95 @@
+package edu.xkollar3.rag_example_java.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pgvector.PGvector;
+
+/**
+ * Reads embeddings of the Spring AI vector store, which its similarity search
+ * does not return, and writes segments embedded ahead of time, which the store
+ * can only embed and write in one go. Plain JDBC because the vector is read as
+ * a real[] array, which JPA native queries do not map.
+ */
+@Repository
+public class EmbeddingRepository {
+
+  private final NamedParameterJdbcTemplate namedJdbcTemplate;
+  private final ObjectMapper objectMapper;
+
+  @Autowired
+  public EmbeddingRepository(NamedParameterJdbcTemplate namedJdbcTemplate, ObjectMapper objectMapper) {
+    this.namedJdbcTemplate = namedJdbcTemplate;
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * @return embeddings of the stored ids by id
+   */
+  public Map<String, float[]> findEmbeddings(Collection<UUID> ids) {
+    Map<String, float[]> embeddings = new HashMap<>();
+    if (ids.isEmpty()) {
+      return embeddings;
+    }
+    namedJdbcTemplate.query("SELECT CAST(id AS varchar) AS id, CAST(embedding AS real[]) AS embedding FROM "
+        + DocumentNameIndex.SPRING_AI_TABLE + " WHERE id IN (:ids)", new MapSqlParameterSource("ids", ids), rs -> {
+          Float[] boxed = (Float[]) rs.getArray("embedding").getArray();
+          float[] vector = new float[boxed.length];
+          for (int i = 0; i < boxed.length; i++) {
+            vector[i] = boxed[i];
+          }
+          embeddings.put(rs.getString("id"), vector);
+        });
+    return embeddings;
+  }
+
+  /**
+   * Inserts segments in one batch, the rows look like the ones the vector store
+   * writes.
+   *
+   * @param embeddings embedding of every segment, in the same order
+   */
+  public void insertSegments(List<Document> segments, List<float[]> embeddings) {
+    if (segments.isEmpty()) {
+      return;
+    }
+    namedJdbcTemplate.getJdbcTemplate().batchUpdate("INSERT INTO " + DocumentNameIndex.SPRING_AI_TABLE
+        + " (id, content, metadata, embedding) VALUES (?, ?, CAST(? AS json), ?)", new BatchPreparedStatementSetter() {
+          @Override
+          public void setValues(PreparedStatement statement, int i) throws SQLException {
+            Document segment = segments.get(i);
+            statement.setObject(1, UUID.fromString(segment.getId()));
+            statement.setString(2, segment.getText());
+            statement.setString(3, toJson(segment.getMetadata()));
+            statement.setObject(4, new PGvector(embeddings.get(i)));
+          }
+
+          @Override
+          public int getBatchSize() {
+            return segments.size();
+          }
+        });
+  }
+
+  private String toJson(Map<String, Object> metadata) {
+    try {
+      return objectMapper.writeValueAsString(metadata);
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Segment metadata cannot be written as json", e);
+    }
+  }
+}
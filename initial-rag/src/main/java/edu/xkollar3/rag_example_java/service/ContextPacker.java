@@ -0,0 +1,222 @@
+package edu.xkollar3.rag_example_java.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import dev.langchain4j.model.TokenCountEstimator;
+import edu.xkollar3.rag_example_java.data.RagConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Assembles retrieved chunks into the context of the answer prompt.
+ *
+ * Chunks of one document with consecutive chunk indexes are merged into a
+ * single passage that contains the text they overlap by once. Passages are
+ * then taken in score order while they fit the token budget, a passage whose
+ * embedding is nearly the same as one already taken is left out. The best
+ * passage is cut to the budget when it does not fit as a whole, so the prompt
+ * never ends up without context.
+ */
+@Component
+@Slf4j
+public class ContextPacker {
+
+  // shorter common text of adjacent chunks is a coincidence, not the splitter overlap
+  private static final int MIN_OVERLAP = 20;
+
+  /**
+   * @param source     document of the chunk, only chunks of the same document
+   *                   are merged, null when unknown
+   * @param chunkIndex position of the chunk in the document, negative when
+   *                   unknown
+   * @param embedding  null when unknown, the chunk then never counts as a
+   *                   near-duplicate
+   */
+  public record Chunk(String source, int chunkIndex, String text, float[] embedding, double score) {
+  }
+
+  private record Passage(List<Chunk> chunks, String text, double score) {
+  }
+
+  /**
+   * @return the chunk index stored in segment metadata, an integer by the Spring
+   *         AI document service or a string by the langchain splitter, -1 when
+   *         missing
+   */
+  public static int chunkIndex(Object value) {
+    if (value instanceof Number number) {
+      return number.intValue();
+    }
+    if (value instanceof String text) {
+      try {
+        return Integer.parseInt(text);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private final TokenCountEstimator tokenCountEstimator;
+  private final int tokenBudget;
+  private final double duplicateSimilarity;
+
+  @Autowired
+  public ContextPacker(TokenCountEstimator tokenCountEstimator, RagConfiguration configuration) {
+    this.tokenCountEstimator = tokenCountEstimator;
+    this.tokenBudget = configuration.getContextTokenBudget();
+    this.duplicateSimilarity = configuration.getContextDuplicateSimilarity();
+  }
+
+  /**
+   * @return passage texts best first, together within the token budget
+   */
+  public List<String> pack(List<Chunk> chunks) {
+    List<Passage> passages = merge(chunks);
+    passages.sort(Comparator.comparingDouble(Passage::score).reversed());
+
+    List<Passage> packed = new ArrayList<>();
+    int tokens = 0;
+    int duplicates = 0;
+    int overBudget = 0;
+    for (Passage passage : passages) {
+      if (packed.stream().anyMatch(taken -> similarity(taken, passage) >= duplicateSimilarity)) {
+        duplicates++;
+        continue;
+      }
+      int passageTokens = tokenCountEstimator.estimateTokenCountInText(passage.text());
+      if (tokens + passageTokens > tokenBudget) {
+        if (!packed.isEmpty()) {
+          overBudget++;
+          continue;
+        }
+        String cut = truncate(passage.text());
+        if (cut.isEmpty()) {
+          overBudget++;
+          continue;
+        }
+        log.info("Cut the best passage to the token budget of {}", tokenBudget);
+        tokens += tokenCountEstimator.estimateTokenCountInText(cut);
+        packed.add(new Passage(passage.chunks(), cut, passage.score()));
+        continue;
+      }
+      tokens += passageTokens;
+      packed.add(passage);
+    }
+
+    log.info("Packed {} chunks into {} passages of {} tokens, {} near-duplicates and {} over the budget of {} left out",
+        chunks.size(), packed.size(), tokens, duplicates, overBudget, tokenBudget);
+    return packed.stream().map(Passage::text).toList();
+  }
+
+  private static List<Passage> merge(List<Chunk> chunks) {
+    List<Passage> passages = new ArrayList<>();
+    Map<String, List<Chunk>> bySource = new LinkedHashMap<>();
+    for (Chunk chunk : chunks) {
+      if (chunk.source() == null || chunk.chunkIndex() < 0) {
+        passages.add(new Passage(List.of(chunk), chunk.text(), chunk.score()));
+      } else {
+        bySource.computeIfAbsent(chunk.source(), source -> new ArrayList<>()).add(chunk);
+      }
+    }
+
+    for (List<Chunk> documentChunks : bySource.values()) {
+      documentChunks.sort(Comparator.comparingInt(Chunk::chunkIndex));
+      List<Chunk> run = new ArrayList<>();
+      for (Chunk chunk : documentChunks) {
+        if (!run.isEmpty()) {
+          int lastIndex = run.get(run.size() - 1).chunkIndex();
+          if (chunk.chunkIndex() == lastIndex) {
+            // the same chunk retrieved twice
+            continue;
+          }
+          if (chunk.chunkIndex() > lastIndex + 1) {
+            passages.add(passage(run));
+            run = new ArrayList<>();
+          }
+        }
+        run.add(chunk);
+      }
+      passages.add(passage(run));
+    }
+    return passages;
+  }
+
+  // a run of adjacent chunks scores as its best chunk
+  private static Passage passage(List<Chunk> run) {
+    String text = run.get(0).text();
+    double score = run.get(0).score();
+    for (int i = 1; i < run.size(); i++) {
+      text = joinOverlapping(text, run.get(i).text());
+      score = Math.max(score, run.get(i).score());
+    }
+    return new Passage(run, text, score);
+  }
+
+  /**
+   * @return the longest start of the text within the token budget, cut after a
+   *         whitespace when there is one
+   */
+  private String truncate(String text) {
+    // estimates grow with the prefix length, binary search for the longest that fits
+    int low = 0;
+    int high = text.length();
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (tokenCountEstimator.estimateTokenCountInText(text.substring(0, middle)) <= tokenBudget) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    int lastWhitespace = low;
+    while (lastWhitespace > 0 && !Character.isWhitespace(text.charAt(lastWhitespace - 1))) {
+      lastWhitespace--;
+    }
+    return text.substring(0, lastWhitespace > 0 ? lastWhitespace : low).stripTrailing();
+  }
+
+  /**
+   * @return the texts joined, the longest end of the first text that the
+   *         second one starts with is kept only once
+   */
+  static String joinOverlapping(String first, String second) {
+    for (int overlap = Math.min(first.length(), second.length()); overlap >= MIN_OVERLAP; overlap--) {
+      if (first.regionMatches(first.length() - overlap, second, 0, overlap)) {
+        return first + second.substring(overlap);
+      }
+    }
+    return first + "\n" + second;
+  }
+
+  // the most similar pair of chunks of the two passages
+  private static double similarity(Passage a, Passage b) {
+    double max = 0;
+    for (Chunk chunkA : a.chunks()) {
+      for (Chunk chunkB : b.chunks()) {
+        if (chunkA.embedding() != null && chunkB.embedding() != null) {
+          max = Math.max(max, cosine(chunkA.embedding(), chunkB.embedding()));
+        }
+      }
+    }
+    return max;
+  }
+
+  private static double cosine(float[] a, float[] b) {
+    double dot = 0;
+    double normA = 0;
+    double normB = 0;
+    for (int i = 0; i < a.length; i++) {
+      dot += a[i] * b[i];
+      normA += a[i] * a[i];
+      normB += b[i] * b[i];
+    }
+    return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+  }
+}
@@ -3,4 +3,10 @@ package edu.xkollar3.rag_example_java.service;
 public interface RagService {
 
   public String askQuestion(String question);
+
+  /**
+   * Blocks for the retrieval, the answer is then delivered to the stream as
+   * it is generated.
+   */
+  public void askQuestionStreaming(String question, AnswerStream stream);
 }
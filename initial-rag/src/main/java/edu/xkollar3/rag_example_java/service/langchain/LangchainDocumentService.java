@@ -1,6 +1,10 @@
 package edu.xkollar3.rag_example_java.service.langchain;
 
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,54 +14,102 @@ import org.springframework.web.multipart.MultipartFile;
 
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
+import edu.xkollar3.rag_example_java.data.IngestionConfiguration;
 import edu.xkollar3.rag_example_java.service.DocumentService;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Parses an upload, splits it once and embeds and stores the segments in
+ * batches. Every segment carries the document name in its metadata, deleting
+ * or reindexing a document removes its segments with a metadata filter.
+ */
 @Service
 @Slf4j
 @ConditionalOnProperty(value = "document-service", havingValue = "langchain")
 public class LangchainDocumentService implements DocumentService {
 
-  private final EmbeddingStoreIngestor ingestor;
+  static final String DOCUMENT_NAME = "document_name";
 
-  @Autowired
-  public LangchainDocumentService(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel) {
-    this.ingestor = EmbeddingStoreIngestor.builder()
-        .embeddingStore(embeddingStore)
-        .embeddingModel(embeddingModel)
-        .documentSplitter(DocumentSplitters.recursive(2000, 400)).build();
+  private final EmbeddingStore<TextSegment> embeddingStore;
+  private final EmbeddingModel embeddingModel;
+  private final DocumentSplitter splitter;
+  private final int batchSize;
 
+  @Autowired
+  public LangchainDocumentService(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel,
+      IngestionConfiguration configuration) {
+    this.embeddingStore = embeddingStore;
+    this.embeddingModel = embeddingModel;
+    this.splitter = DocumentSplitters.recursive(configuration.getChunkSize(), configuration.getChunkOverlap());
+    this.batchSize = configuration.getEmbeddingBatchSize();
   }
 
   @Override
   public void loadDocument(MultipartFile file, String documentName) throws IOException {
-    ApacheTikaDocumentParser parser = new ApacheTikaDocumentParser();
-    Document document = parser.parse(file.getInputStream());
-
-    DocumentSplitter splitter = DocumentSplitters.recursive(2000, 400);
-    List<TextSegment> textSegments = splitter.split(document);
-    textSegments.forEach(segment -> log.info(segment.text()));
-
-    log.info("Ingesting document, size: " + document.text().length());
-    this.ingestor.ingest(document);
+    List<TextSegment> segments = split(file, documentName);
+    List<Embedding> embeddings = embed(segments);
+    store(segments, embeddings);
   }
 
+  /**
+   * The new version is embedded before the old one is removed, so the
+   * document is missing from search only between the delete and the insert.
+   */
   @Override
   public void reindexDocument(MultipartFile file, String documentName) throws IOException {
-    // TODO Auto-generated method stub
-    throw new UnsupportedOperationException("Unimplemented method 'reindexDocument'");
+    log.info("Reindexing document: {}", documentName);
+    List<TextSegment> segments = split(file, documentName);
+    List<Embedding> embeddings = embed(segments);
+    deleteDocument(documentName);
+    store(segments, embeddings);
+    log.info("Successfully reindexed document: {}", documentName);
   }
 
   @Override
   public void deleteDocument(String documentName) {
-    // TODO Auto-generated method stub
-    throw new UnsupportedOperationException("Unimplemented method 'deleteDocument'");
+    log.info("Deleting segments with document_name: {}", documentName);
+    embeddingStore.removeAll(metadataKey(DOCUMENT_NAME).isEqualTo(documentName));
+  }
+
+  private List<TextSegment> split(MultipartFile file, String documentName) throws IOException {
+    Document document;
+    try (InputStream input = file.getInputStream()) {
+      document = new ApacheTikaDocumentParser().parse(input);
+    }
+    document.metadata().put(DOCUMENT_NAME, documentName);
+
+    long start = System.nanoTime();
+    // segments inherit the metadata of the document
+    List<TextSegment> segments = splitter.split(document);
+    log.info("Split document {} of {} characters into {} segments in {} ms", documentName, document.text().length(),
+        segments.size(), (System.nanoTime() - start) / 1_000_000);
+    segments.forEach(segment -> log.debug("Segment: {}", segment.text()));
+    return segments;
+  }
+
+  private List<Embedding> embed(List<TextSegment> segments) {
+    List<Embedding> embeddings = new ArrayList<>(segments.size());
+    for (int from = 0; from < segments.size(); from += batchSize) {
+      List<TextSegment> batch = segments.subList(from, Math.min(from + batchSize, segments.size()));
+      long start = System.nanoTime();
+      embeddings.addAll(embeddingModel.embedAll(batch).content());
+      log.info("Embedded segments {}-{} of {} in {} ms", from + 1, from + batch.size(), segments.size(),
+          (System.nanoTime() - start) / 1_000_000);
+    }
+    return embeddings;
+  }
+
+  private void store(List<TextSegment> segments, List<Embedding> embeddings) {
+    for (int from = 0; from < segments.size(); from += batchSize) {
+      int to = Math.min(from + batchSize, segments.size());
+      embeddingStore.addAll(embeddings.subList(from, to), segments.subList(from, to));
+    }
+    log.info("Stored {} segments", segments.size());
   }
 }
@@ -4,94 +4,318 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.rag.content.Content;
-import dev.langchain4j.rag.content.retriever.ContentRetriever;
-import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
-import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.service.AiServices;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
 import dev.langchain4j.store.embedding.EmbeddingStore;
+import edu.xkollar3.rag_example_java.data.RagConfiguration;
+import edu.xkollar3.rag_example_java.service.AnswerStream;
+import edu.xkollar3.rag_example_java.service.ContextPacker;
 import edu.xkollar3.rag_example_java.service.RagService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @Component
 @Slf4j
 @ConditionalOnProperty(value = "rag-service", havingValue = "langchain")
 public class LangchainRagService implements RagService {
 
-  private final EmbeddingStore<TextSegment> embeddingStore;
-  private final EmbeddingModel embeddingModel;
   private final ChatModel chatModel;
-  private final PromptRelevanceChecker relevanceChecker;
+  private final StreamingChatModel streamingChatModel;
+  private final RelevanceGrader relevanceGrader;
   private final QueryTransformer queryTransformer;
+  private final EmbeddingStore<TextSegment> embeddingStore;
+  private final EmbeddingModel embeddingModel;
+  private final ContextPacker contextPacker;
+  private final RagConfiguration configuration;
+  private final Semaphore concurrencyLimit;
+  private final MeterRegistry meterRegistry;
+
+  // the embedding is kept for near-duplicate detection when packing the context
+  private record Candidate(TextSegment segment, double score, float[] embedding) {
+  }
 
   @Autowired
   public LangchainRagService(EmbeddingStore<TextSegment> embeddingStore, EmbeddingModel embeddingModel,
-      ChatModel chatModel) {
-    this.embeddingStore = embeddingStore;
-    this.embeddingModel = embeddingModel;
+      ChatModel chatModel, StreamingChatModel streamingChatModel, ContextPacker contextPacker,
+      RagConfiguration configuration, MeterRegistry meterRegistry) {
     this.chatModel = chatModel;
-    this.relevanceChecker = AiServices.builder(PromptRelevanceChecker.class)
+    this.streamingChatModel = streamingChatModel;
+    this.relevanceGrader = AiServices.builder(RelevanceGrader.class)
         .chatModel(chatModel)
         .build();
     this.queryTransformer = AiServices.builder(QueryTransformer.class)
         .chatModel(chatModel)
         .build();
+    this.embeddingStore = embeddingStore;
+    this.embeddingModel = embeddingModel;
+    this.contextPacker = contextPacker;
+    this.configuration = configuration;
+    // shared by all questions, limits the load on the model and the database
+    this.concurrencyLimit = new Semaphore(configuration.getMaxConcurrency());
+    this.meterRegistry = meterRegistry;
   }
 
   @Override
   public String askQuestion(String question) {
     log.info("Processing question: {}", question);
+    List<Candidate> relevantChunks = retrieveRelevantChunks(question);
+    return timed("generate", () -> chatModel.chat(finalPrompt(question, relevantChunks)));
+  }
 
-    // query transform step
-    log.info("Transforming question into multiple specific queries");
-    String transformedQueriesResponse = queryTransformer.transformQuery(question);
-    List<String> transformedQueries = parseTransformedQueries(transformedQueriesResponse);
-
-    ContentRetriever contentRetriever = EmbeddingStoreContentRetriever.builder()
-        .embeddingStore(this.embeddingStore)
-        .embeddingModel(this.embeddingModel)
-        .maxResults(5) // on each interaction we will retrieve the 5 most relevant segments
-        .build();
+  @Override
+  public void askQuestionStreaming(String question, AnswerStream stream) {
+    log.info("Processing streamed question: {}", question);
+    try {
+      List<Candidate> relevantChunks = retrieveRelevantChunks(question);
+      stream.sources(relevantChunks.stream().map(candidate -> candidate.segment().text()).toList());
 
-    // retrieve and relevance check, if more efficiency is needed do not check
-    // relevance for each transformed query separately
-    log.info("Retrieving relevant segments from embedding store for all transformed queries");
-    Set<String> uniqueChunks = new HashSet<>();
-    for (String transformedQuery : transformedQueries) {
-      List<Content> relevantContents = contentRetriever.retrieve(Query.from(transformedQuery));
-      relevantContents.forEach(content -> log.info("content from question: " + content.textSegment().text()));
+      // generation is timed from the request to the model to its last token
+      long start = System.nanoTime();
+      streamingChatModel.chat(finalPrompt(question, relevantChunks), new StreamingChatResponseHandler() {
+        @Override
+        public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+          stream.onCancel(context.streamingHandle()::cancel);
+          stream.token(partialResponse.text());
+        }
 
-      for (Content content : relevantContents) {
-        String chunk = content.textSegment().text();
-        boolean isRelevant = relevanceChecker.isTextRelevant(question, chunk);
+        @Override
+        public void onCompleteResponse(ChatResponse completeResponse) {
+          recordStage("generate", start);
+          stream.complete();
+        }
 
-        if (isRelevant) {
-          uniqueChunks.add(chunk);
+        @Override
+        public void onError(Throwable error) {
+          recordStage("generate", start);
+          log.error("Streaming the answer failed", error);
+          stream.error(error);
         }
-      }
+      });
+    } catch (RuntimeException e) {
+      log.error("Answering the streamed question failed", e);
+      stream.error(e);
     }
+  }
+
+  private List<Candidate> retrieveRelevantChunks(String question) {
+    long deadline = System.nanoTime() + configuration.getRetrievalDeadline().toNanos();
+
+    // query transform step
+    log.info("Transforming question into multiple specific queries");
+    List<String> transformedQueries = timed("transform",
+        () -> parseTransformedQueries(queryTransformer.transformQuery(question)));
+
+    // all queries are retrieved at once, bounded by the concurrency limit and
+    // the deadline
+    log.info("Retrieving relevant segments from embedding store for {} transformed queries", transformedQueries.size());
+    List<List<Candidate>> retrieved = timed("retrieve", () -> runAll(transformedQueries.stream()
+        .<Callable<List<Candidate>>>map(transformedQuery -> () -> retrieve(transformedQuery))
+        .toList(), deadline, List.of()));
 
-    List<String> relevantChunks = new ArrayList<>(uniqueChunks);
+    // unique segments in (query, rank) order, the same for every run no matter
+    // which call finishes first, with their best score of all queries
+    Map<String, Candidate> unique = new LinkedHashMap<>();
+    retrieved.stream().flatMap(List::stream).forEach(candidate -> unique.merge(candidate.segment().text(),
+        candidate, (first, second) -> second.score() > first.score() ? second : first));
+    Map<String, Double> candidates = new LinkedHashMap<>();
+    unique.forEach((text, candidate) -> candidates.put(text, candidate.score()));
+    Set<String> uniqueChunks = timed("grade", () -> grade(question, candidates, deadline));
+
+    List<Candidate> relevantChunks = uniqueChunks.stream().map(unique::get).toList();
     log.info("Retrieved and filtered to {} unique relevant chunks from all transformed queries", relevantChunks.size());
 
     // in this simple demo fail if nothing is found
     if (relevantChunks.size() == 0) {
       throw new IllegalStateException("Must find at least a single relevant chunk");
     }
+    return relevantChunks;
+  }
 
-    String context = String.join("\n\n", relevantChunks);
+  private List<Candidate> retrieve(String transformedQuery) {
+    // searched directly instead of through a content retriever, which drops the embeddings
+    Embedding queryEmbedding = embeddingModel.embed(transformedQuery).content();
+    List<EmbeddingMatch<TextSegment>> matches = embeddingStore.search(EmbeddingSearchRequest.builder()
+        .queryEmbedding(queryEmbedding)
+        .maxResults(configuration.getResultsPerQuery())
+        .build()).matches();
+    matches.forEach(match -> log.info("content from question: " + match.embedded().text()));
+    return matches.stream().map(match -> new Candidate(match.embedded(), match.score(),
+        match.embedding() != null ? match.embedding().vector() : null)).toList();
+  }
+
+  /**
+   * Segments scored above the accept threshold are relevant and below the
+   * reject threshold are not, the rest is graded by the model in batches.
+   *
+   * @return relevant segments in candidate order
+   */
+  private Set<String> grade(String question, Map<String, Double> candidates, long deadline) {
+    Set<String> relevant = new HashSet<>();
+    List<String> undecided = new ArrayList<>();
+    int rejected = 0;
+    for (Map.Entry<String, Double> candidate : candidates.entrySet()) {
+      if (candidate.getValue() >= configuration.getAutoAcceptScore()) {
+        relevant.add(candidate.getKey());
+      } else if (candidate.getValue() < configuration.getAutoRejectScore()) {
+        rejected++;
+      } else {
+        undecided.add(candidate.getKey());
+      }
+    }
+
+    int batchSize = configuration.getGradingBatchSize();
+    List<List<String>> batches = new ArrayList<>();
+    for (int from = 0; from < undecided.size(); from += batchSize) {
+      batches.add(undecided.subList(from, Math.min(from + batchSize, undecided.size())));
+    }
+    log.info("Grading {} unique segments: {} accepted and {} rejected by score, {} in {} model calls",
+        candidates.size(), relevant.size(), rejected, undecided.size(), batches.size());
+
+    // a batch that is late or fails counts as not relevant
+    List<Set<Integer>> verdicts = runAll(batches.stream()
+        .<Callable<Set<Integer>>>map(batch -> () -> gradeBatch(question, batch))
+        .toList(), deadline, Set.of());
+    for (int i = 0; i < batches.size(); i++) {
+      for (int index : verdicts.get(i)) {
+        relevant.add(batches.get(i).get(index));
+      }
+    }
+
+    Set<String> ordered = new LinkedHashSet<>();
+    candidates.keySet().stream().filter(relevant::contains).forEach(ordered::add);
+    return ordered;
+  }
+
+  /**
+   * @return indexes of the relevant segments of the batch, segments the model
+   *         gave no verdict for are not relevant
+   */
+  private Set<Integer> gradeBatch(String question, List<String> batch) {
+    StringBuilder texts = new StringBuilder();
+    for (int i = 0; i < batch.size(); i++) {
+      texts.append('[').append(i + 1).append("] ").append(batch.get(i)).append("\n\n");
+    }
+    RelevanceGrader.Verdicts verdicts = relevanceGrader.grade(question, texts.toString());
+
+    Set<Integer> relevant = new HashSet<>();
+    if (verdicts == null || verdicts.verdicts() == null) {
+      return relevant;
+    }
+    for (RelevanceGrader.Verdict verdict : verdicts.verdicts()) {
+      if (verdict.relevant() && verdict.id() >= 1 && verdict.id() <= batch.size()) {
+        relevant.add(verdict.id() - 1);
+      }
+    }
+    return relevant;
+  }
+
+  /**
+   * Runs the tasks on virtual threads, at most maxConcurrency at a time.
+   *
+   * @return results in task order, fallback for tasks that failed or did not
+   *         finish before the deadline
+   */
+  private <T> List<T> runAll(List<Callable<T>> tasks, long deadline, T fallback) {
+    List<Callable<T>> limited = tasks.stream().<Callable<T>>map(task -> () -> {
+      concurrencyLimit.acquire();
+      try {
+        return task.call();
+      } finally {
+        concurrencyLimit.release();
+      }
+    }).toList();
+
+    List<T> results = new ArrayList<>(tasks.size());
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      // unfinished tasks are cancelled once the deadline passes
+      List<Future<T>> futures = executor.invokeAll(limited, Math.max(deadline - System.nanoTime(), 0),
+          TimeUnit.NANOSECONDS);
+      int late = 0;
+      for (Future<T> future : futures) {
+        if (future.isCancelled()) {
+          late++;
+          results.add(fallback);
+          continue;
+        }
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          log.warn("Retrieval task failed, leaving it out", e.getCause());
+          results.add(fallback);
+        }
+      }
+      if (late > 0) {
+        log.warn("{} of {} retrieval tasks did not finish before the deadline", late, tasks.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while retrieving relevant chunks", e);
+    }
+    return results;
+  }
+
+  private <T> T timed(String stage, Supplier<T> task) {
+    long start = System.nanoTime();
+    try {
+      return task.get();
+    } finally {
+      recordStage(stage, start);
+    }
+  }
+
+  private void recordStage(String stage, long start) {
+    long elapsed = System.nanoTime() - start;
+    stageTimer(stage).record(elapsed, TimeUnit.NANOSECONDS);
+    log.info("Stage {} took {} ms", stage, elapsed / 1_000_000);
+  }
+
+  private Timer stageTimer(String stage) {
+    return Timer.builder("rag.stage.latency")
+        .description("Latency of one stage of answering a question")
+        .tag("service", "langchain")
+        .tag("stage", stage)
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(meterRegistry);
+  }
+
+  private String finalPrompt(String question, List<Candidate> relevantChunks) {
+    List<ContextPacker.Chunk> chunks = relevantChunks.stream().map(candidate -> new ContextPacker.Chunk(
+        candidate.segment().metadata().getString(LangchainDocumentService.DOCUMENT_NAME),
+        // position of the segment in its document, stored as text by the splitter
+        ContextPacker.chunkIndex(candidate.segment().metadata().toMap().get("index")),
+        candidate.segment().text(), candidate.embedding(), candidate.score())).toList();
+    String context = String.join("\n\n", contextPacker.pack(chunks));
     log.info("Context assembled, size: {} characters", context.length());
 
     // Construct the final prompt with context and question
-    String finalPrompt = String.format("""
+    return String.format("""
         You are a helpful assistant that answers questions based on the provided context.
         Use ONLY the information from the context below to answer the question.
         If the context doesn't contain enough information to answer the question completely, say so.
@@ -103,8 +327,6 @@ public class LangchainRagService implements RagService {
 
         Answer:
         """, context, question);
-
-    return chatModel.chat(finalPrompt);
   }
 
   private List<String> parseTransformedQueries(String response) {
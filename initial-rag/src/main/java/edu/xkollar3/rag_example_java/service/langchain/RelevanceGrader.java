@@ -0,0 +1,34 @@
+package edu.xkollar3.rag_example_java.service.langchain;
+
+import java.util.List;
+
+import dev.langchain4j.service.UserMessage;
+import dev.langchain4j.service.V;
+
+interface RelevanceGrader {
+
+  record Verdict(int id, boolean relevant) {
+  }
+
+  record Verdicts(List<Verdict> verdicts) {
+  }
+
+  @UserMessage("""
+      You are a relevance evaluator for a Retrieval-Augmented Generation (RAG) system.
+      Your task is to determine for each of the numbered texts below if it contains information that can help answer a specific question.
+
+      Question: {{question}}
+
+      Texts to evaluate, each starts with its id in square brackets:
+      {{texts}}
+
+      Analyze every text carefully and determine if it contains relevant information to answer the question.
+      A text is relevant ONLY if it directly contains information that helps answer the question.
+      It is not relevant if it is only tangentially related, off-topic, or does not provide useful information for answering the question.
+
+      IMPORTANT: Be strict in your evaluation. Judge every text on its own, independently of the others.
+      Return one verdict with the id of the text for every text.
+      """)
+  Verdicts grade(@V("question") String question, @V("texts") String texts);
+
+}
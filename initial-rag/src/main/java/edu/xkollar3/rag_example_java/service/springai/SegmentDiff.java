@@ -0,0 +1,94 @@
+package edu.xkollar3.rag_example_java.service.springai;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.springframework.ai.document.Document;
+
+import edu.xkollar3.rag_example_java.repository.DocumentRepository.StoredSegment;
+
+/**
+ * Matches the segments of a new split of a document against its stored
+ * segments by content hash. A matched segment keeps its vector and only moves
+ * to its new chunk index, unmatched new segments have to be embedded and the
+ * stored segments left unmatched are no longer part of the document.
+ *
+ * Identical segments occurring several times in a document are paired in the
+ * order they were stored. Segments stored before content hashes were recorded
+ * never match.
+ */
+final class SegmentDiff {
+
+  private final List<Document> added = new ArrayList<>();
+  private final Map<UUID, Integer> moved = new LinkedHashMap<>();
+  private final List<String> removed;
+  private final int unchanged;
+
+  /**
+   * @param segments new split, every segment with its content hash and chunk
+   *                 index in the metadata
+   */
+  SegmentDiff(List<StoredSegment> stored, List<Document> segments) {
+    Map<String, ArrayDeque<StoredSegment>> unmatched = new HashMap<>();
+    for (StoredSegment segment : stored) {
+      if (segment.getContentHash() != null) {
+        unmatched.computeIfAbsent(segment.getContentHash(), hash -> new ArrayDeque<>()).add(segment);
+      }
+    }
+
+    Set<String> kept = new HashSet<>();
+    for (Document segment : segments) {
+      ArrayDeque<StoredSegment> matches = unmatched
+          .get((String) segment.getMetadata().get(SpringAiDocumentService.CONTENT_HASH));
+      if (matches == null || matches.isEmpty()) {
+        added.add(segment);
+        continue;
+      }
+      StoredSegment match = matches.poll();
+      kept.add(match.getId());
+      // an unchanged segment after an edit sits at a new position, which merging adjacent chunks relies on
+      int chunkIndex = (Integer) segment.getMetadata().get(SpringAiDocumentService.CHUNK_INDEX);
+      if (match.getChunkIndex() == null || match.getChunkIndex() != chunkIndex) {
+        moved.put(UUID.fromString(match.getId()), chunkIndex);
+      }
+    }
+    this.removed = stored.stream().map(StoredSegment::getId).filter(id -> !kept.contains(id)).toList();
+    this.unchanged = kept.size();
+  }
+
+  /**
+   * @return new segments that have to be embedded, in split order
+   */
+  List<Document> added() {
+    return added;
+  }
+
+  /**
+   * @return new chunk index by id of the stored segments that kept their
+   *         content but not their position
+   */
+  Map<UUID, Integer> moved() {
+    return moved;
+  }
+
+  /**
+   * @return ids of stored segments no segment of the new split matched
+   */
+  List<String> removed() {
+    return removed;
+  }
+
+  /**
+   * @return number of stored segments kept, moved ones included
+   */
+  int unchanged() {
+    return unchanged;
+  }
+}
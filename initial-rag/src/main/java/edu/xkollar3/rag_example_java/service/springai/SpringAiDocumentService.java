@@ -3,8 +3,17 @@ package edu.xkollar3.rag_example_java.service.springai;
 import org.springframework.ai.document.Document;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.UUID;
 
+import org.springframework.ai.embedding.BatchingStrategy;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.embedding.TokenCountBatchingStrategy;
 import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
 import org.springframework.ai.reader.pdf.config.PdfDocumentReaderConfig;
 import org.springframework.ai.transformer.splitter.TokenTextSplitter;
@@ -12,25 +21,39 @@ import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
 import edu.xkollar3.rag_example_java.repository.DocumentRepository;
+import edu.xkollar3.rag_example_java.repository.EmbeddingRepository;
 import edu.xkollar3.rag_example_java.service.DocumentService;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.transaction.annotation.Transactional;
 
 @Service
 @Slf4j
 @ConditionalOnProperty(value = "documentService", havingValue = "spring")
 public class SpringAiDocumentService implements DocumentService {
 
+  static final String CONTENT_HASH = "content_hash";
+  static final String CHUNK_INDEX = "chunk_index";
+
   private final VectorStore store;
   private final DocumentRepository documentRepository;
+  private final EmbeddingRepository embeddingRepository;
+  private final EmbeddingModel embeddingModel;
+  private final TransactionTemplate transactionTemplate;
+  // the default of the vector store, so reindexed segments are embedded in the same batches
+  private final BatchingStrategy batchingStrategy = new TokenCountBatchingStrategy();
 
   @Autowired
-  public SpringAiDocumentService(VectorStore store, DocumentRepository documentRepository) {
+  public SpringAiDocumentService(VectorStore store, DocumentRepository documentRepository,
+      EmbeddingRepository embeddingRepository, EmbeddingModel embeddingModel,
+      TransactionTemplate transactionTemplate) {
     this.store = store;
     this.documentRepository = documentRepository;
+    this.embeddingRepository = embeddingRepository;
+    this.embeddingModel = embeddingModel;
+    this.transactionTemplate = transactionTemplate;
   }
 
   /**
@@ -54,6 +77,48 @@ public class SpringAiDocumentService implements DocumentService {
    * which I want to try later
    **/
   public void loadDocument(MultipartFile file, String documentName) throws IOException {
+    store.accept(split(file, documentName));
+  }
+
+  public void deleteDocument(String documentName) {
+    log.info("Deleting documents with document_name: {}", documentName);
+    documentRepository.deleteByDocumentName(documentName);
+    log.info("Successfully deleted documents with document_name: {}", documentName);
+  }
+
+  /**
+   * Splits the new version and diffs it against the stored segments by content
+   * hash, only segments whose text changed are embedded again and segments not
+   * in the new version are deleted by id. Small edits of a large document cost
+   * as many embedding calls as segments they touched.
+   *
+   * The new segments are embedded before the transaction, which then only
+   * deletes, renumbers and inserts and holds no row locks during the embedding
+   * round trips.
+   */
+  public void reindexDocument(MultipartFile file, String documentName) throws IOException {
+    log.info("Reindexing document: {}", documentName);
+    List<Document> segments = split(file, documentName);
+    SegmentDiff diff = new SegmentDiff(documentRepository.findSegmentsByDocumentName(documentName), segments);
+
+    List<float[]> embeddings = diff.added().isEmpty() ? List.of()
+        : embeddingModel.embed(diff.added(), EmbeddingOptionsBuilder.builder().build(), batchingStrategy);
+
+    transactionTemplate.executeWithoutResult(status -> {
+      if (!diff.removed().isEmpty()) {
+        store.delete(diff.removed());
+      }
+      if (!diff.moved().isEmpty()) {
+        documentRepository.updateChunkIndexes(diff.moved().keySet().toArray(UUID[]::new),
+            diff.moved().values().toArray(Integer[]::new));
+      }
+      embeddingRepository.insertSegments(diff.added(), embeddings);
+    });
+    log.info("Successfully reindexed document {}: {} segments unchanged ({} moved), {} embedded, {} deleted",
+        documentName, diff.unchanged(), diff.moved().size(), diff.added().size(), diff.removed().size());
+  }
+
+  private List<Document> split(MultipartFile file, String documentName) {
     PagePdfDocumentReader pdfReader = new PagePdfDocumentReader(
         file.getResource(),
         PdfDocumentReaderConfig.builder()
@@ -72,23 +137,22 @@ public class SpringAiDocumentService implements DocumentService {
 
     List<Document> docs = splitter.split(pages);
 
-    docs.forEach(doc -> doc.getMetadata().put("document_name", documentName));
-
-    store.accept(docs);
-  }
-
-  public void deleteDocument(String documentName) {
-    log.info("Deleting documents with document_name: {}", documentName);
-    documentRepository.deleteByDocumentName(documentName);
-    log.info("Successfully deleted documents with document_name: {}", documentName);
+    for (int i = 0; i < docs.size(); i++) {
+      Document doc = docs.get(i);
+      doc.getMetadata().put("document_name", documentName);
+      doc.getMetadata().put(CONTENT_HASH, contentHash(doc.getText()));
+      doc.getMetadata().put(CHUNK_INDEX, i);
+    }
+    return docs;
   }
 
-  @Transactional
-  public void reindexDocument(MultipartFile file, String documentName) throws IOException {
-    log.info("Reindexing document: {}", documentName);
-    deleteDocument(documentName);
-    loadDocument(file, documentName);
-    log.info("Successfully reindexed document: {}", documentName);
+  private static String contentHash(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
   }
 
 }
@@ -9,12 +9,19 @@ import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
+import edu.xkollar3.rag_example_java.repository.EmbeddingRepository;
+import edu.xkollar3.rag_example_java.service.AnswerStream;
+import edu.xkollar3.rag_example_java.service.ContextPacker;
 import edu.xkollar3.rag_example_java.service.RagService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
 
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @Service
 @Slf4j
@@ -23,6 +30,9 @@ public class SpringAiRagService implements RagService {
 
   private final VectorStore vectorStore;
   private final ChatClient chatClient;
+  private final ContextPacker contextPacker;
+  private final EmbeddingRepository embeddingRepository;
+  private final MeterRegistry meterRegistry;
 
   private static final String PROMPT_TEMPLATE = """
       You are a helpful assistant that answers questions based on provided context.
@@ -39,30 +49,80 @@ public class SpringAiRagService implements RagService {
       Answer:
       """;
 
-  public SpringAiRagService(VectorStore vectorStore, ChatClient.Builder chatClientBuilder) {
+  public SpringAiRagService(VectorStore vectorStore, ChatClient.Builder chatClientBuilder,
+      ContextPacker contextPacker, EmbeddingRepository embeddingRepository, MeterRegistry meterRegistry) {
     this.vectorStore = vectorStore;
     this.chatClient = chatClientBuilder.build();
+    this.contextPacker = contextPacker;
+    this.embeddingRepository = embeddingRepository;
+    this.meterRegistry = meterRegistry;
   }
 
   public String askQuestion(String question) {
+    List<Document> sources = retrieve(question);
+    Prompt prompt = prompt(question, sources);
+    long start = System.nanoTime();
+    String response = chatClient.prompt(prompt).call().content();
+    recordStage("generate", start);
+
+    return response;
+  }
+
+  public void askQuestionStreaming(String question, AnswerStream stream) {
+    try {
+      List<Document> sources = retrieve(question);
+      stream.sources(sources.stream().map(Document::getText).toList());
+
+      Prompt prompt = prompt(question, sources);
+      // generation is timed from the request to the model to its last token
+      long start = System.nanoTime();
+      Disposable generation = chatClient.prompt(prompt).stream().content()
+          .doOnTerminate(() -> recordStage("generate", start))
+          .subscribe(stream::token, stream::error, stream::complete);
+      stream.onCancel(generation::dispose);
+    } catch (RuntimeException e) {
+      log.error("Answering the streamed question failed", e);
+      stream.error(e);
+    }
+  }
+
+  private List<Document> retrieve(String question) {
     List<Document> relevantDocs = vectorStore
         .similaritySearch(
             SearchRequest.builder().topK(10).query(question).build());
 
     log.info("retrieved: " + relevantDocs.size() + " relevant documents ");
+    return relevantDocs;
+  }
+
+  private Prompt prompt(String question, List<Document> sources) {
+    // the similarity search does not return the embeddings
+    Map<String, float[]> embeddings = embeddingRepository
+        .findEmbeddings(sources.stream().map(doc -> UUID.fromString(doc.getId())).toList());
 
-    String context = relevantDocs.stream()
-        .map(doc -> doc.getText())
-        .collect(Collectors.joining("\n\n---\n\n"));
+    List<ContextPacker.Chunk> chunks = sources.stream().map(doc -> new ContextPacker.Chunk(
+        // segments stored before chunk_index was recorded are never merged
+        (String) doc.getMetadata().get("document_name"),
+        ContextPacker.chunkIndex(doc.getMetadata().get(SpringAiDocumentService.CHUNK_INDEX)), doc.getText(),
+        embeddings.get(doc.getId()), doc.getScore() != null ? doc.getScore() : 0)).toList();
+    String context = String.join("\n\n---\n\n", contextPacker.pack(chunks));
 
     PromptTemplate promptTemplate = new PromptTemplate(PROMPT_TEMPLATE);
-    Prompt prompt = promptTemplate.create(Map.of(
+    return promptTemplate.create(Map.of(
         "context", context,
         "question", question));
+  }
 
-    String response = chatClient.prompt(prompt).call().content();
-
-    return response;
+  private void recordStage(String stage, long start) {
+    long elapsed = System.nanoTime() - start;
+    Timer.builder("rag.stage.latency")
+        .description("Latency of one stage of answering a question")
+        .tag("service", "springai")
+        .tag("stage", stage)
+        .publishPercentiles(0.5, 0.95, 0.99)
+        .register(meterRegistry)
+        .record(elapsed, TimeUnit.NANOSECONDS);
+    log.info("Stage {} took {} ms", stage, elapsed / 1_000_000);
   }
 
 }
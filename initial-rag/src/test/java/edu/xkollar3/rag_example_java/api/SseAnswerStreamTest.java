@@ -0,0 +1,85 @@
+package edu.xkollar3.rag_example_java.api;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class SseAnswerStreamTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  void sendsSourcesThenTokensThenDone() {
+    RecordingEmitter emitter = new RecordingEmitter(false);
+    SseAnswerStream stream = new SseAnswerStream(emitter, meterRegistry);
+
+    stream.sources(List.of("source"));
+    stream.token("The pump ");
+    stream.token("is primed.");
+    stream.complete();
+
+    assertThat(emitter.events).containsExactly("sources", "token", "token", "done");
+    assertThat(meterRegistry.get("answer.time.to.first.token").timer().count()).isEqualTo(1);
+    assertThat(meterRegistry.get("answer.stream.duration").timer().count()).isEqualTo(1);
+  }
+
+  @Test
+  void cancelsTheGenerationOnceTheClientIsGone() {
+    AtomicInteger cancelled = new AtomicInteger();
+    SseAnswerStream stream = new SseAnswerStream(new RecordingEmitter(true), meterRegistry);
+    stream.onCancel(cancelled::incrementAndGet);
+
+    stream.token("The pump ");
+    stream.token("is primed.");
+
+    assertThat(cancelled).hasValue(1);
+    // registered after the client went away
+    stream.onCancel(cancelled::incrementAndGet);
+    assertThat(cancelled).hasValue(2);
+  }
+
+  @Test
+  void leavesAFinishedAnswerAlone() {
+    AtomicInteger cancelled = new AtomicInteger();
+    RecordingEmitter emitter = new RecordingEmitter(false);
+    SseAnswerStream stream = new SseAnswerStream(emitter, meterRegistry);
+    stream.onCancel(cancelled::incrementAndGet);
+
+    stream.token("The pump is primed.");
+    stream.error(new IllegalStateException("model failed"));
+
+    assertThat(emitter.events).containsExactly("token", "error");
+    assertThat(cancelled).hasValue(0);
+  }
+
+  /**
+   * Keeps the names of the sent events, or fails every send as a closed
+   * connection would.
+   */
+  private static class RecordingEmitter extends SseEmitter {
+
+    private final boolean disconnected;
+    private final List<String> events = new ArrayList<>();
+
+    RecordingEmitter(boolean disconnected) {
+      this.disconnected = disconnected;
+    }
+
+    @Override
+    public void send(SseEventBuilder builder) throws IOException {
+      if (disconnected) {
+        throw new IOException("Broken pipe");
+      }
+      String event = builder.build().iterator().next().getData().toString();
+      events.add(event.substring("event:".length(), event.indexOf('\n')));
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package edu.xkollar3.rag_example_java.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Latency of listing and deleting the segments of one document in a vector
+ * table of 1M rows, scanning the json metadata of every row vs. going through
+ * DocumentNameIndex. Deletes are rolled back. The table has the columns of
+ * Spring AI's vector_store except the embedding, which pgvector stores out of
+ * line and a scan of the metadata never reads. The row count can be changed
+ * with -Dbenchmark.registry.rows=100000. Needs the database from compose.yaml.
+ */
+@Tag("benchmark")
+class DocumentNameIndexBenchmark {
+
+  private static final String SCHEMA = "benchmark_document_name";
+  private static final int ROWS = Integer.getInteger("benchmark.registry.rows", 1_000_000);
+  private static final int SEGMENTS_PER_DOCUMENT = 200;
+  private static final int ROUNDS = 20;
+
+  // the statements of DocumentRepository
+  private static final String FIND_SEGMENTS = """
+      SELECT CAST(id AS varchar) AS "id", metadata->>'content_hash' AS "contentHash"
+      FROM vector_store WHERE metadata->>'document_name' = ?
+      """;
+  private static final String DELETE_DOCUMENT = "DELETE FROM vector_store WHERE metadata->>'document_name' = ?";
+
+  private SingleConnectionDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private TransactionTemplate transactionTemplate;
+
+  @BeforeEach
+  void setUp() {
+    dataSource = BenchmarkDatabase.recreateSchema(SCHEMA);
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+    long start = System.nanoTime();
+    jdbcTemplate.execute("CREATE TABLE vector_store (id uuid PRIMARY KEY, content text, metadata json)");
+    jdbcTemplate.update("""
+        INSERT INTO vector_store
+        SELECT gen_random_uuid(), 'segment ' || i || ' ' || repeat('lorem ipsum ', 40),
+          json_build_object('document_name', 'document-' || (i / ?), 'content_hash', md5(i::text),
+            'page_number', i % 500)
+        FROM generate_series(0, ? - 1) i
+        """, SEGMENTS_PER_DOCUMENT, ROWS);
+    jdbcTemplate.execute("ANALYZE vector_store");
+    System.out.printf("inserted %d rows in %d ms%n", ROWS, (System.nanoTime() - start) / 1_000_000);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (dataSource != null) {
+      BenchmarkDatabase.dropSchema(dataSource, SCHEMA);
+    }
+  }
+
+  @Test
+  void indexedLookupIsIndependentOfTableSize() {
+    double scanFind = medianMs(this::find);
+    double scanDelete = medianMs(this::deleteAndRollBack);
+    System.out.printf("without index: find %.2f ms, delete %.2f ms%n", scanFind, scanDelete);
+
+    long start = System.nanoTime();
+    DocumentNameIndex.create(dataSource, "vector_store");
+    jdbcTemplate.execute("ANALYZE vector_store");
+    System.out.printf("index built in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+    List<String> plan = jdbcTemplate.queryForList("EXPLAIN " + FIND_SEGMENTS, String.class, "document-1");
+    assertThat(String.join("\n", plan)).contains("vector_store_document_name_idx");
+
+    double indexedFind = medianMs(this::find);
+    double indexedDelete = medianMs(this::deleteAndRollBack);
+    System.out.printf("with index: find %.2f ms, delete %.2f ms%n", indexedFind, indexedDelete);
+
+    assertThat(indexedFind).isLessThan(scanFind);
+    assertThat(indexedDelete).isLessThan(scanDelete);
+  }
+
+  private void find(String documentName) {
+    List<String> ids = jdbcTemplate.query(FIND_SEGMENTS, (rs, rowNum) -> rs.getString("id"), documentName);
+    assertThat(ids).hasSize(SEGMENTS_PER_DOCUMENT);
+  }
+
+  private void deleteAndRollBack(String documentName) {
+    transactionTemplate.executeWithoutResult(status -> {
+      assertThat(jdbcTemplate.update(DELETE_DOCUMENT, documentName)).isEqualTo(SEGMENTS_PER_DOCUMENT);
+      status.setRollbackOnly();
+    });
+  }
+
+  private static double medianMs(Consumer<String> operation) {
+    Random random = new Random(42);
+    int documents = ROWS / SEGMENTS_PER_DOCUMENT;
+    double[] timings = new double[ROUNDS];
+    for (int round = 0; round < ROUNDS; round++) {
+      String documentName = "document-" + random.nextInt(documents);
+      long start = System.nanoTime();
+      operation.accept(documentName);
+      timings[round] = (System.nanoTime() - start) / 1e6;
+    }
+    Arrays.sort(timings);
+    return timings[ROUNDS / 2];
+  }
+}
@@ -0,0 +1,100 @@
+package edu.xkollar3.rag_example_java.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.openai.OpenAiChatModelName;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
+import edu.xkollar3.rag_example_java.data.RagConfiguration;
+import edu.xkollar3.rag_example_java.service.ContextPacker.Chunk;
+
+class ContextPackerTest {
+
+  private static final OpenAiTokenCountEstimator TOKENS = new OpenAiTokenCountEstimator(
+      OpenAiChatModelName.GPT_3_5_TURBO);
+  private static final String MANUAL = """
+      The pump must be primed before the first start. Open the bleed valve on top of the housing. \
+      Fill the housing with clean water until it comes out of the valve, then close it again. \
+      Start the pump and check that it delivers water within a minute. If it does not, prime it again. \
+      Clean the filter every month and replace the seals every second year. \
+      The warranty covers the motor for five years and the housing for two years.""";
+
+  @Test
+  void joinsAdjacentSpringAiChunksThatDoNotOverlap() {
+    // numbered by position like SpringAiDocumentService stores chunk_index
+    List<Document> documents = TokenTextSplitter.builder().withChunkSize(20).withMinChunkSizeChars(10)
+        .withMinChunkLengthToEmbed(5).withKeepSeparator(true).build().split(List.of(new Document(MANUAL)));
+    assertThat(documents).hasSizeGreaterThan(4);
+
+    List<String> packed = packer(1000).pack(List.of(
+        new Chunk("manual", ContextPacker.chunkIndex(2), documents.get(2).getText(), null, 0.6),
+        new Chunk("manual", ContextPacker.chunkIndex(1), documents.get(1).getText(), null, 0.9),
+        new Chunk("manual", ContextPacker.chunkIndex(4), documents.get(4).getText(), null, 0.7)));
+
+    assertThat(packed).containsExactly(
+        documents.get(1).getText() + "\n" + documents.get(2).getText(),
+        documents.get(4).getText());
+  }
+
+  @Test
+  void mergesOverlappingLangchainSegmentsByTheirIndexText() {
+    List<TextSegment> segments = DocumentSplitters.recursive(120, 60)
+        .split(dev.langchain4j.data.document.Document.from(MANUAL));
+    assertThat(segments).hasSizeGreaterThan(4);
+
+    List<String> packed = packer(1000).pack(List.of(
+        chunk(segments.get(3), 0.9),
+        chunk(segments.get(4), 0.8)));
+
+    // the langchain splitter stores the index as text
+    assertThat(segments.get(4).metadata().toMap().get("index")).isEqualTo("4");
+    assertThat(packed).hasSize(1);
+    assertThat(packed.get(0)).startsWith(segments.get(3).text()).endsWith(segments.get(4).text());
+    // the text the segments overlap by is in the passage once
+    assertThat(packed.get(0).length()).isLessThan(segments.get(3).text().length() + segments.get(4).text().length());
+  }
+
+  @Test
+  void treatsMissingChunkIndexesAsUnknown() {
+    assertThat(ContextPacker.chunkIndex(3)).isEqualTo(3);
+    assertThat(ContextPacker.chunkIndex(3L)).isEqualTo(3);
+    assertThat(ContextPacker.chunkIndex("4")).isEqualTo(4);
+    assertThat(ContextPacker.chunkIndex("four")).isEqualTo(-1);
+    assertThat(ContextPacker.chunkIndex(null)).isEqualTo(-1);
+
+    // segments stored before chunk_index was recorded are never merged
+    List<String> packed = packer(1000).pack(List.of(
+        new Chunk("manual", -1, "First unnumbered chunk.", null, 0.9),
+        new Chunk("manual", -1, "Second unnumbered chunk.", null, 0.8)));
+    assertThat(packed).containsExactly("First unnumbered chunk.", "Second unnumbered chunk.");
+  }
+
+  @Test
+  void cutsAnOverBudgetBestPassageInsteadOfLeavingTheContextEmpty() {
+    List<String> packed = packer(30).pack(List.of(
+        new Chunk("manual", 0, MANUAL, null, 0.9),
+        new Chunk("other", 0, "Lower ranked chunk.", null, 0.5)));
+
+    assertThat(packed).hasSize(1);
+    assertThat(MANUAL).startsWith(packed.get(0));
+    assertThat(TOKENS.estimateTokenCountInText(packed.get(0))).isLessThanOrEqualTo(30).isGreaterThan(20);
+  }
+
+  private static Chunk chunk(TextSegment segment, double score) {
+    return new Chunk("manual", ContextPacker.chunkIndex(segment.metadata().toMap().get("index")), segment.text(),
+        null, score);
+  }
+
+  private static ContextPacker packer(int tokenBudget) {
+    RagConfiguration configuration = new RagConfiguration();
+    configuration.setContextTokenBudget(tokenBudget);
+    return new ContextPacker(TOKENS, configuration);
+  }
+}
@@ -0,0 +1,111 @@
+package edu.xkollar3.rag_example_java.service.springai;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+
+import edu.xkollar3.rag_example_java.repository.DocumentRepository.StoredSegment;
+
+class SegmentDiffTest {
+
+  @Test
+  void keepsUnchangedSegmentsAndEmbedsChangedOnes() {
+    Stored intro = stored(0, "intro");
+    Stored changed = stored(1, "old wording");
+    Stored outro = stored(2, "outro");
+
+    SegmentDiff diff = new SegmentDiff(List.of(intro, changed, outro), split("intro", "new wording", "outro"));
+
+    assertThat(diff.added()).extracting(Document::getText).containsExactly("new wording");
+    assertThat(diff.removed()).containsExactly(changed.getId());
+    assertThat(diff.moved()).isEmpty();
+    assertThat(diff.unchanged()).isEqualTo(2);
+  }
+
+  @Test
+  void movesEveryLaterSegmentOfAnEditNearTheStart() {
+    List<StoredSegment> stored = new ArrayList<>();
+    List<String> texts = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      stored.add(stored(i, "segment " + i));
+      texts.add("segment " + i);
+    }
+    // a segment inserted after the first one
+    texts.add(1, "inserted");
+
+    SegmentDiff diff = new SegmentDiff(stored, split(texts.toArray(String[]::new)));
+
+    assertThat(diff.added()).extracting(Document::getText).containsExactly("inserted");
+    assertThat(diff.removed()).isEmpty();
+    assertThat(diff.unchanged()).isEqualTo(100);
+    assertThat(diff.moved()).hasSize(99)
+        .contains(entry(UUID.fromString(stored.get(1).getId()), 2),
+            entry(UUID.fromString(stored.get(99).getId()), 100));
+  }
+
+  @Test
+  void pairsRepeatedSegmentsInOrder() {
+    Stored first = stored(0, "same");
+    Stored second = stored(1, "same");
+
+    SegmentDiff diff = new SegmentDiff(List.of(first, second), split("same", "other", "same", "same"));
+
+    assertThat(diff.removed()).isEmpty();
+    // the second copy moved behind the other segment, a third copy is new content
+    assertThat(diff.moved()).containsExactly(entry(UUID.fromString(second.getId()), 2));
+    assertThat(diff.added()).extracting(Document::getText).containsExactly("other", "same");
+  }
+
+  @Test
+  void neverMatchesSegmentsStoredWithoutAHash() {
+    Stored legacy = new Stored(UUID.randomUUID().toString(), null, null);
+
+    SegmentDiff diff = new SegmentDiff(List.of(legacy), split("intro"));
+
+    assertThat(diff.added()).extracting(Document::getText).containsExactly("intro");
+    assertThat(diff.removed()).containsExactly(legacy.getId());
+  }
+
+  private static Stored stored(int chunkIndex, String text) {
+    return new Stored(UUID.randomUUID().toString(), hash(text), chunkIndex);
+  }
+
+  // a new split of the document, the metadata the service records
+  private static List<Document> split(String... texts) {
+    List<Document> segments = new ArrayList<>();
+    for (int i = 0; i < texts.length; i++) {
+      segments.add(new Document(texts[i], Map.of(SpringAiDocumentService.CONTENT_HASH, hash(texts[i]),
+          SpringAiDocumentService.CHUNK_INDEX, i)));
+    }
+    return segments;
+  }
+
+  private static String hash(String text) {
+    return "hash of " + text;
+  }
+
+  private record Stored(String id, String contentHash, Integer chunkIndex) implements StoredSegment {
+
+    @Override
+    public String getId() {
+      return id;
+    }
+
+    @Override
+    public String getContentHash() {
+      return contentHash;
+    }
+
+    @Override
+    public Integer getChunkIndex() {
+      return chunkIndex;
+    }
+  }
+}